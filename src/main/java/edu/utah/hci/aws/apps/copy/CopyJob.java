@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import edu.utah.hci.aws.util.ConcurrencyController;
 import edu.utah.hci.aws.util.Util;
 
 public class CopyJob {
@@ -115,19 +116,27 @@ public class CopyJob {
 	}
 
 	private String copyIt(CopyJobWorker cjw) throws Exception {
+		//wait for room under the adaptive limit on copies in flight
+		ConcurrencyController cc = s3Copy.getConcurrency();
+		cc.acquire();
 		long startTime = System.currentTimeMillis();
 		String result = null;
-		//destination is s3?
-		if (destinationFile == null) {
-			cjw.s3S3Copy(source.getBucketName(), source.getKey(), copyRequest.getSourceRegion(), destinationBucket, destinationKey, copyRequest.getDestinationRegion());
-			complete = true;
-			result = "Copied ";
-		}
-		//destination is local
-		else {
-			cjw.tryDownload(source.getBucketName(), source.getKey(), copyRequest.getSourceRegion(), destinationFile);
-			complete = true;
-			result = "Downloaded ";
+		try {
+			//destination is s3?
+			if (destinationFile == null) {
+				cjw.s3S3Copy(source.getBucketName(), source.getKey(), copyRequest.getSourceRegion(), destinationBucket, destinationKey, copyRequest.getDestinationRegion());
+				complete = true;
+				result = "Copied ";
+			}
+			//destination is local
+			else {
+				cjw.tryDownload(source.getBucketName(), source.getKey(), copyRequest.getSourceRegion(), destinationFile);
+				complete = true;
+				result = "Downloaded ";
+			}
+			cc.completed(source.getSize(), (System.currentTimeMillis() - startTime) * 1000000l);
+		} finally {
+			cc.release();
 		}
 		double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
 		String time = Util.formatNumber(diffTime, 1);
@@ -14,9 +14,10 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.RestoreObjectRequest;
 import com.amazonaws.services.s3.model.Tier;
 import com.amazonaws.services.s3.transfer.Copy;
-import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import edu.utah.hci.aws.util.ConcurrencyController;
+import edu.utah.hci.aws.util.RangedDownloader;
 import edu.utah.hci.aws.util.Util;
 
 
@@ -31,6 +32,8 @@ public class CopyJobWorker implements Runnable {
 	private int secToWait;
 	private HashMap<String, AmazonS3> s3 = new HashMap<String, AmazonS3>();
 	private HashMap<String, TransferManager> tm = new HashMap<String, TransferManager>();
+	private HashMap<String, RangedDownloader> downloaders = new HashMap<String, RangedDownloader>();
+	private static final int NUM_RANGE_THREADS = 4;
 	
 	//constructor
 	public CopyJobWorker (S3Copy s3Copy, String name) {
@@ -57,6 +60,7 @@ public class CopyJobWorker implements Runnable {
 	
 	/**Close down the AmazonS3 clients and any associated TransferManagers.*/
 	private void shutdown() {
+		for (RangedDownloader d : downloaders.values()) d.shutdown();
 		for (AmazonS3 s : s3.values()) s.shutdown();
 	}
 
@@ -69,6 +73,7 @@ public class CopyJobWorker implements Runnable {
 				return fetchS3Client(region).getObjectMetadata(bucketName, key);
 			} catch (AmazonServiceException ase) {
 				error = Util.getStackTrace(ase);
+				if (ConcurrencyController.isThrottle(ase)) s3Copy.getConcurrency().throttled();
 				sleep("\tWARNING: failed 's3.getObjectMetadata(bucketName, key)' trying again, "+attempt);
 			}
 			catch (SdkClientException sce) {
@@ -99,6 +104,15 @@ public class CopyJobWorker implements Runnable {
 		return t;
 	}
 
+	private RangedDownloader fetchDownloader(String region) {
+		RangedDownloader d = downloaders.get(region);
+		if (d == null) {
+			d = new RangedDownloader(fetchS3Client(region), NUM_RANGE_THREADS, maxTries, secToWait);
+			downloaders.put(region, d);
+		}
+		return d;
+	}
+
 
 	/**Attempts 'ts3.restoreObjectV2()' maxTries before throwing error message*/
 	public void restore(String bucketName, String key, String region, Tier tier) throws IOException {	
@@ -132,6 +146,7 @@ public class CopyJobWorker implements Runnable {
 				return;
 			} catch (AmazonServiceException ase) {
 				error = Util.getStackTrace(ase);
+				if (ConcurrencyController.isThrottle(ase)) s3Copy.getConcurrency().throttled();
 				sleep("\tWARNING: failed 'tm.copy(sourceBucket, sourceObjectKey, destBucket, destObjectKey)' trying again, "+attempt);
 			}
 			catch ( InterruptedException ie) {
@@ -148,30 +163,9 @@ public class CopyJobWorker implements Runnable {
 		throw new IOException("ERROR failed tm.copy("+sourceBucket+", "+sourceKey+", "+destBucket+", "+destKey+", "+destRegion+") S3 error message:\n"+error);
 	}
 	
-	/**Attempts 'tm.download(bucketName, key)' maxTries before throwing error message*/
+	/**Downloads with concurrent ranged GETs, each range retried maxTries, and verifies the ETag.*/
 	public void tryDownload(String bucketName, String key, String region, File destination) throws Exception {	
-		int attempt = 0;
-		String error = null;
-		while (attempt++ < maxTries) {
-			try {
-				Download xfer = fetchTransferManager(region).download(bucketName, key, destination);
-				xfer.waitForCompletion();
-				return;
-			} catch (AmazonServiceException ase) {
-				error = Util.getStackTrace(ase);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			}
-			catch ( InterruptedException ie) {
-				error = Util.getStackTrace(ie);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			}
-			catch (SdkClientException sce) {
-				error = Util.getStackTrace(sce);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			};
-		}
-		//only hits this if all the attempts failed
-		throw new IOException("ERROR failed tm.download("+bucketName+", "+key+") S3 error message:\n"+error);
+		fetchDownloader(region).download(bucketName, key, destination);
 	}
 
 
@@ -10,6 +10,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import edu.utah.hci.aws.util.ConcurrencyController;
 import edu.utah.hci.aws.util.Util;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
@@ -73,6 +74,7 @@ public class S3Copy {
 	private int indexCopyJobsToProc = -1;
 	private ProfileCredentialsProvider credentials;
 	private File tmpEmailLog = null;
+	private ConcurrencyController concurrency = null;
 
 	public S3Copy (String[] args){
 		try {
@@ -208,6 +210,9 @@ public class S3Copy {
 
 	private void doWork() throws Exception {
 		
+		//copies in flight adapt from -t down under throttling
+		concurrency = new ConcurrencyController("Copy", maxThreads);
+
 		//loop till done attempting restores and copies on individual jobs 
 		while (iterations-- > 0) {
 			pl("\nProcessing CopyJobs...");
@@ -235,6 +240,7 @@ public class S3Copy {
 			if (numCopyJobsToCopy != 0) pl(numCopyJobsToCopy+" File(s) to copy ("+Util.formatSize(sizeToCopy)+"), "+numCopyJobsComplete+" File(s) copied/exist ("+Util.formatSize(sizeComplete)+")");
 			else {
 				pl("\n"+numCopyJobsComplete+" File(s) successfully copied ("+Util.formatSize(sizeComplete)+")");
+				pl(concurrency.getSummary());
 				return; 
 			}
 			
@@ -566,7 +572,8 @@ public class S3Copy {
 				"-x Expedite archive retrieval, increased cost $0.03/GB vs $0.01/GB, 1-5min vs 3-12hr, \n"+
 				"      defaults to standard.\n"+
 				"-l Execute every hour (standard) or minute (expedited) until complete\n"+
-				"-t Maximum threads to utilize, defaults to 8\n"+
+				"-t Maximum threads to utilize, defaults to 8. Copies start at half this and adapt,\n"+
+				"      halving when S3 returns SlowDown.\n"+
 				"-p AWS credentials profile, defaults to 'default'\n"+
 				"-n Number of days to keep restored files in S3, defaults to 1\n"+
 				"-a Print instructions for copying files between different accounts\n"+
@@ -594,6 +601,10 @@ public class S3Copy {
 		return maxTries;
 	}
 
+	public ConcurrencyController getConcurrency() {
+		return concurrency;
+	}
+
 	public int getSecToWait() {
 		return secToWait;
 	}
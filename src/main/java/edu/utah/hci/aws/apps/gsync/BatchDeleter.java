@@ -0,0 +1,113 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import edu.utah.hci.aws.util.Util;
+
+/**Deletes S3 objects with multi-object DeleteObjects requests of up to 1000 keys, several batches in flight at once. Keys that S3 reports
+ * as failed with a transient error code are retried in the next attempt, the rest are returned with S3's error so callers can map them back
+ * to their Placeholders.*/
+public class BatchDeleter {
+
+	public static final int MAX_KEYS = 1000;
+	private static final String[] RETRY_CODES = {"InternalError", "SlowDown", "ServiceUnavailable", "RequestTimeout"};
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private String bucketName;
+	private int maxTries;
+
+	//metrics
+	private AtomicInteger numRequests = new AtomicInteger(0);
+	private AtomicInteger numDeleted = new AtomicInteger(0);
+
+	public BatchDeleter(GSync gsync, AmazonS3 s3) {
+		this.gsync = gsync;
+		this.s3 = s3;
+		bucketName = gsync.getBucketName();
+		maxTries = gsync.getMaxTries();
+	}
+
+	/**Deletes the keys, blocks till all the batches complete.
+	 * @return the keys that couldn't be deleted and why, empty if all were*/
+	public HashMap<String, String> delete(List<String> keys) throws IOException {
+		HashMap<String, String> failed = new HashMap<String, String>();
+		if (keys.size() == 0) return failed;
+		int numBatches = (keys.size() + MAX_KEYS - 1) / MAX_KEYS;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numBatches, gsync.getNumThreads()));
+		ArrayList<Future<HashMap<String, String>>> batches = new ArrayList<Future<HashMap<String, String>>>();
+		for (int i=0; i< keys.size(); i+= MAX_KEYS) {
+			List<String> batch = keys.subList(i, Math.min(keys.size(), i + MAX_KEYS));
+			batches.add(executor.submit(() -> tryDeleteObjects(batch)));
+		}
+		try {
+			for (Future<HashMap<String, String>> f: batches) failed.putAll(f.get());
+		} catch (ExecutionException | InterruptedException e) {
+			throw new IOException("ERROR deleting objects from "+bucketName+"\n"+e.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+		return failed;
+	}
+
+	/**Attempts 's3.deleteObjects(request)' maxTries, each retry only sends the keys that failed with a transient error.
+	 * @return the keys that couldn't be deleted and S3's error for each*/
+	private HashMap<String, String> tryDeleteObjects(List<String> batch) {
+		ArrayList<String> toDelete = new ArrayList<String>(batch);
+		HashMap<String, String> failed = new HashMap<String, String>();
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			ArrayList<KeyVersion> kvs = new ArrayList<KeyVersion>();
+			for (String k: toDelete) kvs.add(new KeyVersion(k));
+			numRequests.incrementAndGet();
+			try {
+				s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(kvs).withQuiet(true));
+				numDeleted.addAndGet(toDelete.size());
+				return failed;
+			} catch (MultiObjectDeleteException mode) {
+				ArrayList<String> retry = new ArrayList<String>();
+				for (DeleteError de: mode.getErrors()) {
+					if (isTransient(de.getCode())) retry.add(de.getKey());
+					else failed.put(de.getKey(), de.getCode()+": "+de.getMessage());
+				}
+				numDeleted.addAndGet(toDelete.size() - mode.getErrors().size());
+				if (retry.size() == 0) return failed;
+				error = retry.size()+" keys failed with transient errors, e.g. "+mode.getErrors().get(0).getCode();
+				toDelete = retry;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.deleteObjects(bucketName, "+toDelete.size()+" keys)' trying again, "+attempt);
+		}
+		//only hits this if all the attempts failed
+		for (String k: toDelete) failed.put(k, "ERROR failed to delete after "+maxTries+" attempts: "+error);
+		return failed;
+	}
+
+	private static boolean isTransient(String code) {
+		for (String c: RETRY_CODES) if (c.equals(code)) return true;
+		return false;
+	}
+
+	public String getSummary() {
+		return numDeleted.get()+" objects deleted with "+numRequests.get()+" DeleteObjects requests";
+	}
+}
@@ -0,0 +1,149 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import edu.utah.hci.aws.util.Util;
+
+/**Lists only the parts of the bucket GSync needs: the key prefixes of the scanned directories. Each prefix is first listed one level deep with a
+ * delimiter, its objects are matched and its sub prefixes are then listed concurrently, each by its own ListObjectsV2 paginator. Each page of
+ * S3ObjectSummaries is handed to the consumer with its partition number, 0 for the objects directly under the prefixes and 1-n for the sub prefixes.
+ * Pages of a partition arrive in key order from a single thread, the consumer must be thread safe across partitions. Each partition is then passed
+ * to the completed consumer, from the same thread, so its results can be released before the scan ends.*/
+public class BucketScanner {
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private String bucketName;
+	private int numThreads;
+	private int maxTries;
+
+	//metrics
+	private LongAdder numListRequests = new LongAdder();
+	private LongAdder numObjects = new LongAdder();
+	private int numPartitions = 0;
+
+	public BucketScanner(GSync gsync, AmazonS3 s3) {
+		this.gsync = gsync;
+		this.s3 = s3;
+		bucketName = gsync.getBucketName();
+		numThreads = gsync.getNumThreads();
+		maxTries = gsync.getMaxTries();
+	}
+
+	/**Returns the smallest set of prefixes that covers the given ones, nested prefixes are dropped. An empty prefix covers the whole bucket.*/
+	public static ArrayList<String> collapsePrefixes(Collection<String> prefixes) {
+		ArrayList<String> collapsed = new ArrayList<String>();
+		//sorted so a prefix always precedes the prefixes nested in it
+		for (String p: new TreeSet<String>(prefixes)) {
+			if (collapsed.size() != 0 && p.startsWith(collapsed.get(collapsed.size()-1))) continue;
+			collapsed.add(p);
+		}
+		return collapsed;
+	}
+
+	/**Lists every object under the prefixes, blocks until complete.*/
+	public void scan(Collection<String> prefixes, BiConsumer<Integer, List<S3ObjectSummary>> consumer, IntConsumer completed) throws IOException {
+		ArrayList<String> toList = collapsePrefixes(prefixes);
+
+		//split each prefix one level down, the objects directly under it are matched here
+		ArrayList<String> partitions = new ArrayList<String>();
+		for (String prefix: toList) {
+			String token = null;
+			do {
+				ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix).withDelimiter("/").withContinuationToken(token);
+				ListObjectsV2Result res = tryListObjects(req);
+				numObjects.add(res.getObjectSummaries().size());
+				consumer.accept(0, res.getObjectSummaries());
+				partitions.addAll(res.getCommonPrefixes());
+				token = res.getNextContinuationToken();
+			} while (token != null);
+		}
+		completed.accept(0);
+		numPartitions = partitions.size();
+		if (partitions.size() == 0) return;
+
+		//list each partition with its own paginator
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, partitions.size()));
+		try {
+			ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int i=0; i< partitions.size(); i++) {
+				String partition = partitions.get(i);
+				int number = i+1;
+				futures.add(executor.submit(() -> {
+					listPrefix(partition, number, consumer);
+					completed.accept(number);
+					return null;
+				}));
+			}
+			for (Future<Object> f: futures) f.get();
+		} catch (Exception e) {
+			Throwable t = e;
+			while (t != null) {
+				if (t instanceof IOException) throw (IOException)t;
+				t = t.getCause();
+			}
+			throw new IOException("ERROR listing "+bucketName+" "+e.getMessage(), e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void listPrefix(String prefix, int partition, BiConsumer<Integer, List<S3ObjectSummary>> consumer) throws IOException {
+		String token = null;
+		do {
+			ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix).withContinuationToken(token);
+			ListObjectsV2Result res = tryListObjects(req);
+			numObjects.add(res.getObjectSummaries().size());
+			consumer.accept(partition, res.getObjectSummaries());
+			token = res.getNextContinuationToken();
+		} while (token != null);
+	}
+
+	/**Attempts 's3.listObjectsV2(req)' maxTries before throwing error message*/
+	private ListObjectsV2Result tryListObjects(ListObjectsV2Request req) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				numListRequests.increment();
+				return s3.listObjectsV2(req);
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+				gsync.sleep("\tWARNING: failed 's3.listObjectsV2(req)' trying again, "+attempt);
+			}
+			catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+				gsync.sleep("\tWARNING: failed 's3.listObjectsV2(req)' trying again, "+attempt);
+			}
+		}
+		throw new IOException("ERROR failed s3.listObjectsV2() for "+bucketName+"/"+req.getPrefix()+" S3 error message:\n"+error);
+	}
+
+	public String getSummary() {
+		return numObjects.sum()+" objects, "+numPartitions+" prefix partitions, "+numListRequests.sum()+" list requests";
+	}
+
+	public long getNumObjects() {
+		return numObjects.sum();
+	}
+
+	public long getNumListRequests() {
+		return numListRequests.sum();
+	}
+}
@@ -0,0 +1,44 @@
+package edu.utah.hci.aws.apps.gsync;
+
+/**The parts of a directory listing GSync cares about: the subdirectories, the files that match an upload extension or are placeholders, and
+ * the index files (bai, crai, tbi, csi) that may accompany them. Saved in the ScanIndex so unchanged directories need not be listed again.*/
+public class DirectoryListing {
+
+	//fields
+	private final String path;
+	private final long lastModified;
+	private final LocalFileInfo[] subDirectories;
+	private final LocalFileInfo[] files;
+	private final LocalFileInfo[] indexes;
+
+	/**@param path canonical path of the directory
+	 * @param lastModified directory modification time in milliseconds, changes when entries are added, removed, or renamed*/
+	public DirectoryListing(String path, long lastModified, LocalFileInfo[] subDirectories, LocalFileInfo[] files, LocalFileInfo[] indexes) {
+		this.path = path;
+		this.lastModified = lastModified;
+		this.subDirectories = subDirectories;
+		this.files = files;
+		this.indexes = indexes;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public LocalFileInfo[] getSubDirectories() {
+		return subDirectories;
+	}
+
+	public LocalFileInfo[] getFiles() {
+		return files;
+	}
+
+	/**Files named like an index that don't match an upload extension, looked up by name when a candidate is found.*/
+	public LocalFileInfo[] getIndexes() {
+		return indexes;
+	}
+}
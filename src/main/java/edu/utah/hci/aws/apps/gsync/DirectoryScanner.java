@@ -0,0 +1,409 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.utah.hci.aws.util.Util;
+
+/**Walks the GSync directories in parallel with a ForkJoinPool. Each directory is scanned by its own RecursiveAction that forks a task for every subdirectory.
+ * Upload candidates and placeholder files are collected into concurrent collections, these are then loaded into GSync once the walk is complete.
+ * Gives the same results as the original serial walk, only the order of the verbose output differs. Each entry is stat'ed once, the resulting
+ * LocalFileInfo is carried through the size, age, index, and placeholder checks. Index files are found by name in the directory's listing, never
+ * probed. Metadata calls are counted, see getMetadataCallSummary().*/
+public class DirectoryScanner {
+
+	//fields
+	private GSync gsync;
+	private String[] fileExtensions;
+	private double minGigaBytes;
+	private int minDaysOld;
+	private PathKeyMapper keyMapper;
+	private boolean verbose;
+	private int numThreads;
+
+	//concurrent collectors
+	private ConcurrentHashMap<String, LocalFileInfo> candidatesForUpload = new ConcurrentHashMap<String, LocalFileInfo>();
+	private ConcurrentSkipListSet<File> placeholderFiles = new ConcurrentSkipListSet<File>();
+
+	//metadata call counters
+	private LongAdder numListings = new LongAdder();
+	private LongAdder numStats = new LongAdder();
+	private LongAdder numCanonicalPaths = new LongAdder();
+	private LongAdder numEntries = new LongAdder();
+	private LongAdder numCachedDirectories = new LongAdder();
+
+	//incremental scans
+	private ScanIndex priorIndex = null;
+	private ScanIndex newIndex = null;
+	private long scanStartTime = 0;
+	private Set<String> dirtyDirectories = null;
+	private Set<String> trustedDirectories = null;
+	public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+	/**Directories modified this close to the start of the scan are not trusted on the next run.*/
+	private static final long RACY_MILLISEC = 2000;
+
+	/**Kept in each listing so the companions of a candidate can be found by name.*/
+	static final String[] INDEX_EXTENSIONS = {".bai", ".crai", ".tbi", ".csi"};
+
+	//streams candidates to uploads during the scan, null unless pipelined
+	private PipelinedUploader pipeline = null;
+
+	public DirectoryScanner(GSync gsync) {
+		this.gsync = gsync;
+		fileExtensions = gsync.getFileExtensions();
+		minGigaBytes = gsync.getMinGigaBytes();
+		minDaysOld = gsync.getMinDaysOld();
+		keyMapper = gsync.getKeyMapper();
+		verbose = gsync.isVerbose();
+		numThreads = gsync.getNumThreads();
+	}
+
+	/**Loads a prior scan index, if present, and starts a new one that is saved with saveIndex().
+	 * Directories whose modification time matches the prior index are not listed again.*/
+	public void useIndex(File indexFile) throws IOException {
+		priorIndex = ScanIndex.load(indexFile, getSignature());
+		newIndex = new ScanIndex(getSignature());
+		if (verbose) {
+			if (priorIndex == null) gsync.pl("\tNo prior scan index, performing a full scan");
+			else gsync.pl("\tLoaded scan index with "+priorIndex.size()+" directories");
+		}
+	}
+
+	/**Builds an in memory index during the scan without a prior, see getNewIndex().*/
+	public void startIndex() {
+		newIndex = new ScanIndex(getSignature());
+	}
+
+	/**Uses the in memory index from a GSyncWatcher. Trusted directories that are not dirty are reused without any metadata calls,
+	 * dirty directories are always listed again, all others fall back to the modification time check.*/
+	public void useWatchedIndex(ScanIndex prior, Set<String> dirtyDirectories, Set<String> trustedDirectories) {
+		priorIndex = prior;
+		newIndex = new ScanIndex(getSignature());
+		this.dirtyDirectories = dirtyDirectories;
+		this.trustedDirectories = trustedDirectories;
+	}
+
+	private String getSignature() {
+		return "extensions="+Util.stringArrayToString(fileExtensions, ",");
+	}
+
+	/**Hands each candidate without a placeholder to the uploader as soon as it is found.*/
+	public void setPipeline(PipelinedUploader pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public ScanIndex getNewIndex() {
+		return newIndex;
+	}
+
+	/**Saves the index built during the last scan.*/
+	public void saveIndex(File indexFile) throws IOException {
+		if (newIndex != null) newIndex.save(indexFile);
+	}
+
+	/**Scans each directory, blocks until all of the tasks are complete.*/
+	public void scan(File[] dirsToScan) throws IOException {
+		scanStartTime = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for (File d: dirsToScan) {
+				//is the dir symlinked?
+				LocalFileInfo root = readInfo(d.getPath());
+				if (root == null) throw new IOException("Failed to find "+d);
+				if (root.isSymlink()) continue;
+				//the only canonical path lookup for the walk, child paths are built from this since the walk never follows links
+				numCanonicalPaths.increment();
+				pool.invoke(new ScanTask(d.getCanonicalPath(), root.getLastModified()));
+			}
+		} catch (RuntimeException e) {
+			//ForkJoin may rethrow a copy of the worker's exception, look for the original IOException
+			Throwable t = e;
+			while (t != null) {
+				if (t instanceof IOException) throw (IOException)t;
+				t = t.getCause();
+			}
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**Scans one directory, forks a new task for each subdirectory.*/
+	private class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private String directory;
+		private long lastModified;
+
+		ScanTask(String directory, long lastModified) {
+			this.directory = directory;
+			this.lastModified = lastModified;
+		}
+
+		protected void compute() {
+			try {
+				ArrayList<ScanTask> subTasks = scanDirectory(directory, lastModified);
+				if (subTasks.size() != 0) invokeAll(subTasks);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**Fetches all files with a given extension, min size, min age, not symbolic links. Also save any that are aws uploaded placeholder files and restore placeholder files.
+	 * Includes indexes for bam, cram, and tabix gz if present. Returns a task for each subdirectory.
+	 * @param directory canonical path of a directory that is not a symbolic link
+	 * @param lastModified of the directory or UNKNOWN_TIME*/
+	private ArrayList<ScanTask> scanDirectory (String directory, long lastModified) throws IOException{
+		ArrayList<ScanTask> subTasks = new ArrayList<ScanTask>();
+
+		//reuse the prior listing?
+		DirectoryListing listing = null;
+		boolean cached = false;
+		if (priorIndex != null && trustedDirectories != null && trustedDirectories.contains(directory) && dirtyDirectories.contains(directory) == false) {
+			//watched with no events
+			listing = priorIndex.get(directory);
+			if (listing != null) {
+				cached = true;
+				numCachedDirectories.increment();
+			}
+		}
+		else if (priorIndex != null && (dirtyDirectories == null || dirtyDirectories.contains(directory) == false)) {
+			if (lastModified == UNKNOWN_TIME) {
+				LocalFileInfo dir = readInfo(directory);
+				//deleted since the parent's listing was saved?
+				if (dir == null) return subTasks;
+				lastModified = dir.getLastModified();
+			}
+			listing = priorIndex.get(directory);
+			if (listing != null && listing.getLastModified() == lastModified) {
+				cached = true;
+				numCachedDirectories.increment();
+			}
+			else listing = null;
+		}
+		if (listing == null) {
+			if (lastModified == UNKNOWN_TIME) {
+				LocalFileInfo dir = readInfo(directory);
+				if (dir == null) return subTasks;
+				lastModified = dir.getLastModified();
+			}
+			listing = listDirectory(directory, lastModified);
+		}
+
+		if (newIndex != null) {
+			//racy, the directory may change again within the file system's time resolution, don't trust it next time
+			if (cached == false && lastModified > scanStartTime - RACY_MILLISEC) newIndex.put(new DirectoryListing(directory, UNKNOWN_TIME, listing.getSubDirectories(), listing.getFiles(), listing.getIndexes()));
+			else newIndex.put(listing);
+		}
+
+		//the subdirectory times in a cached listing are stale, these are looked up by their task
+		for (LocalFileInfo sub: listing.getSubDirectories()) subTasks.add(new ScanTask(sub.getPath(), cached ? UNKNOWN_TIME : sub.getLastModified()));
+
+		HashMap<String, LocalFileInfo> names = null;
+		for (LocalFileInfo info: listing.getFiles()) {
+			String fileName = info.getName();
+
+			if (matchesExtension(fileName)) {
+				//cached sizes and times are stale if the file was written in place, that doesn't change the directory, so restat before filtering,
+				//a link can't become a file without a rename that would
+				if (cached && info.isSymlink() == false) {
+					info = readInfo(info.getParent(), fileName);
+					if (info == null) continue;
+				}
+				if (passesFilters(info) == false) continue;
+				String key = keyMapper.toKey(info);
+				candidatesForUpload.put(key, info);
+				if (verbose) gsync.pl("\tAdding upload candidate "+ info.getPath());
+				if (pipeline != null && hasPlaceholder(listing, fileName) == false) pipeline.submit(key, info);
+				//look for index files
+				if (names == null) names = nameMap(listing);
+				for (LocalFileInfo index: findIndexes(names, fileName, cached)) {
+					String indexKey = keyMapper.toKey(index);
+					candidatesForUpload.put(indexKey, index);
+					if (verbose) gsync.pl("\tAdding upload candidate index "+ index.getPath());
+					//linked indexes in other directories are left for the regular upload
+					if (pipeline != null && index.getParent().equals(info.getParent()) && hasPlaceholder(listing, index.getName()) == false) pipeline.submit(indexKey, index);
+				}
+			}
+			else if (info.isSymlink() == false) {
+				placeholderFiles.add(new File(info.getPath()));
+				if (verbose) gsync.pl("\tPlaceholder found "+ info.getPath());
+			}
+		}
+		return subTasks;
+	}
+
+	/**Files and indexes in the listing by name, built once per directory with a candidate.*/
+	private static HashMap<String, LocalFileInfo> nameMap(DirectoryListing listing) {
+		HashMap<String, LocalFileInfo> names = new HashMap<String, LocalFileInfo>();
+		for (LocalFileInfo f: listing.getFiles()) names.put(f.getName(), f);
+		for (LocalFileInfo f: listing.getIndexes()) names.put(f.getName(), f);
+		return names;
+	}
+
+	/**True if the listing has a placeholder, restore, or delete placeholder for the file, these are never streamed.*/
+	private boolean hasPlaceholder(DirectoryListing listing, String fileName) {
+		String placeholderName = fileName+ Placeholder.PLACEHOLDER_EXTENSION;
+		for (LocalFileInfo f: listing.getFiles()) {
+			if (f.getName().startsWith(placeholderName)) return true;
+		}
+		return false;
+	}
+
+	/**Lists the directory and stats each entry once without following links. Only subdirectories, files with a matching extension, placeholder files,
+	 * and index files are kept.
+	 * @return the listing, empty if the directory was deleted*/
+	private DirectoryListing listDirectory(String directory, long lastModified) throws IOException {
+		numListings.increment();
+		String[] names = new File(directory).list();
+		if (names == null) {
+			if (new File(directory).exists() == false) return new DirectoryListing(directory, lastModified, new LocalFileInfo[0], new LocalFileInfo[0], new LocalFileInfo[0]);
+			throw new IOException("Failed to list the contents of "+directory);
+		}
+		String parent = directory.endsWith("/") ? directory : directory+ "/";
+		ArrayList<LocalFileInfo> subDirs = new ArrayList<LocalFileInfo>();
+		ArrayList<LocalFileInfo> files = new ArrayList<LocalFileInfo>();
+		ArrayList<LocalFileInfo> indexes = new ArrayList<LocalFileInfo>();
+
+		for (String fileName: names){
+			numEntries.increment();
+			boolean match = matchesExtension(fileName);
+			boolean placeholder = match == false && fileName.contains(Placeholder.PLACEHOLDER_EXTENSION);
+			boolean index = match == false && placeholder == false && isIndexName(fileName);
+
+			LocalFileInfo info = readInfo(parent, fileName);
+			//deleted since the listing?
+			if (info == null) continue;
+
+			//symlinked dirs are not directories without following links so these are skipped
+			if (info.isDirectory()) subDirs.add(info);
+			else if (match || placeholder) files.add(info);
+			else if (index) indexes.add(info);
+		}
+		return new DirectoryListing(directory, lastModified, subDirs.toArray(new LocalFileInfo[subDirs.size()]), files.toArray(new LocalFileInfo[files.size()]),
+				indexes.toArray(new LocalFileInfo[indexes.size()]));
+	}
+
+	private static boolean isIndexName(String fileName) {
+		for (String ext: INDEX_EXTENSIONS) {
+			if (fileName.endsWith(ext)) return true;
+		}
+		return false;
+	}
+
+	private boolean matchesExtension(String fileName) {
+		for (String ext: fileExtensions) {
+			if (fileName.endsWith(ext)) return true;
+		}
+		return false;
+	}
+
+	/**Not a symbolic link, big enough, and old enough.*/
+	private boolean passesFilters(LocalFileInfo info) {
+		if (info.isSymlink()) return false;
+		//size?
+		double size = Util.gigaBytes((double)info.getSize());
+		if (size < minGigaBytes) return false;
+		//age in days?
+		int age = Util.ageOfFileInDays(info.getLastModified());
+		return age >= minDaysOld;
+	}
+
+	/**Single stat of the entry without following links, the parent String is shared by the returned info.
+	 * @return null if the path doesn't exist*/
+	private LocalFileInfo readInfo(String parent, String name) throws IOException {
+		numStats.increment();
+		try {
+			return new LocalFileInfo(parent, name, Files.readAttributes(Paths.get(parent, name), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**Single stat of the path without following links.
+	 * @return null if the path doesn't exist*/
+	private LocalFileInfo readInfo(String path) throws IOException {
+		numStats.increment();
+		try {
+			return new LocalFileInfo(path, Files.readAttributes(Paths.get(path), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**Names of the index files that may accompany a bam, cram, bgzipped (e.g. vcf.gz), or bcf file. Each group is in order of preference,
+	 * only the first present is taken, e.g. xxx.bam.bai over xxx.bai, xxx.bam.csi is looked for too.*/
+	static String[][] indexNames(String name) {
+		if (name.endsWith(".bam")) {
+			String base = name.substring(0, name.length()-4);
+			return new String[][] {{name+".bai", base+".bai"}, {name+".csi"}};
+		}
+		if (name.endsWith(".cram")) return new String[][] {{name+".crai", name.substring(0, name.length()-5)+".crai"}};
+		if (name.endsWith(".gz")) return new String[][] {{name+".tbi"}, {name+".csi"}};
+		if (name.endsWith(".bcf")) return new String[][] {{name+".csi"}};
+		return new String[0][];
+	}
+
+	/**Looks up the indexes of a candidate in its directory's listing, no metadata calls unless one is a symbolic link or the listing is cached.
+	 * @param cached true if the listing came from the scan index, found indexes are stat'ed to catch in place modifications
+	 * @return the index files found, often empty*/
+	private ArrayList<LocalFileInfo> findIndexes(HashMap<String, LocalFileInfo> names, String name, boolean cached) throws IOException {
+		ArrayList<LocalFileInfo> found = new ArrayList<LocalFileInfo>();
+		for (String[] group: indexNames(name)) {
+			for (String indexName: group) {
+				LocalFileInfo index = names.get(indexName);
+				if (index == null) continue;
+				if (cached) index = readInfo(index.getParent(), indexName);
+				if (index != null && index.isSymlink()) index = resolveLink(index);
+				if (index != null) {
+					found.add(index);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**Rare, a linked index, returns its target's info or null if broken.*/
+	private LocalFileInfo resolveLink(LocalFileInfo index) throws IOException {
+		File link = new File(index.getPath());
+		numStats.increment();
+		if (link.exists() == false) return null;
+		numCanonicalPaths.increment();
+		numStats.increment();
+		String target = link.getCanonicalPath();
+		return new LocalFileInfo(target, Files.readAttributes(Paths.get(target), BasicFileAttributes.class));
+	}
+
+	/**Summary of the metadata calls made while scanning.*/
+	public String getMetadataCallSummary() {
+		long stats = numStats.sum();
+		long entries = numEntries.sum();
+		String perEntry = entries == 0 ? "0" : Util.formatNumber((double)(stats + numListings.sum() + numCanonicalPaths.sum())/ (double)entries, 2);
+		String sum = entries+" entries: "+numListings.sum()+" directory listings, "+stats+" stats, "+numCanonicalPaths.sum()+" canonical path lookups, "+perEntry+" metadata calls per entry";
+		if (priorIndex != null) sum = sum + ", "+numCachedDirectories.sum()+" unchanged directories reused from the scan index";
+		return sum;
+	}
+
+	public ConcurrentHashMap<String, LocalFileInfo> getCandidatesForUpload() {
+		return candidatesForUpload;
+	}
+
+	public ConcurrentSkipListSet<File> getPlaceholderFiles() {
+		return placeholderFiles;
+	}
+}
@@ -0,0 +1,38 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**LeaseStore in a directory on a shared file system, a stand-in for the bucket when testing shards.*/
+public class FileLeaseStore implements LeaseStore {
+
+	private File dir;
+
+	public FileLeaseStore(File dir) {
+		this.dir = dir;
+	}
+
+	public String read(String name) throws IOException {
+		File f = new File(dir, name);
+		if (f.exists() == false) return null;
+		return new String(Files.readAllBytes(f.toPath()));
+	}
+
+	/**Writes to a temp file then moves it into place so a reader never sees a partial lease.*/
+	public void write(String name, String content) throws IOException {
+		File tmp = File.createTempFile(name, ".tmp", dir);
+		Files.write(tmp.toPath(), content.getBytes());
+		Files.move(tmp.toPath(), new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void delete(String name) throws IOException {
+		new File(dir, name).delete();
+	}
+
+	/**Local writes land at once.*/
+	public long getMaxWriteMillis() {
+		return 0;
+	}
+}
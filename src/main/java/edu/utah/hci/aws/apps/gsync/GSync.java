@@ -3,27 +3,46 @@ package edu.utah.hci.aws.apps.gsync;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.mail.MessagingException;
+import org.json.simple.JSONObject;
+
+import edu.utah.hci.aws.util.BandwidthLimiter;
+import edu.utah.hci.aws.util.ConcurrencyController;
+import edu.utah.hci.aws.util.ETagCalculator;
+import edu.utah.hci.aws.util.LogSink;
+import edu.utah.hci.aws.util.RangedDownloader;
+import edu.utah.hci.aws.util.ThrottledInputStream;
 import edu.utah.hci.aws.util.Util;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.iterable.S3Objects;
+import com.amazonaws.services.s3.model.GlacierJobParameters;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.RestoreObjectRequest;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.Tier;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkClientException;
-import com.amazonaws.services.s3.transfer.Copy;
-import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.Transfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
@@ -52,12 +71,33 @@ public class GSync {
 	private boolean dryRun = true;
 	private boolean verbose = true;
 	private boolean deleteUploaded = false;
+	private boolean verifyBeforeDelete = true;
 	private boolean updateS3Keys = false;
 	private boolean restorePlaceholderFiles = false;  //not implemented
 	private String smtpHost = "hci-mail.hci.utah.edu";
 	private String email = null;
 	private int maxTries = 3;
 	private int minToWait = 2;
+	private int numThreads = 8;
+	private File stateDir = null;
+	private int watchMinutes = 0;
+	private int numUploads = 4;
+	private boolean pipelined = false;
+	private long maxMemoryMB = 256;
+	private int orphanDays = 7;
+	private ResumableUploader resumable = null;
+	private ConcurrencyController fileConcurrency = null;
+	private String bandwidthSchedule = null;
+	private BandwidthLimiter bandwidth = null;
+	private boolean executePlan = false;
+	private int numShards = 0;
+	private String uploadOrder = null;
+	private ShardLeaser shards = null;
+	private AmazonS3 shardS3 = null;
+	private TreeMap<String, String> shardCounts = null;
+	private Tier restoreTier = Tier.Standard;
+	private PipelinedUploader pipeline = null;
+	private GSyncWatcher watcher = null;
 
 	//for looping till complete
 	private boolean rerunUntilComplete = false;
@@ -66,10 +106,13 @@ public class GSync {
 	private boolean runAgain = false;
 
 	//internal fields
-	private StringBuilder log = new StringBuilder();
+	private LogSink log = new LogSink();
+	private RunReport report = new RunReport();
+	private long numS3Objects = 0;
 	private String dirsToScanString = null;
 	private String deleteFromKey = null;
-	private HashMap<String, File> candidatesForUpload = new HashMap<String, File>();
+	private PathKeyMapper keyMapper = null;
+	private HashMap<String, LocalFileInfo> candidatesForUpload = new HashMap<String, LocalFileInfo>();
 
 	private TreeSet<File> placeholderFiles = new TreeSet<File>();
 	private ArrayList<Placeholder> failingPlaceholders = new ArrayList<Placeholder>();
@@ -78,14 +121,21 @@ public class GSync {
 
 	private String region = null;
 	private boolean resultsCheckOK = true;
+	private UploadScheduler uploadScheduler = new UploadScheduler(null);
+	private int uploadCounter = 0;
+	private boolean uploadFailed = false;
+	private LongAdder hashBytes = new LongAdder();
+	private LongAdder hashCpuNanos = new LongAdder();
+	private AtomicInteger numUploadRetries = new AtomicInteger(0);
 	private static final int DAYS_IN_S3 = 7;
+	public static final String LOG_FILE_NAME = "gsyncLog.txt.gz";
 
 	//uploads
 	private ArrayList<File> localFileAlreadyUploaded = new ArrayList<File>();
 	private ArrayList<File> localFileAlreadyUploadedButDiffSize = new ArrayList<File>();
 	private ArrayList<File> localFileAlreadyUploadedNoPlaceholder = new ArrayList<File>();
-	//private ArrayList<String> s3KeyWithNoLocal = new ArrayList<String>();
-	private LinkedHashMap<String, S3ObjectSummary> s3KeyWithNoLocal = new LinkedHashMap<String, S3ObjectSummary>();
+	private final Object alreadyUploadedLock = new Object();
+	private S3ObjectStore s3KeyWithNoLocal = null;
 
 	//ready for restore or delete
 	private ArrayList<Placeholder> restorePlaceholders = new ArrayList<Placeholder>();
@@ -98,6 +148,9 @@ public class GSync {
 
 		processArgs(args);
 
+		//long running watch daemon? never returns
+		if (watchMinutes > 0) runWatchDaemon();
+
 		//loop till done
 		while (iterations-- > 0) {
 			doWork();
@@ -121,60 +174,391 @@ public class GSync {
 		sendEmail();
 	}
 
+	/**Does one full scan then keeps the local state current with a GSyncWatcher, reconciling with S3 every watchMinutes.*/
+	private void runWatchDaemon() {
+		try {
+			watcher = new GSyncWatcher(this);
+		} catch (IOException e) {
+			el("\nError starting the directory watcher");
+			el(Util.getStackTrace(e));
+			System.exit(1);
+		}
+		while (true) {
+			long startTime = System.currentTimeMillis();
+			doWork();
+			if (resultsCheckOK == false) {
+				System.err.println("\nResults check failed, error found, aborting.");
+				sendEmail();
+				watcher.shutdown();
+				System.exit(1);
+			}
+			double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
+			pl("\nReconcile complete, "+Math.round(diffTime)+" minutes");
+			pl(watcher.getStateSummary());
+			sendEmail();
+			log.reset();
+			try {
+				pl("\nWatching, next reconcile in "+watchMinutes+" minutes...");
+				Thread.sleep(1000l*60l*watchMinutes);
+			} catch (InterruptedException e) {}
+		}
+	}
+
 	void doWork() {
+		report = new RunReport();
 		try {
 			region = Util.fetchBucketRegion("default", bucketName);
 
 			initializeFields();
 
-			scanLocalDir();
+			if (numShards > 0) leaseShard();
 
-			parsePlaceholderFiles();
-			if (resultsCheckOK == false) {
-				if (updateS3Keys && keyPlaceholderToUpdate.size() != 0 && dryRun == false) {
-					String error = updateKeys();
-					if (error != null) throw new Exception(error);
-					else resultsCheckOK = true;
-				}
-				return;
-			}
-
-			scanBucket();
-
-			checkPlaceholders();
-			if (resultsCheckOK == false) throw new Exception("Problem with placeholder files.");
+			//streamed uploads start during the scan, otherwise the uploader waits till there's something to upload
+			if (pipelined && dryRun == false && updateS3Keys == false) startResumableUploads();
 
-			removeLocalFromUploadCandidates();
-
-			printResults();
+			//a reviewed dry run's plan replaces the scans
+			if (executePlan) {
+				report.startPhase("executePlan");
+				executePlan();
+				report.endPhase(candidatesForUpload.size() + restorePlaceholders.size() + deletePlaceholders.size(), candidateBytes());
+			}
+			else if (scanAndCheck() == false) return;
 
 			if (dryRun == false && resultsCheckOK == true) {
 
+				//key update runs can still reach upload(), so large files need the uploader there too
+				if (resumable == null) startResumableUploads();
+
 				//delete already uploaded local files from prior GSync run
-				if (deleteUploaded) deleteAlreadyUploaded();
+				if (deleteUploaded) {
+					report.startPhase("deleteAlreadyUploaded");
+					deleteAlreadyUploaded();
+					report.endPhase(localFileAlreadyUploaded.size(), 0);
+				}
 
+				int numUploads = candidatesForUpload.size();
+				long uploadBytes = candidateBytes();
+				report.startPhase("upload");
 				upload();
+				report.endPhase(numUploads, uploadBytes);
 
-				if (deletePlaceholders.size() != 0) delete();
+				if (deletePlaceholders.size() != 0) {
+					report.startPhase("delete");
+					delete();
+					report.endPhase(deletePlaceholders.size(), 0);
+				}
 
 				if (restorePlaceholders.size() != 0) {
+					report.startPhase("restore");
 					String error = restore();
+					report.endPhase(restorePlaceholders.size(), 0);
 					if (error.length() != 0) throw new IOException(error);
 				}
 			}
-			if (s3 != null) s3.shutdown();
+			//a plan runs once, a rerun must rescan
+			if (executePlan) {
+				new File(stateDir, GSyncPlan.PLAN_FILE_NAME).delete();
+				runAgain = false;
+			}
 
 		} catch (Exception ex) {
-			if (s3 != null) s3.shutdown();
+			if (pipeline != null) {
+				pipeline.abort();
+				pipeline = null;
+			}
 			if (verbose) el(Util.getStackTrace(ex));
 			else el(ex.getMessage());
 			resultsCheckOK = false;
-		} 
+		} finally {
+			//also on the early returns from scanAndCheck, e.g. after updating keys
+			if (s3 != null) s3.shutdown();
+			shutdownResumableUploads();
+			if (shards != null) finishShard();
+			writeReport();
+		}
+	}
+
+	/**Appends the run's phase timings and S3 request counts to the report file in the index directory.*/
+	private void writeReport() {
+		TreeMap<String, Object> run = new TreeMap<String, Object>();
+		run.put("bucket", bucketName);
+		run.put("dirs", dirsToScanString);
+		run.put("dryRun", dryRun);
+		run.put("status", resultsCheckOK ? "OK" : "ERROR");
+		JSONObject jo = report.toJson(run);
+		if (verbose) pl("\n"+report.getSummary());
+		if (stateDir == null) return;
+		try {
+			RunReport.append(new File(stateDir, RunReport.REPORT_FILE_NAME), jo);
+		} catch (IOException e) {
+			el("\nWARNING: failed to save the run report, "+e.getMessage());
+		}
+	}
+
+	/**Total size of the upload candidates.*/
+	private long candidateBytes() {
+		long bytes = 0;
+		for (LocalFileInfo f: candidatesForUpload.values()) bytes += f.getSize();
+		return bytes;
+	}
+
+	/**An S3 client whose requests are counted in the run report.*/
+	AmazonS3 s3Client(String region) {
+		return AmazonS3ClientBuilder.standard().withRegion(region).withRequestHandlers(report.getRequestHandler()).build();
+	}
+
+	/**Leases a shard, this process then only acts on the keys hashing to it.*/
+	private void leaseShard() throws Exception {
+		shardS3 = s3Client(region);
+		ShardLeaser leaser = new ShardLeaser(new S3LeaseStore(this, shardS3), numShards, ShardLeaser.DEFAULT_TTL, ShardLeaser.DEFAULT_SETTLE,
+				ShardLeaser.DEFAULT_WAIT);
+		pl("\nLeasing one of "+numShards+" shards, each claim waits "+Util.formatNumber(leaser.getSettleMillis() / 60000.0, 1)+" min for competing claims to land...");
+		int shard = leaser.acquire();
+		if (shard == -1) {
+			shardS3.shutdown();
+			throw new IOException("All "+numShards+" shards of this run are leased by other GSync processes or done, nothing for this one to do.");
+		}
+		shards = leaser;
+		pl("\nLeased shard "+shard+" of "+numShards);
+	}
+
+	/**Saves this shard's counts and releases its lease, prints the merged report if it's the last to finish.*/
+	private void finishShard() {
+		if (shards.isLost()) {
+			el("\nERROR: the lease on shard "+shards.getShard()+" expired and was taken by another process, work may have been duplicated.");
+			resultsCheckOK = false;
+		}
+		TreeMap<String, String> counts = shardCounts == null ? new TreeMap<String, String>() : shardCounts;
+		counts.put("status", resultsCheckOK ? "OK" : "ERROR");
+		try {
+			pl("\nSaving the report for shard "+shards.getShard()+" of "+numShards+", the last to finish waits up to "+
+					(ShardLeaser.DEFAULT_WAIT / 60000)+" min for any shard not yet leased...");
+			String merged = shards.finish(counts);
+			if (merged != null) pl("\n"+merged);
+			else pl("\nShard "+shards.getShard()+" of "+numShards+" report saved, the last shard to finish prints the merged report.");
+		} catch (IOException | InterruptedException e) {
+			el("\nError saving the report for shard "+shards.getShard()+"\n"+e.getMessage());
+		}
+		shardS3.shutdown();
+		shards = null;
+		shardCounts = null;
+	}
+
+	/**True if this process acts on the key, always when not sharded, never once the shard lease is lost.*/
+	boolean ownsKey(String key) {
+		return shards == null || shards.owns(key);
+	}
+
+	/**Drops the work hashing to other shards and records this shard's counts for the merged report.*/
+	private void keepShard() {
+		int before = candidatesForUpload.size() + restorePlaceholders.size() + deletePlaceholders.size() + localFileAlreadyUploaded.size();
+		candidatesForUpload.keySet().removeIf(k -> ownsKey(k) == false);
+		restorePlaceholders.removeIf(p -> ownsKey(p.getAttribute("key")) == false);
+		deletePlaceholders.removeIf(p -> ownsKey(p.getAttribute("key")) == false);
+		localFileAlreadyUploaded.removeIf(f -> ownsKey(keyMapper.toKey(f.getPath())) == false);
+		long uploadBytes = 0;
+		for (LocalFileInfo f: candidatesForUpload.values()) uploadBytes += f.getSize();
+		shardCounts = new TreeMap<String, String>();
+		shardCounts.put("uploads", Integer.toString(candidatesForUpload.size()));
+		shardCounts.put("uploadBytes", Long.toString(uploadBytes));
+		shardCounts.put("restores", Integer.toString(restorePlaceholders.size()));
+		shardCounts.put("deletes", Integer.toString(deletePlaceholders.size()));
+		shardCounts.put("alreadyUploaded", Integer.toString(localFileAlreadyUploaded.size()));
+		int after = candidatesForUpload.size() + restorePlaceholders.size() + deletePlaceholders.size() + localFileAlreadyUploaded.size();
+		pl("\nShard "+shards.getShard()+" of "+numShards+" owns "+after+" of the "+before+" uploads, restores, deletes, and already uploaded files");
+	}
+
+	/**Scans the local directories and the bucket, checks the placeholders, and prints the results.
+	 * @return false if doWork should stop here*/
+	private boolean scanAndCheck() throws Exception {
+		//stream uploads during the scan? key updates need the full picture first
+		if (pipelined && dryRun == false && updateS3Keys == false) pipeline = new PipelinedUploader(this, region);
+
+		report.startPhase("scanLocalDir");
+		scanLocalDir();
+		report.endPhase(candidatesForUpload.size() + placeholderFiles.size(), candidateBytes());
+
+		if (pipeline != null) {
+			report.startPhase("finishPipeline");
+			finishPipeline();
+			report.endPhase(0, 0);
+		}
+
+		report.startPhase("parsePlaceholderFiles");
+		parsePlaceholderFiles();
+		report.endPhase(placeholderFiles.size(), 0);
+		if (resultsCheckOK == false) {
+			if (updateS3Keys && keyPlaceholderToUpdate.size() != 0 && dryRun == false) {
+				if (shards != null) {
+					keyPlaceholderToUpdate.keySet().removeIf(k -> ownsKey(k) == false);
+					shardCounts = new TreeMap<String, String>();
+					shardCounts.put("keyUpdates", Integer.toString(keyPlaceholderToUpdate.size()));
+				}
+				report.startPhase("updateKeys");
+				String error = updateKeys();
+				report.endPhase(keyPlaceholderToUpdate.size(), 0);
+				if (error != null) throw new Exception(error);
+				else resultsCheckOK = true;
+			}
+			//dry run of key updates? save them for -j
+			else if (updateS3Keys && dryRun && stateDir != null && shards == null && failingPlaceholders.size() == keyPlaceholderToUpdate.size()) writePlan();
+			return false;
+		}
+
+		report.startPhase("scanBucket");
+		scanBucket();
+		report.endPhase(numS3Objects, 0);
+
+		report.startPhase("checkPlaceholders");
+		checkPlaceholders();
+		report.endPhase(placeholders.size(), 0);
+		if (resultsCheckOK == false) throw new Exception("Problem with placeholder files.");
+
+		removeLocalFromUploadCandidates();
+
+		if (shards != null) keepShard();
+
+		printResults();
+
+		//each shard only sees its slice, a plan needs them all
+		if (dryRun && stateDir != null && resultsCheckOK && shards == null) writePlan();
+		return true;
+	}
+
+	/**Saves what a -r run would do to the index directory so it can be executed with -j without rescanning.*/
+	private void writePlan() throws IOException {
+		GSyncPlan plan = new GSyncPlan(bucketName, dirsToScanString);
+		for (String key: new TreeSet<String>(candidatesForUpload.keySet())) plan.addUpload(key, candidatesForUpload.get(key));
+		for (Placeholder p: restorePlaceholders) plan.add(GSyncPlan.RESTORE, p.getPlaceHolderFile(), p.getAttribute("key"));
+		for (Placeholder p: deletePlaceholders) plan.add(GSyncPlan.DELETE, p.getPlaceHolderFile(), p.getAttribute("key"));
+		for (Placeholder p: keyPlaceholderToUpdate.values()) plan.add(GSyncPlan.KEY_UPDATE, p.getPlaceHolderFile(), p.getAttribute("key"));
+		for (File f: localFileAlreadyUploaded) plan.add(GSyncPlan.LOCAL_DELETE, f, keyMapper.toKey(f.getPath()));
+		File planFile = new File(stateDir, GSyncPlan.PLAN_FILE_NAME);
+		plan.save(planFile);
+		pl("\nPlan saved to "+planFile+" : "+plan.getSummary()+". After review, run it without rescanning by adding -r -j");
+	}
+
+	/**Loads the dry run's plan, revalidates each entry with a stat and, for those touching S3, a HEAD request, then runs the key updates.
+	 * Entries that changed since the dry run are skipped, the next full run picks them up.*/
+	private void executePlan() throws Exception {
+		File planFile = new File(stateDir, GSyncPlan.PLAN_FILE_NAME);
+		GSyncPlan plan = GSyncPlan.load(planFile);
+		if (plan.getBucketName().equals(bucketName) == false || plan.getDirs().equals(dirsToScanString) == false) {
+			throw new IOException("The plan "+planFile+" was made for "+plan.getBucketName()+" and "+plan.getDirs()+", not this bucket and these directories, rerun the dry run.");
+		}
+		double hours = ((double)(System.currentTimeMillis() - plan.getCreated()))/3600000.0;
+		pl("\nExecuting the plan from the dry run "+Util.formatNumber(hours, 1)+" hours ago: "+plan.getSummary());
+
+		//revalidate in parallel
+		long startTime = System.currentTimeMillis();
+		s3 = s3Client(region);
+		placeholders = new HashMap<String, Placeholder>();
+		ArrayList<GSyncPlan.Entry> entries = new ArrayList<GSyncPlan.Entry>();
+		for (byte t = GSyncPlan.UPLOAD; t<= GSyncPlan.LOCAL_DELETE; t++) entries.addAll(plan.getEntries(t));
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<String>> checks = new ArrayList<Future<String>>();
+		for (GSyncPlan.Entry e: entries) checks.add(executor.submit(() -> revalidate(e)));
+		int numSkipped = 0;
+		for (int i=0; i< entries.size(); i++) {
+			String problem;
+			try {
+				problem = checks.get(i).get();
+			} catch (ExecutionException ee) {
+				problem = ee.getCause().getMessage();
+			}
+			if (problem != null) {
+				pl("\tSkipping, "+problem+"\t"+entries.get(i));
+				numSkipped++;
+			}
+		}
+		executor.shutdown();
+		s3.shutdown();
+		s3 = null;
+		pl("\t"+(entries.size() - numSkipped)+" unchanged, "+numSkipped+" skipped, revalidated in "+
+				Util.formatNumber(((double)(System.currentTimeMillis() - startTime))/1000.0, 1)+" sec");
+
+		if (keyPlaceholderToUpdate.size() != 0) {
+			String error = updateKeys();
+			if (error != null) throw new Exception(error);
+		}
+	}
+
+	/**@return null if the entry still applies, otherwise why not, adding it to the work to do*/
+	private String revalidate(GSyncPlan.Entry e) throws IOException {
+		File f = new File(e.path);
+		if (e.matches(f) == false) return "changed since the dry run";
+		if (e.type == GSyncPlan.UPLOAD) {
+			if (new File(e.path+Placeholder.PLACEHOLDER_EXTENSION).exists()) return "now has a placeholder";
+			if (tryDoesObjectExist(bucketName, e.key)) return "already in S3";
+			synchronized (this) {
+				candidatesForUpload.put(e.key, new LocalFileInfo(e.path, e.size, e.lastModified, false, false));
+			}
+			return null;
+		}
+		if (e.type == GSyncPlan.LOCAL_DELETE) {
+			File pf = new File(e.path+Placeholder.PLACEHOLDER_EXTENSION);
+			if (pf.exists() == false) return "placeholder missing";
+			Placeholder p = new Placeholder(pf, keyMapper, this);
+			if (Long.parseLong(p.getAttribute("size")) != e.size) return "placeholder size differs";
+			synchronized (this) {
+				placeholders.put(e.key, p);
+				localFileAlreadyUploaded.add(f);
+			}
+			return null;
+		}
+		//placeholder based, key updates HEAD in the KeyMover
+		Placeholder p = new Placeholder(f, keyMapper, this);
+		if (e.type == GSyncPlan.KEY_UPDATE) {
+			synchronized (this) {
+				keyPlaceholderToUpdate.put(e.key, p);
+			}
+			return null;
+		}
+		if (tryDoesObjectExist(bucketName, e.key) == false) return "S3 object missing";
+		ObjectMetadata om = tryGetObjectMetadata(bucketName, e.key);
+		if (om.getContentLength() != Long.parseLong(p.getAttribute("size")) || p.getAttribute("etag").equals(om.getETag()) == false) return "S3 object differs from the placeholder";
+		p.setStorageClass(om.getStorageClass() == null ? "STANDARD" : om.getStorageClass());
+		File local = new File(keyMapper.toPath(e.key)).getCanonicalFile();
+		p.setLocalFile(local);
+		synchronized (this) {
+			if (e.type == GSyncPlan.DELETE) deletePlaceholders.add(p);
+			else if (local.exists()) return "local file already exists";
+			else restorePlaceholders.add(p);
+		}
+		return null;
+	}
+
+	/**Loads the upload journal from the index directory so killed multipart uploads resume, and aborts multipart uploads older than the orphan limit.*/
+	private void startResumableUploads() throws IOException {
+		UploadJournal journal;
+		if (stateDir != null) journal = new UploadJournal(new File(stateDir, UploadJournal.JOURNAL_FILE_NAME));
+		else journal = new UploadJournal(null);
+		resumable = new ResumableUploader(this, region, journal);
+		//files in flight adapt from -n down under throttling
+		fileConcurrency = new ConcurrencyController("Files", numUploads);
+		int numAborted = resumable.abortOrphans(bucketPrefixes(), orphanDays);
+		if (numAborted != 0) pl("\t"+numAborted+" orphaned multipart uploads older than "+orphanDays+" days aborted");
+	}
+
+	private void shutdownResumableUploads() {
+		fileConcurrency = null;
+		if (resumable == null) return;
+		resumable.shutdown();
+		resumable = null;
+	}
+
+	/**Waits for the streamed uploads then adds their placeholders so the bucket scan sees these files as already uploaded.*/
+	private void finishPipeline() throws IOException, InterruptedException {
+		pl("\nWaiting for streamed uploads to complete...");
+		pipeline.finish();
+		placeholderFiles.addAll(pipeline.getPlaceholderFiles());
+		pl("\t"+pipeline.getSummary());
+		pipeline = null;
 	}
 
 	private void initializeFields() {
 		runAgain = false;
-		candidatesForUpload = new HashMap<String, File>();
+		candidatesForUpload = new HashMap<String, LocalFileInfo>();
 		placeholderFiles = new TreeSet<File>();
 		failingPlaceholders = new ArrayList<Placeholder>();
 		placeholders = null;
@@ -183,9 +567,12 @@ public class GSync {
 		localFileAlreadyUploaded = new ArrayList<File>();
 		localFileAlreadyUploadedButDiffSize = new ArrayList<File>();
 		localFileAlreadyUploadedNoPlaceholder = new ArrayList<File>();
-		s3KeyWithNoLocal = new LinkedHashMap<String, S3ObjectSummary>();
+		if (s3KeyWithNoLocal != null) s3KeyWithNoLocal.close();
+		s3KeyWithNoLocal = newS3ObjectStore(maxMemoryMB);
 		restorePlaceholders = new ArrayList<Placeholder>();
 		deletePlaceholders = new ArrayList<Placeholder>();
+		hashBytes.reset();
+		hashCpuNanos.reset();
 	}
 
 
@@ -194,58 +581,35 @@ public class GSync {
 	 * @return null if no problems or error statement.*/
 	private String updateKeys() throws IOException {
 		String error = null;
-		Placeholder working = null;
 		try {
 			pl("\nUpdating S3 keys to match local placeholder paths...");
 
-			s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
-
-			//for each key needing to be updated
-			int numUpdated = 0;
-			for (Placeholder p: keyPlaceholderToUpdate.values()) {
-				working = p;
-				//create new key
-				String cp = p.getPlaceHolderFile().getCanonicalPath().replaceFirst(deleteFromKey, "");
-				String newKey = Placeholder.PLACEHOLDER_PATTERN.matcher(cp).replaceFirst("");
-
-				//pull old key
-				String oldKey = p.getAttribute("key");
-				pl("\t"+oldKey +" -> "+newKey);
-
-				//check if old key exists
-				if (tryDoesObjectExist(bucketName, oldKey) == false) throw new IOException ("Failed to update key "+oldKey+" to "+newKey+". Original key doesn't exist.");
+			s3 = s3Client(region);
 
-				//check storage class, may need to trigger a pull from glacier to S3.
-				ObjectMetadata omd = tryGetObjectMetadata(bucketName, oldKey);
+			//copy the objects to their new keys, several at once, each placeholder is rewritten as its copy completes
+			KeyMover mover = new KeyMover(this, s3);
+			error = mover.move(keyPlaceholderToUpdate.values());
+			if (error != null) el(error);
 
-				boolean ready = true;
-				String sc = omd.getStorageClass();
-				if ( sc != null) ready = requestArchiveRestore(oldKey);
-				if (ready == false) continue;
-
-				//check if new key already exists
-				if (tryDoesObjectExist(bucketName, newKey)) throw new IOException ("Failed to update key "+oldKey+" to "+newKey+". It already exists.");
-
-				//copy object to new location
-				tryCopyObject(oldKey, newKey);
-
-				//delete the original reference
-				tryDeleteObject(bucketName, oldKey);
-
-				//fetch meta data on new object
-				ObjectMetadata newOmd = tryGetObjectMetadata(bucketName, newKey);
-				
-				//update placeholder file
-				p.getAttributes().put("key", newKey);
-				p.getAttributes().put("etag", newOmd.getETag()); //the etag will change since the number of threads to transfer likely differ.
-				p.writePlaceholder(p.getPlaceHolderFile());
-				numUpdated++;
-			}
-			if (verbose) pl("\t"+ numUpdated +" keys sucessfully updated. Relaunch GSync.");
+			//delete the original references of those moved, even after an error since their placeholders now point to the new keys
+			HashMap<String, Placeholder> oldKeys = mover.getMoved();
+			BatchDeleter bd = new BatchDeleter(this, s3);
+			HashMap<String, String> failed = bd.delete(new ArrayList<String>(oldKeys.keySet()));
+			if (verbose) pl("\t"+ mover.getNumMoved() +" keys sucessfully updated, "+bd.getSummary()+". Relaunch GSync.");
 			s3.shutdown();
+			if (failed.size() != 0) {
+				StringBuilder sb = new StringBuilder("ERROR: "+failed.size()+" keys were copied but their original objects couldn't be deleted:");
+				for (String k: failed.keySet()) {
+					Placeholder p = oldKeys.get(k);
+					p.addErrorMessage("Failed to delete the original S3 object "+k+", "+failed.get(k));
+					sb.append("\n"+p.getMinimalInfo());
+				}
+				el(sb.toString());
+				if (error == null) error = sb.toString();
+			}
 
 		} catch (Exception e) {
-			error = "ERROR in updating keys for:\n"+working.getMinimalInfo()+"\n"+e.getMessage();
+			error = "ERROR in updating keys:\n"+e.getMessage();
 			el(error);
 			if (verbose) el(Util.getStackTrace(e));
 			if (s3 != null) s3.shutdown();
@@ -254,29 +618,8 @@ public class GSync {
 		return error;
 	}
 	
-	/**Attempts 's3.deleteObject(bucketName, key)' maxTries before throwing error message*/
-	private void tryDeleteObject(String bucketName, String key) throws IOException {	
-		int attempt = 0;
-		String error = null;
-		while (attempt++ < maxTries) {
-			try {
-				s3.deleteObject(bucketName, key);
-				return;
-			} catch (AmazonServiceException ase) {
-				error = Util.getStackTrace(ase);
-				sleep("\tWARNING: failed 's3.deleteObject(bucketName, key)' trying again, "+attempt);
-			}
-			catch (SdkClientException sce) {
-				error = Util.getStackTrace(sce);
-				sleep("\tWARNING: failed 's3.deleteObject(bucketName, key)' trying again, "+attempt);
-			};
-		}
-		//only hits this if all the attempts failed
-		throw new IOException("ERROR failed to delete "+key+" from "+bucketName+" S3 error message:\n"+error);
-	}
-	
 	/**Attempts 's3.doesObjectExist(bucketName, key)' maxTries before throwing error message*/
-	private ObjectMetadata tryGetObjectMetadata(String bucketName, String key) throws IOException {		
+	ObjectMetadata tryGetObjectMetadata(String bucketName, String key) throws IOException {		
 		int attempt = 0;
 		String error = null;
 		while (attempt++ < maxTries) {
@@ -296,7 +639,7 @@ public class GSync {
 	}
 
 	/**Attempts 's3.doesObjectExist(bucketName, key)' maxTries before throwing error message*/
-	private boolean tryDoesObjectExist(String bucketName, String key) throws IOException {		
+	boolean tryDoesObjectExist(String bucketName, String key) throws IOException {		
 		int attempt = 0;
 		String error = null;
 		while (attempt++ < maxTries) {
@@ -315,8 +658,9 @@ public class GSync {
 		throw new IOException("ERROR looking for "+key+" in "+bucketName+" S3 error message:\n"+error);
 	}
 	
-	private void sleep(String message) {
+	void sleep(String message) {
 		try {
+			report.retried();
 			pl(message+", sleeping "+minToWait+" minutes");
 			TimeUnit.MINUTES.sleep(minToWait);
 		} catch (InterruptedException e) {
@@ -324,45 +668,33 @@ public class GSync {
 		}
 	}
 	
-	/**Attempts 'tm.copy(bucketName, sourceObjectKey, bucketName, destObjectKey)' maxTries before throwing error message*/
-	private void tryCopyObject(String sourceObjectKey, String destObjectKey) throws IOException {	
-		int attempt = 0;
-		String error = null;
-		while (attempt++ < maxTries) {
-			try {
-				TransferManager tm = TransferManagerBuilder.standard().withS3Client(s3).withMultipartCopyThreshold((long) (256 * 1024 * 1024)).build();
-				Copy copy = tm.copy(bucketName, sourceObjectKey, bucketName, destObjectKey);
-				copy.waitForCompletion();
-				return;
-			} catch (AmazonServiceException ase) {
-				error = Util.getStackTrace(ase);
-				sleep("\tWARNING: failed 'tm.copy(bucketName, sourceObjectKey, bucketName, destObjectKey)' trying again, "+attempt);
-			}
-			catch ( InterruptedException ie) {
-				error = Util.getStackTrace(ie);
-				sleep("\tWARNING: failed 'tm.copy(bucketName, sourceObjectKey, bucketName, destObjectKey)' trying again, "+attempt);
-			}
-			catch (SdkClientException sce) {
-				error = Util.getStackTrace(sce);
-				sleep("\tWARNING: failed 'tm.copy(bucketName, sourceObjectKey, bucketName, destObjectKey)' trying again, "+attempt);
-			};
-		}
-		//only hits this if all the attempts failed
-		throw new IOException("ERROR failed tm.copy("+bucketName+", "+sourceObjectKey+", "+bucketName+", "+destObjectKey+") S3 error message:\n"+error);
-	}
-
-
 	private void delete() throws Exception{
 		pl("\nDeleting S3 Objects, their delete placeholders, and any matching local files...");
-		s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+		s3 = s3Client(region);
+		ArrayList<String> keys = new ArrayList<String>();
+		for (Placeholder p : deletePlaceholders) keys.add(p.getAttribute("key"));
+		BatchDeleter bd = new BatchDeleter(this, s3);
+		HashMap<String, String> failed = bd.delete(keys);
+		s3.shutdown();
+
+		//only remove the local files of those deleted in S3
+		ArrayList<Placeholder> failedPlaceholders = new ArrayList<Placeholder>();
 		for (Placeholder p : deletePlaceholders) {
+			String problem = failed.get(p.getAttribute("key"));
+			if (problem != null) {
+				p.addErrorMessage("Failed to delete the S3 object, "+problem);
+				failedPlaceholders.add(p);
+				continue;
+			}
 			pl("\t"+p.getAttribute("key")+"\t"+p.getPlaceHolderFile()+"\t"+p.getLocalFile()+"\t"+p.getStorageClass());
-			tryDeleteObject(bucketName, p.getAttribute("key"));
 			p.getPlaceHolderFile().delete();
 			if (p.getLocalFile() != null) p.getLocalFile().delete();
 		}
-		pl("\t"+deletePlaceholders.size()+" AWS and local resources deleted (versioned S3 objects can still be recovered)");
-		s3.shutdown();
+		pl("\t"+(deletePlaceholders.size() - failedPlaceholders.size())+" AWS and local resources deleted (versioned S3 objects can still be recovered), "+bd.getSummary());
+		if (failedPlaceholders.size() != 0) {
+			for (Placeholder p: failedPlaceholders) el(p.getMinimalInfo());
+			throw new IOException("ERROR failed to delete "+failedPlaceholders.size()+" of "+deletePlaceholders.size()+" S3 objects, see above");
+		}
 	}
 
 	void sendEmail() {
@@ -370,7 +702,7 @@ public class GSync {
 		try {
 			String status = " - OK - ";
 			if (resultsCheckOK == false) status = " - ERROR - ";
-			Util.postMail(email, "GSync Run" +status+ Util.getDateTime(), log.toString(), "noreply_gsync@hci.utah.edu", smtpHost);
+			Util.postMail(email, "GSync Run" +status+ Util.getDateTime(), log.getSummary(), "noreply_gsync@hci.utah.edu", smtpHost);
 		} catch (MessagingException e) {
 			el("\nError sending email");
 			el(Util.getStackTrace(e));
@@ -380,91 +712,23 @@ public class GSync {
 
 	private String restore() {
 		pl("\nRestoring "+restorePlaceholders.size()+" S3 Objects and renaming their restore placeholders to standard...");
-
-		File localFile = null;
-		File tempFile = null;
-		s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
-		TransferManager tm = TransferManagerBuilder.standard().withS3Client(s3).build();
-
-		int numRestored = 0;
+		s3 = s3Client(region);
 		try {
-
-			for (Placeholder p : restorePlaceholders) {
-				String key = p.getAttribute("key");
-				p("\t"+key+"\t"+p.getPlaceHolderFile()+"\t"+p.getStorageClass()+"\t");
-
-				//check storage class, may need to trigger a pull from glacier to S3.
-				boolean download = true;
-				if (p.getStorageClass().equals("STANDARD") == false) download = requestArchiveRestore(key);
-
-				//good to go?
-				if (download) {
-					long startTime = System.currentTimeMillis();
-					localFile = p.getLocalFile();
-					tempFile = new File(localFile.getParentFile(), "tempRestore_"+localFile.getName());
-
-					tryDownload(bucketName, key, tempFile, tm);
-
-					//check the size
-					long placeholderSize = Long.parseLong(p.getAttribute("size"));
-					if (placeholderSize != tempFile.length()) throw new IOException("The restored file's size ("+tempFile.length()+"does not match the placeholder size\n"+p.getMinimalInfo());
-
-					//rename the temp to local
-					tempFile.renameTo(localFile);
-
-					//rename the placeholder file
-					File stdPlaceholder = new File (localFile.getCanonicalPath()+Placeholder.PLACEHOLDER_EXTENSION);
-					p.getPlaceHolderFile().renameTo(stdPlaceholder);
-					numRestored++;
-
-					//calc time
-					double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
-					pl(Util.formatNumber(diffTime, 1)+" min");
-				}
+			//when rerunning till complete, wait here for the restores rather than rescanning every few hours
+			long maxWaitMinutes = rerunUntilComplete ? numMinToSleep * iterations : 0;
+			RestoreScheduler rs = new RestoreScheduler(this, s3, maxWaitMinutes);
+			int numPending = rs.restore(restorePlaceholders);
+			if (numPending != 0) {
+				pl("\t"+numPending+" "+restoreTier+" restores in progress, relaunch GSync in a few hours.");
+				runAgain = true;
 			}
-			tm.shutdownNow();
 		} catch (Exception e) {
-			//delete the temp and local
-			if (localFile != null) localFile.delete();
-			if (tempFile != null) tempFile.delete();
-			tm.shutdownNow();
-
-			//return the error
 			if (verbose) el(Util.getStackTrace(e));
 			return "\nRESTORE ERROR: "+e.getMessage();
 		} 
-
-		pl("\t"+numRestored+" resources restored");
 		return "";
 	}
 	
-	/**Attempts 'tm.download(bucketName, key)' maxTries before throwing error message*/
-	private void tryDownload(String bucketName, String key, File tempFile, TransferManager tm) throws IOException {	
-		int attempt = 0;
-		String error = null;
-		while (attempt++ < maxTries) {
-			try {
-				Download xfer = tm.download(bucketName, key, tempFile);
-				xfer.waitForCompletion();
-				return;
-			} catch (AmazonServiceException ase) {
-				error = Util.getStackTrace(ase);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			}
-			catch ( InterruptedException ie) {
-				error = Util.getStackTrace(ie);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			}
-			catch (SdkClientException sce) {
-				error = Util.getStackTrace(sce);
-				sleep("\tWARNING: failed 'tm.download(bucketName, key)' trying again, "+attempt);
-			};
-		}
-		//only hits this if all the attempts failed
-		throw new IOException("ERROR failed tm.download("+bucketName+", "+key+") S3 error message:\n"+error);
-	}
-
-
 	public boolean requestArchiveRestore(String key) throws IOException {
 		
 		//check if restore in progress
@@ -472,7 +736,7 @@ public class GSync {
 		Boolean restoreFlag = response.getOngoingRestore();
 		//request never received
 		if (restoreFlag == null) {
-			tryRestoreObjectV2(bucketName, key);
+			tryRestoreObjectV2(bucketName, key, response.getStorageClass());
 			pl("\t\t"+response.getStorageClass()+" restore request placed, relaunch GSync in a few hours.");
 		}
 		//true, in progress
@@ -484,13 +748,16 @@ public class GSync {
 		return false;
 	}
 	
-	/**Attempts 'ts3.restoreObjectV2()' maxTries before throwing error message*/
-	private void tryRestoreObjectV2(String bucketName, String key) throws IOException {	
+	/**Attempts 'ts3.restoreObjectV2()' maxTries before throwing error message. Expedited isn't offered for DEEP_ARCHIVE, these fall back to Standard.*/
+	void tryRestoreObjectV2(String bucketName, String key, String storageClass) throws IOException {	
+		Tier tier = restoreTier;
+		if (tier == Tier.Expedited && "DEEP_ARCHIVE".equals(storageClass)) tier = Tier.Standard;
+		GlacierJobParameters gjp = new GlacierJobParameters().withTier(tier);
 		int attempt = 0;
 		String error = null;
 		while (attempt++ < maxTries) {
 			try {
-				RestoreObjectRequest requestRestore = new RestoreObjectRequest(bucketName, key, DAYS_IN_S3);
+				RestoreObjectRequest requestRestore = new RestoreObjectRequest(bucketName, key, DAYS_IN_S3).withGlacierJobParameters(gjp);
 				s3.restoreObjectV2(requestRestore);
 				return;
 			} catch (AmazonServiceException ase) {
@@ -504,10 +771,12 @@ public class GSync {
 
 
 
-	private void deleteAlreadyUploaded() throws IOException {
+	private void deleteAlreadyUploaded() throws IOException, InterruptedException, ExecutionException {
 		if (localFileAlreadyUploaded.size() != 0) {
+			ArrayList<File> toDelete = localFileAlreadyUploaded;
+			if (verifyBeforeDelete) toDelete = verifyETags(localFileAlreadyUploaded);
 			pl("\nThe following local files have already been successfully uploaded to S3, have a correct placeholder, and are now deleted.");
-			for (File f: localFileAlreadyUploaded) {
+			for (File f: toDelete) {
 				pl("\t"+f.getCanonicalPath());
 				f.delete();
 			}
@@ -515,34 +784,112 @@ public class GSync {
 		localFileAlreadyUploaded.clear();
 	}
 
+	/**Computes the ETag of each local file, files in parallel and the parts of each in parallel, and compares it to its placeholder's.
+	 * @return the files that match*/
+	private ArrayList<File> verifyETags(ArrayList<File> files) throws InterruptedException, ExecutionException {
+		pl("\nVerifying the ETags of "+files.size()+" local files before deleting...");
+		long startTime = System.currentTimeMillis();
+		ETagCalculator calc = new ETagCalculator(numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<String>> problems = new ArrayList<Future<String>>();
+		for (File f: files) {
+			Placeholder p = placeholders.get(keyMapper.toKey(f.getPath()));
+			problems.add(executor.submit(() -> verifyETag(calc, f, p)));
+		}
+		ArrayList<File> verified = new ArrayList<File>();
+		for (int i=0; i< files.size(); i++) {
+			String problem = problems.get(i).get();
+			if (problem == null) verified.add(files.get(i));
+			else el("\tWARNING: not deleting "+files.get(i)+", "+problem);
+		}
+		executor.shutdown();
+		calc.shutdown();
+		double numGb = (double)calc.getNumBytes()/ (double)1073741824;
+		double diffSec = ((double)(System.currentTimeMillis() -startTime))/1000.0;
+		String rate = diffSec > 0 ? Util.formatNumber(numGb*1024.0/diffSec, 0)+" MB/s" : "";
+		pl("\t"+verified.size()+" of "+files.size()+" match, "+Util.formatNumber(numGb, 2)+"GB hashed in "+Util.formatNumber(diffSec, 1)+" sec "+rate);
+		return verified;
+	}
+
+	/**@return null if the local ETag matches the placeholder's, otherwise the problem*/
+	static String verifyETag(ETagCalculator calc, File f, Placeholder p) {
+		try {
+			if (p == null) return "no placeholder found";
+			String etag = p.getAttribute("etag").replace("\"", "");
+			int numParts = RangedDownloader.parsePartCount(etag);
+			if (numParts == -1) return "the placeholder etag "+etag+" isn't MD5 based, use -v to skip verification";
+			if (numParts == 1) return calc.calculate(f, 0, 1).equals(etag) ? null : "the local MD5 doesn't match the placeholder etag "+etag;
+			String ps = p.getAttribute("partSize");
+			ArrayList<Long> partSizes = ETagCalculator.candidatePartSizes(f.length(), numParts, ps == null ? 0 : Long.parseLong(ps));
+			if (partSizes.size() == 0) return "couldn't determine the upload part size for etag "+etag;
+			for (Long partSize: partSizes) {
+				if (calc.calculate(f, partSize, numParts).equals(etag)) return null;
+			}
+			return "the local multipart ETag doesn't match the placeholder etag "+etag;
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+	}
+
 
 	/**For unit testing.*/
 	public GSync () {}
 
 	private void upload() throws AmazonServiceException, AmazonClientException, IOException, InterruptedException {
-		s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
-		TransferManager tm = TransferManagerBuilder.standard().withS3Client(s3).withMultipartUploadThreshold((long) (256 * 1024 * 1024)).build();
+		s3 = s3Client(region);
+		//one shared TransferManager, its part threads are split across the files in flight
+		int numPartThreads = Math.max(10, numUploads * 4);
+		TransferManager tm = TransferManagerBuilder.standard().withS3Client(s3).withMultipartUploadThreshold((long) (256 * 1024 * 1024))
+				.withExecutorFactory(() -> Executors.newFixedThreadPool(numPartThreads)).build();
 	
 		//anything to upload?  all of these methods throw an IOException 
 		if (candidatesForUpload.size() !=0) {
+			long startTime = System.currentTimeMillis();
+			uploadScheduler.start(candidatesForUpload);
+			uploadCounter = 0;
+			uploadFailed = false;
+			numUploadRetries.set(0);
+			int numWorkers = Math.min(numUploads, uploadScheduler.size());
+			pl("\nUploading "+uploadScheduler.size()+ " files, "+numWorkers+" at a time, "+uploadScheduler.getDescription()+"...");
+
+			UploadWorker[] workers = new UploadWorker[numWorkers];
+			ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+			for (int i=0; i< numWorkers; i++) {
+				workers[i] = new UploadWorker(this, tm);
+				executor.execute(workers[i]);
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+			//collect stats, files that completed have their placeholders
 			long totalSize = 0;
-			int numUpload = candidatesForUpload.size();
-			pl("\nUploading "+numUpload+ " files...");
 			ArrayList<File> toDelete = new ArrayList<File>();
-			int counter = 1;
-
-			for (String key: candidatesForUpload.keySet()) {
-				File toUpload = candidatesForUpload.get(key);
-				totalSize+= toUpload.length();
-				String etagData = upload(key, toUpload, tm, counter+"/"+numUpload);
-				toDelete.add(toUpload);
-				writePlaceholder(toUpload, etagData);
-				counter++;
+			ArrayList<Long> fileMilliSec = new ArrayList<Long>();
+			String error = null;
+			for (UploadWorker w: workers) {
+				totalSize += w.getBytesUploaded();
+				fileMilliSec.addAll(w.getFileMilliSec());
+				for (LocalFileInfo f: w.getUploaded()) toDelete.add(f.getFile());
+				if (w.isFailed() && error == null) error = w.getError();
 			}
-			//cannot reach this point if there was an error
 			double numGb = (double)totalSize/ (double)1073741824;
+			double diffSec = ((double)(System.currentTimeMillis() -startTime))/1000.0;
+			pl("\t"+uploadStats(toDelete.size(), numGb, diffSec, fileMilliSec)+", "+numUploadRetries.get()+" retries");
+			pl("\t"+hashStats());
+			if (stateDir != null && verbose && resumable != null) pl("\t"+resumable.getSummary());
+			if (bandwidth != null) pl("\t"+bandwidth.getSummary());
+			if (verbose && fileConcurrency != null) pl("\t"+fileConcurrency.getSummary());
+			if (verbose && resumable != null) pl("\t"+resumable.getPartConcurrency().getSummary());
+			if (error != null) {
+				tm.shutdownNow();
+				throw new IOException("ERROR uploading, stopped after "+toDelete.size()+" of "+uploadScheduler.size()+" files completed:\n"+error);
+			}
 
-			pl("\tAll S3 uploads ("+ Util.formatNumber(numGb, 2) +"GB) successfully completed.");
+			if (uploadScheduler.isStopped()) {
+				pl("\t"+uploadScheduler.getStopSummary());
+				runAgain = true;
+			}
+			else pl("\tAll S3 uploads ("+ Util.formatNumber(numGb, 2) +"GB) successfully completed.");
 			//delete
 			if (deleteUploaded) {
 				for (File x: toDelete) {
@@ -557,15 +904,62 @@ public class GSync {
 		}
 		tm.shutdownNow();
 	}
+	
+	void addHashStats(long bytes, long cpuNanos) {
+		hashBytes.add(bytes);
+		hashCpuNanos.add(cpuNanos);
+	}
+
+	/**CPU cost of the upload checksums per GB.*/
+	private String hashStats() {
+		double numGb = (double)hashBytes.sum()/ (double)1073741824;
+		double cpuSec = (double)hashCpuNanos.sum()/ 1000000000.0;
+		String perGb = numGb > 0 ? Util.formatNumber(cpuSec/numGb, 2) : "0";
+		return "Checksums: "+Util.formatNumber(numGb, 2)+"GB hashed with MD5 and SHA-256 while uploading, "+Util.formatNumber(cpuSec, 1)+" CPU sec, "+perGb+" CPU sec/GB";
+	}
+
+	void uploadRetried() {
+		numUploadRetries.incrementAndGet();
+	}
+
+	/**Aggregate throughput, per file latency, and retries for the upload summary.*/
+	static String uploadStats(int numFiles, double numGb, double seconds, ArrayList<Long> fileMilliSec) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(numFiles+" files, "+Util.formatNumber(numGb, 2)+"GB in "+Util.formatNumber(seconds/60.0, 1)+" min");
+		if (seconds > 0) sb.append(", "+Util.formatNumber((numGb * 8.0)/seconds, 2)+" Gbps");
+		if (fileMilliSec.size() != 0) {
+			Long[] ms = fileMilliSec.toArray(new Long[fileMilliSec.size()]);
+			Arrays.sort(ms);
+			sb.append(", per file min/median/max "+Util.formatNumber(ms[0]/60000.0, 1)+"/"+Util.formatNumber(ms[ms.length/2]/60000.0, 1)+"/"+
+					Util.formatNumber(ms[ms.length-1]/60000.0, 1)+" min");
+		}
+		return sb.toString();
+	}
+	
+	/**Called by the UploadWorkers, returns null when all have been handed out, a budget is reached, after any worker has failed, or once the shard
+	 * lease is lost to another process.*/
+	synchronized String fetchNextUpload() {
+		if (uploadFailed || (shards != null && shards.isLost())) return null;
+		return uploadScheduler.next();
+	}
+	
+	synchronized void uploadFailed() {
+		uploadFailed = true;
+	}
+	
+	/**Returns a 'x/total' label for the next completed upload.*/
+	synchronized String incrementUploadCounter() {
+		return (++uploadCounter)+"/"+uploadScheduler.size();
+	}
 
-	private void writePlaceholder(File f, String etag) throws IOException {
+	void writePlaceholder(String key, LocalFileInfo f, UploadedChecksums checksums) throws IOException {
 		Placeholder placeholder = new Placeholder();
 		HashMap<String, String> att = placeholder.getAttributes();
 		att.put("bucket", bucketName);
-		att.put("key", f.getCanonicalPath().replaceFirst(deleteFromKey, ""));
-		att.put("etag", etag);
-		att.put("size", new Long(f.length()).toString());
-		File p = new File(f.getCanonicalPath()+Placeholder.PLACEHOLDER_EXTENSION);
+		att.put("key", key);
+		checksums.addAttributes(att);
+		att.put("size", Long.toString(f.getSize()));
+		File p = new File(f.getPath()+Placeholder.PLACEHOLDER_EXTENSION);
 		placeholder.writePlaceholder(p);
 	}
 
@@ -581,68 +975,58 @@ public class GSync {
 		return  p;
 	}
 
-	/**Looks for files with bam, cram, and gz and their indexes bai, crai, tbi.
-	 * @return index file or null if not found.*/
-	private File findIndex(File file) {
-		String name = file.getName();
-		File index = null;
-		//looks for xxx.bam.bai and xxx.bai
-		if (name.endsWith(".bam")) {
-			index = new File (file.getParentFile(), name+".bai");
-			if (index.exists() == false) index = new File (file.getParentFile(), name.substring(0, name.length()-4)+".bai");
-		}
-		//looks for xxx.cram.crai and xxx.crai
-		else if (name.endsWith(".cram")){
-			index = new File (file.getParentFile(), name+".crai");
-			if (index.exists() == false) index = new File (file.getParentFile(), name.substring(0, name.length()-5)+".crai");
+	/**Attempts 'tm.upload(bucketName, key, file)' maxTries before throwing error message. The file is hashed as it's sent, SHA-256 for
+	 * single part uploads, a composite SHA-256 for the multipart uploads of large files.*/
+	UploadedChecksums tryUpload(String bucketName, String key, File file, TransferManager tm) throws IOException {	
+		if (fileConcurrency == null) return uploadFile(bucketName, key, file, tm);
+		//wait for room under the adaptive limit on files in flight
+		try {
+			fileConcurrency.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("ERROR interrupted waiting to upload "+file);
 		}
-		//looks for xxx.gz.tbi 
-		else if (name.endsWith(".gz")){
-			index =  new File (file.getParentFile(), name+".tbi");
+		try {
+			long start = System.nanoTime();
+			UploadedChecksums checksums = uploadFile(bucketName, key, file, tm);
+			fileConcurrency.completed(file.length(), System.nanoTime() - start);
+			return checksums;
+		} finally {
+			fileConcurrency.release();
 		}
-
-		if (index != null && index.exists()) return index;
-		return null;
-
 	}
 
-	private String upload(String key, File file, TransferManager tm, String prePend) throws IOException {
-		long startTime = System.currentTimeMillis();
-		
-		p("\t"+prePend+"\t"+bucketName+"/"+key+"\t");
-		String eTag = tryUpload(bucketName, key, file, tm);
-		
-		//calc time
-		double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
-		pl(Util.formatNumber(diffTime, 1)+" min");
-
-		return eTag;
-	}
-	
-	/**Attempts 'tm.upload(bucketName, key, file)' maxTries before throwing error message*/
-	private String tryUpload(String bucketName, String key, File file, TransferManager tm) throws IOException {	
+	private UploadedChecksums uploadFile(String bucketName, String key, File file, TransferManager tm) throws IOException {	
+		//large files are sent in journaled parts so a killed run resumes them
+		if (resumable != null && file.length() >= ResumableUploader.MIN_SIZE) return resumable.upload(key, file);
 		int attempt = 0;
 		String error = null;
 		while (attempt++ < maxTries) {
-			try {
-				Upload u = tm.upload(bucketName, key, file);
+			try (HashingInputStream in = new HashingInputStream(file, 0, file.length())){
+				ObjectMetadata om = new ObjectMetadata();
+				om.setContentLength(file.length());
+				Upload u = tm.upload(new PutObjectRequest(bucketName, key, bandwidth == null ? in : new ThrottledInputStream(in, bandwidth), om));
 				u.waitForCompletion();
 				String etag = null;
 		        if (u.getState().equals(Transfer.TransferState.Completed)) {
 		        	etag = u.waitForUploadResult().getETag();
 		        }
-		        if (etag == null) throw new IOException("ERROR failed tm.upload("+bucketName+", "+key+", "+file+")");
-		        return etag;
+		        if (etag == null || in.getNumBytes() != file.length()) throw new IOException("ERROR failed tm.upload("+bucketName+", "+key+", "+file+")");
+		        addHashStats(in.getNumBytes(), in.getCpuNanos());
+		        return new UploadedChecksums(etag, RangedDownloader.hex(in.getSha256()), 0);
 			} catch (AmazonServiceException ase) {
 				error = Util.getStackTrace(ase);
+				numUploadRetries.incrementAndGet();
+				if (fileConcurrency != null && ConcurrencyController.isThrottle(ase)) fileConcurrency.throttled();
 				sleep("\tWARNING: failed 'tm.upload(bucketName, key, file)' trying again, "+attempt);
 			}
 			catch ( InterruptedException ie) {
 				error = Util.getStackTrace(ie);
+				numUploadRetries.incrementAndGet();
 				sleep("\tWARNING: failed 'tm.upload(bucketName, key, file)' trying again, "+attempt);
 			}
 			catch (SdkClientException sce) {
 				error = Util.getStackTrace(sce);
+				numUploadRetries.incrementAndGet();
 				sleep("\tWARNING: failed 'tm.upload(bucketName, key, file)' trying again, "+attempt);
 			};
 		}
@@ -652,14 +1036,15 @@ public class GSync {
 
 
 	private void removeLocalFromUploadCandidates() throws IOException {
+		//these files came from the scan so their paths are already canonical
 		// remove localFileAlreadyUploaded from candidatesForUpload
-		for (File f: localFileAlreadyUploaded) candidatesForUpload.remove(f.getCanonicalPath().replaceFirst(deleteFromKey, ""));
+		for (File f: localFileAlreadyUploaded) candidatesForUpload.remove(keyMapper.toKey(f.getPath()));
 
 		// remove localFileAlreadyUploadedButDiffSizeEtag from candidatesForUpload
-		for (File f: localFileAlreadyUploadedButDiffSize) candidatesForUpload.remove(f.getCanonicalPath().replaceFirst(deleteFromKey, ""));
+		for (File f: localFileAlreadyUploadedButDiffSize) candidatesForUpload.remove(keyMapper.toKey(f.getPath()));
 
 		// remove localFileAlreadyUploadedNoPlaceholder from candidatesForUpload
-		for (File f: localFileAlreadyUploadedNoPlaceholder) candidatesForUpload.remove(f.getCanonicalPath().replaceFirst(deleteFromKey, ""));
+		for (File f: localFileAlreadyUploadedNoPlaceholder) candidatesForUpload.remove(keyMapper.toKey(f.getPath()));
 
 	}
 
@@ -696,7 +1081,7 @@ public class GSync {
 			//just warn?
 			if (restorePlaceholderFiles  ==  false ) {
 				pl("\nThe following are S3 objects with no local placeholder file. Deleted? Consider deleting the S3 Object or recreating the placeholder with the -c option. Address and restart.");
-				for (String f: s3KeyWithNoLocal.keySet()) pl("\t"+f+"\t"+s3KeyWithNoLocal.get(f).getSize());
+				for (S3ObjectSummary os: s3KeyWithNoLocal) pl("\t"+os.getKey()+"\t"+os.getSize());
 				resultsCheckOK = false;
 			}
 			//not a dry run?
@@ -752,16 +1137,16 @@ public class GSync {
 	}
 
 	/*Not tested!*/
-	private boolean restorePlaceholders(LinkedHashMap<String, S3ObjectSummary> s3KeyWithNoLocal2) throws IOException {
+	private boolean restorePlaceholders(S3ObjectStore s3KeyWithNoLocal2) throws IOException {
 		if (restorePlaceholderFiles == false) return false;
 		// Need to build a placeholder file using the s3 object and write it to the appropriate place
 		//string PatientAnalysis/Avatar/AJobs/1100529/Alignment/1100529_TumorRNA/Bam/1100529_TumorRNA_Hg38.bai
 
-		for (String key: s3KeyWithNoLocal2.keySet() ) {
-			S3ObjectSummary os = s3KeyWithNoLocal2.get(key);
+		for (S3ObjectSummary os: s3KeyWithNoLocal2) {
+			String key = os.getKey();
 
 			//check if file exists, doesn't have to but if it does want to check the size
-			File f = new File(deleteFromKey+key);
+			File f = new File(keyMapper.toPath(key));
 
 			if (f.exists()) {
 				//check size
@@ -807,7 +1192,7 @@ public class GSync {
 			boolean deleteType = false;
 
 			//create the local file, it may or may not exist
-			File local = new File(deleteFromKey+p.getAttribute("key")).getCanonicalFile();		
+			File local = new File(keyMapper.toPath(p.getAttribute("key"))).getCanonicalFile();		
 			p.setLocalFile(local);
 
 			//found in S3
@@ -855,16 +1240,15 @@ public class GSync {
 		}
 	}
 
-	void pl(String s) {
+	synchronized void pl(String s) {
 		System.out.println(s);
-		log.append(s);
-		log.append("\n");
+		log.append(s+"\n");
 	}
-	void p(String s) {
+	synchronized void p(String s) {
 		System.out.print(s);
 		log.append(s);
 	}
-	void el(String s) {
+	synchronized void el(String s) {
 		System.err.println(s);
 		log.append(s);
 	}
@@ -872,54 +1256,116 @@ public class GSync {
 	private void scanBucket() throws IOException {
 
 		pl("\nScanning S3 bucket...");
-		s3 = AmazonS3ClientBuilder.standard().withRegion(region).build();
+		s3 = s3Client(region);
+
+		//only list the keys under the scanned directories, placeholder keys always match their paths so these are covered too
+		ArrayList<String> prefixes = bucketPrefixes();
+		BucketScanner bs = new BucketScanner(this, s3);
+		//each partition collects its unknown objects in key order, these are joined in partition order as each completes, all share the -m limit
+		AtomicLong sharedBytes = new AtomicLong();
+		long maxBytes = maxMemoryMB * 1024l * 1024l;
+		s3KeyWithNoLocal.close();
+		s3KeyWithNoLocal = new S3ObjectStore(bucketName, maxBytes, stateDir, sharedBytes);
+		ConcurrentHashMap<Integer, S3ObjectStore> partitionUnknown = new ConcurrentHashMap<Integer, S3ObjectStore>();
+		TreeSet<Integer> completed = new TreeSet<Integer>();
+		int[] nextToJoin = {0};
+		try {
+			bs.scan(prefixes, 
+				(Integer partition, List<S3ObjectSummary> page) -> matchS3Objects(page, partitionUnknown.computeIfAbsent(partition, p -> new S3ObjectStore(bucketName, maxBytes, stateDir, sharedBytes))),
+				(int partition) -> {
+					synchronized (completed) {
+						completed.add(partition);
+						while (completed.remove(nextToJoin[0])) {
+							S3ObjectStore store = partitionUnknown.remove(nextToJoin[0]++);
+							if (store == null) continue;
+							s3KeyWithNoLocal.addAll(store);
+							store.close();
+						}
+					}
+				});
+		} finally {
+			//only left after a failed listing
+			for (S3ObjectStore store: partitionUnknown.values()) store.close();
+		}
+		s3.shutdown();
 
-		S3Objects.inBucket(s3, bucketName).forEach((S3ObjectSummary os) -> {
-			String key = os.getKey();
+		//listed concurrently, restore a stable order for the reports
+		Collections.sort(localFileAlreadyUploaded);
+		Collections.sort(localFileAlreadyUploadedButDiffSize);
+		Collections.sort(localFileAlreadyUploadedNoPlaceholder);
+		numS3Objects = bs.getNumObjects();
+		if (verbose) pl("\tListed "+Util.stringArrayToString(BucketScanner.collapsePrefixes(prefixes).toArray(new String[0]), ", ")+" : "+bs.getSummary());
+	}
+
+	/**The key prefix of each directory to scan.*/
+	private ArrayList<String> bucketPrefixes() throws IOException {
+		ArrayList<String> prefixes = new ArrayList<String>();
+		for (File d: dirsToScan) {
+			String prefix = keyMapper.toKey(d.getCanonicalPath());
+			if (prefix.length() != 0 && prefix.endsWith("/") == false) prefix = prefix+ "/";
+			prefixes.add(prefix);
+		}
+		return prefixes;
+	}
 
-			//check candidatesForUpload
-			if (candidatesForUpload.containsKey(key)) {
-				//OK, a local fat old file with the same name has already been uploaded to S3
-				//check size and etag
-				if (os.getSize() == candidatesForUpload.get(key).length()) {
+	private S3ObjectStore newS3ObjectStore(long megaBytes) {
+		return new S3ObjectStore(bucketName, megaBytes * 1024l * 1024l, stateDir);
+	}
+
+	/**Compares a page of S3 objects against the local candidates and placeholders, unknown objects are saved to the partition's store. Called
+	 * concurrently, one thread per partition. The candidates and placeholders are only read and a key is in just one partition, so only the
+	 * already uploaded lists need the lock, the GSync monitor is left to the logging and upload workers.*/
+	private void matchS3Objects(List<S3ObjectSummary> page, S3ObjectStore unknown) {
+		for (S3ObjectSummary os: page) matchS3Object(os, unknown);
+	}
+
+	private void matchS3Object(S3ObjectSummary os, S3ObjectStore unknown) {
+		String key = os.getKey();
+		//shard leases and reports
+		if (key.startsWith(ShardLeaser.PREFIX)) return;
+
+		//check candidatesForUpload
+		LocalFileInfo candidate = candidatesForUpload.get(key);
+		if (candidate != null) {
+			//OK, a local fat old file with the same name has already been uploaded to S3
+			//check size and etag, the size was read during the scan
+			synchronized (alreadyUploadedLock) {
+				if (os.getSize() == candidate.getSize()) {
 					//check for a placeholder
-					if (placeholders.containsKey(key))localFileAlreadyUploaded.add(candidatesForUpload.get(key));
-					else  localFileAlreadyUploadedNoPlaceholder.add(candidatesForUpload.get(key));
+					if (placeholders.containsKey(key))localFileAlreadyUploaded.add(candidate.getFile());
+					else  localFileAlreadyUploadedNoPlaceholder.add(candidate.getFile());
 				}
-				else localFileAlreadyUploadedButDiffSize.add(candidatesForUpload.get(key));
+				else localFileAlreadyUploadedButDiffSize.add(candidate.getFile());
 			}
+		}
 
-			//check placeholders
-			if (placeholders.containsKey(key)) {
-				//OK, a local placeholder file contains the aws key
-				Placeholder p = placeholders.get(key);
-				p.setFoundInS3(true);
-				//Set storage class STANDARD, DEEP_ARCHIVE, GLACIER
-				p.setStorageClass(os.getStorageClass());
-				//check size
-				String size = p.getAttribute("size");
-				if (Long.parseLong(size) == os.getSize()) p.setS3SizeMatches(true);
-				else p.setS3SizeMatches(false);
-				//check etag
-				if (p.getAttribute("etag").equals(os.getETag())) p.setS3EtagMatches(true);
-				else p.setS3EtagMatches(false);
-			}
+		//check placeholders
+		if (placeholders.containsKey(key)) {
+			//OK, a local placeholder file contains the aws key
+			Placeholder p = placeholders.get(key);
+			p.setFoundInS3(true);
+			//Set storage class STANDARD, DEEP_ARCHIVE, GLACIER
+			p.setStorageClass(os.getStorageClass());
+			//check size
+			String size = p.getAttribute("size");
+			if (Long.parseLong(size) == os.getSize()) p.setS3SizeMatches(true);
+			else p.setS3SizeMatches(false);
+			//check etag
+			if (p.getAttribute("etag").equals(os.getETag())) p.setS3EtagMatches(true);
+			else p.setS3EtagMatches(false);
+		}
 
-			else if (os.getSize() != 0) {
-				//OK, this is an unknown s3 object with no local reference
-				//s3KeyWithNoLocal.add(key);
-				s3KeyWithNoLocal.put(key, os);
-			}
-		});
-		s3.shutdown();
+		else if (os.getSize() != 0) {
+			//OK, this is an unknown s3 object with no local reference
+			unknown.add(os);
+		}
 	}
 
 	/**Check the placeholders for issues.*/
 	private void parsePlaceholderFiles() throws IOException {
 		pl("\nChecking local placeholder files...");
 		placeholders = new HashMap<String, Placeholder>();
-		for (File f: placeholderFiles) {
-			Placeholder p = new Placeholder(f,deleteFromKey, this);
+		for (Placeholder p: loadPlaceholders()) {
 			String key = p.getAttribute("key");
 
 			//does the path match the key?
@@ -952,64 +1398,88 @@ public class GSync {
 		else if (verbose) pl("\t"+placeholders.size()+" passing placeholder files");
 	}
 
-	void scanLocalDir() throws IOException {
-		pl("\nScanning local directory...");
-		for (File d: dirsToScan) scanDirectory(d, fileExtensions);
-		if (verbose) pl("\t"+candidatesForUpload.size()+" candidate files with indexes for upload");
+	/**Parses the placeholder files in parallel, in placeholderFiles order. With an index directory, unchanged placeholders are loaded from the
+	 * PlaceholderCache instead of being read again.*/
+	private Placeholder[] loadPlaceholders() throws IOException {
+		File[] files = placeholderFiles.toArray(new File[placeholderFiles.size()]);
+		Placeholder[] parsed = new Placeholder[files.length];
+		if (files.length == 0) return parsed;
+
+		File cacheFile = null;
+		PlaceholderCache prior = null;
+		PlaceholderCache cache = null;
+		if (stateDir != null) {
+			cacheFile = new File(stateDir, PlaceholderCache.CACHE_FILE_NAME);
+			prior = PlaceholderCache.load(cacheFile);
+			cache = new PlaceholderCache();
+		}
+		final PlaceholderCache fPrior = prior;
+		final PlaceholderCache fCache = cache;
+		//placeholders modified this close to now may change again within the file system's time resolution, these aren't cached
+		final long racyTime = System.currentTimeMillis() - 2000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, files.length));
+		try {
+			ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+			int chunk = Math.max(1, files.length / (numThreads * 4));
+			for (int start = 0; start < files.length; start += chunk) {
+				int s = start;
+				int e = Math.min(files.length, start + chunk);
+				futures.add(executor.submit(() -> {
+					for (int i = s; i < e; i++) parsed[i] = parsePlaceholder(files[i], fPrior, fCache, racyTime);
+					return null;
+				}));
+			}
+			for (Future<Object> f: futures) f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (cache != null) {
+			cache.save(cacheFile);
+			if (verbose && prior != null) pl("\t"+prior.getNumHits()+" placeholders loaded from the cache, "+prior.getNumMisses()+" parsed");
+		}
+		return parsed;
 	}
 
-	/**Fetches all files with a given extension, min size, min age, not symbolic links. Also save any that are aws uploaded placeholder files and restore placeholder files.
-	 * Includes indexes for bam, cram, and tabix gz if present*/
-	private void scanDirectory (File directory, String[] fileExtensions) throws IOException{ 
-		//is the dir symlinked?
-		if (Files.isSymbolicLink(directory.toPath())) return;
+	private Placeholder parsePlaceholder(File f, PlaceholderCache prior, PlaceholderCache cache, long racyTime) throws IOException {
+		if (cache == null) return new Placeholder(f, keyMapper, this);
+		BasicFileAttributes a = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		long lastModified = a.lastModifiedTime().toMillis();
+		HashMap<String, String> attributes = prior == null ? null : prior.get(f.getPath(), lastModified, a.size());
+		if (attributes == null) attributes = Util.parseKeyValues(f);
+		if (lastModified < racyTime) cache.put(f.getPath(), lastModified, a.size(), attributes);
+		return new Placeholder(f, attributes, keyMapper, this);
+	}
 
-		File[] list = directory.listFiles();
-		for (int i=0; i< list.length; i++){
-			if (list[i].isDirectory()) scanDirectory (list[i], fileExtensions);
-			else {
-				//matching extension?
-				String fileName = list[i].getName();
-				boolean match = false;
-				for (String ext: fileExtensions) {
-					if (fileName.endsWith(ext)) {
-						match = true;
-						break;
-					}
-				}
-				//symlink?
-				Path path = list[i].toPath();
-				boolean symlink = Files.isSymbolicLink(path);
-
-				//don't proc for now, major issues
-				//if (updateSymlinks && symlink) updateSymlink(path);
-
-				if (match) {
-					if (symlink == false) {
-						//size?
-						double size = Util.gigaBytes(list[i]);
-						if (size >= minGigaBytes) {
-
-							//age in days?
-							int age = Util.ageOfFileInDays(list[i]);
-							if (age >= minDaysOld) {
-								candidatesForUpload.put(list[i].getCanonicalPath().replaceFirst(deleteFromKey, ""), list[i].getCanonicalFile());
-								if (verbose) pl("\tAdding upload candidate "+ list[i].getCanonicalFile());
-								//look for index file
-								File index = findIndex(list[i]);
-								if (index != null) {
-									candidatesForUpload.put(index.getCanonicalPath().replaceFirst(deleteFromKey, ""), index.getCanonicalFile());
-									if (verbose) pl("\tAdding upload candidate index "+ index.getCanonicalPath());
-								}
-							}
-						}
-					}
-				}
-				else if (fileName.contains(Placeholder.PLACEHOLDER_EXTENSION) && symlink == false) {
-					placeholderFiles.add(list[i].getCanonicalFile());
-					if (verbose) pl("\tPlaceholder found "+ list[i].getCanonicalPath());
-				}
-			}
+	void scanLocalDir() throws IOException {
+		pl("\nScanning local directory...");
+		DirectoryScanner scanner = new DirectoryScanner(this);
+		File indexFile = null;
+		if (stateDir != null) indexFile = new File(stateDir, ScanIndex.INDEX_FILE_NAME);
+		scanner.setPipeline(pipeline);
+		//watch daemon with an up to date index?
+		if (watcher != null && watcher.isFullScanRequired() == false) {
+			scanner.useWatchedIndex(watcher.getIndex(), watcher.takeDirtyDirectories(), watcher.getTrustedDirectories());
+		}
+		else {
+			if (watcher != null) watcher.takeDirtyDirectories();
+			if (indexFile != null) scanner.useIndex(indexFile);
+			else if (watcher != null) scanner.startIndex();
+		}
+		scanner.scan(dirsToScan);
+		if (indexFile != null) scanner.saveIndex(indexFile);
+		if (watcher != null) watcher.update(scanner.getNewIndex());
+		candidatesForUpload.putAll(scanner.getCandidatesForUpload());
+		placeholderFiles.addAll(scanner.getPlaceholderFiles());
+		if (verbose) {
+			pl("\t"+candidatesForUpload.size()+" candidate files with indexes for upload");
+			pl("\t"+scanner.getMetadataCallSummary());
 		}
 	}
 
@@ -1021,6 +1491,12 @@ public class GSync {
 		new GSync(args);
 	}	
 
+	/**Case insensitive match to Bulk, Standard, or Expedited.*/
+	static Tier parseTier(String tier) {
+		for (Tier t: Tier.values()) if (t.toString().equalsIgnoreCase(tier)) return t;
+		throw new IllegalArgumentException("Unknown restore tier '"+tier+"', use Bulk, Standard, or Expedited");
+	}
+
 	/**This method will process each argument and assign new variables*/
 	public void processArgs(String[] args) {
 		try {
@@ -1046,7 +1522,20 @@ public class GSync {
 						case 'u': updateS3Keys = true; break;
 						case 'c': restorePlaceholderFiles = true; break;
 						case 'k': deleteUploaded = true; break;
+						case 'v': verifyBeforeDelete = false; break;
 						case 'x': rerunUntilComplete = true; break;
+						case 't': numThreads = Integer.parseInt(args[++i]); break;
+						case 'i': stateDir = new File(args[++i]).getCanonicalFile(); break;
+						case 'w': watchMinutes = Integer.parseInt(args[++i]); break;
+						case 'n': numUploads = Integer.parseInt(args[++i]); break;
+						case 'p': pipelined = true; break;
+						case 'm': maxMemoryMB = Long.parseLong(args[++i]); break;
+						case 'l': restoreTier = parseTier(args[++i]); break;
+						case 'o': orphanDays = Integer.parseInt(args[++i]); break;
+						case 'z': bandwidthSchedule = args[++i]; break;
+						case 'j': executePlan = true; break;
+						case 'y': numShards = Integer.parseInt(args[++i]); break;
+						case 'U': uploadOrder = args[++i]; break;
 						case 'h': printDocs(); System.exit(0);
 						default: Util.printExit("\nProblem, unknown option! " + mat.group());
 						}
@@ -1057,6 +1546,59 @@ public class GSync {
 				}
 			}
 
+			if (numThreads < 1) {
+				el("\nError: the number of scan threads must be > 0.\n");
+				System.exit(1);
+			}
+			if (numUploads < 1) {
+				el("\nError: the number of concurrent uploads must be > 0.\n");
+				System.exit(1);
+			}
+			if (orphanDays < 1) {
+				el("\nError: the days before aborting orphaned multipart uploads must be > 0.\n");
+				System.exit(1);
+			}
+			if (maxMemoryMB < 1) {
+				el("\nError: the MB of S3 keys to hold in memory must be > 0.\n");
+				System.exit(1);
+			}
+
+			if (stateDir != null && stateDir.isDirectory() == false) {
+				el("\nError: the -i directory for saving GSync index files doesn't exist, create it and restart.\n");
+				System.exit(1);
+			}
+			//the full log, only its head and tail are emailed
+			if (stateDir != null) log.setFile(new File(stateDir, LOG_FILE_NAME), LogSink.DEFAULT_MAX_FILE_CHARS, LogSink.DEFAULT_MAX_FILES);
+
+			if (executePlan) {
+				if (stateDir == null || dryRun || watchMinutes > 0) {
+					el("\nError: executing a dry run's plan with -j needs -r and the -i index directory holding the plan, and can't watch with -w.\n");
+					System.exit(1);
+				}
+			}
+
+			if (numShards < 0 || (numShards > 0 && (executePlan || watchMinutes > 0))) {
+				el("\nError: the -y number of shards must be >= 0 and can't be combined with -j or -w.\n");
+				System.exit(1);
+			}
+
+			try {
+				uploadScheduler = new UploadScheduler(uploadOrder);
+			} catch (IllegalArgumentException e) {
+				el("\nError: "+e.getMessage()+"\n");
+				System.exit(1);
+			}
+
+			//a cap, or the chance to set one later with the control file in the index dir, lasts across watch daemon reconciles
+			if (bandwidthSchedule != null || stateDir != null) {
+				try {
+					bandwidth = new BandwidthLimiter(bandwidthSchedule, stateDir == null ? null : new File(stateDir, BandwidthLimiter.CONTROL_FILE_NAME));
+				} catch (IllegalArgumentException e) {
+					el("\nError: "+e.getMessage()+"\n");
+					System.exit(1);
+				}
+			}
+
 			//create dirs
 			if (dirString == null) {
 				el("\nError: please provide one or more directories to sync with S3, comma delimited, no spaces, relative path.\n");
@@ -1123,6 +1665,7 @@ public class GSync {
 		File parent = new File(prior).getCanonicalFile();
 		deleteFromKey = parent.getParentFile().getCanonicalPath()+"/";
 		if (deleteFromKey.equals("//")) deleteFromKey = "/";	
+		keyMapper = new PathKeyMapper(deleteFromKey);
 	}
 
 	private void printOptions() {
@@ -1139,7 +1682,20 @@ public class GSync {
 		pl("  -e Email                     : "+ email);
 		pl("  -s Smtp host                 : "+ smtpHost);
 		pl("  -k Delete local after upload : "+ deleteUploaded);
+		pl("  -v Verify ETag before delete : "+ verifyBeforeDelete);
 		pl("  -x Rerun till complete       : "+ rerunUntilComplete);
+		pl("  -t Scan threads              : "+ numThreads);
+		pl("  -i Index directory           : "+ stateDir);
+		pl("  -w Watch, reconcile minutes  : "+ watchMinutes);
+		pl("  -n Concurrent uploads        : "+ numUploads);
+		pl("  -p Stream uploads during scan: "+ pipelined);
+		pl("  -m Max MB of S3 keys in RAM  : "+ maxMemoryMB);
+		pl("  -l Archive restore tier      : "+ restoreTier);
+		pl("  -o Abort orphan uploads, days: "+ orphanDays);
+		pl("  -z Bandwidth schedule, Mbps  : "+ (bandwidthSchedule == null ? "unlimited" : bandwidthSchedule));
+		pl("  -j Execute dry run plan      : "+ executePlan);
+		pl("  -y Number of shards          : "+ numShards);
+		pl("  -U Upload order              : "+ uploadScheduler.getDescription());
 	}
 
 	public void printDocs(){
@@ -1154,7 +1710,8 @@ public class GSync {
 				"Amazon's S3 object store. Associated genomic index files are also moved. Once \n"+
 				"correctly uploaded, GSync replaces the original file with a local txt placeholder file \n"+
 				"containing information about the S3 object. Files are restored or deleted by modifying\n"+
-				"the name of the placeholder file. Symbolic links are ignored.\n"+
+				"the name of the placeholder file. Symbolic links are ignored. Files are hashed as they\n"+
+				"upload, the placeholder records a SHA-256 and, for multipart uploads, the part size.\n"+
 
 				"\nWARNING! This app has the potential to destroy precious genomic data. TEST IT on a\n"+
 				"pilot system before deploying in production. BACKUP your local files and ENABLE S3\n"+
@@ -1205,13 +1762,63 @@ public class GSync {
 				"-g Minimum gigabyte size for archiving, defaults to 5\n"+
 				"-r Perform a real run, defaults to just listing the actions that would be taken.\n"+
 				"-k Delete local files that were successfully uploaded.\n"+
+				"-v Skip verifying the local ETag against the placeholder's before deleting files\n"+
+				"    uploaded by a prior run, e.g. for SSE-KMS buckets whose ETags aren't MD5s. Parts\n"+
+				"    are hashed in parallel. Files uploaded in this run are checked as they're sent.\n"+
 				"-u Update S3 Object keys to match current placeholder paths.\n"+
 				"-c Recreate deleted placeholder files using info from orphaned S3 Objects.\n"+
 				"-q Quiet verbose output.\n"+
 				"-e Email addresses to send gsync messages, comma delimited, no spaces.\n"+
 				"-s Smtp host, defaults to hci-mail.hci.utah.edu\n"+
 				"-x Execute every 6 hrs until complete, defaults to just once, good for downloading\n"+
-				"    latent glacier objects.\n"+
+				"    latent glacier objects. Pending restores are awaited in the same run and each\n"+
+				"    object is downloaded as soon as its restore completes.\n"+
+				"-t Number of threads for walking the local directories and listing the bucket,\n"+
+				"    defaults to 8. Network file systems (NFS, Lustre) benefit from more threads\n"+
+				"    than cores. Only the keys under the local directories are listed.\n"+
+				"-i Directory to save GSync index files, one per job. Enables incremental rescans,\n"+
+				"    unchanged directories (same modification time) are not listed again and\n"+
+				"    unchanged placeholder files are loaded from a cache instead of being parsed.\n"+
+				"    The full log is streamed to gsyncLog.txt.gz there, rotated every 100M, the\n"+
+				"    email holds just its head and tail. Each run's phase times, item and byte counts,\n"+
+				"    S3 requests by API, retries, and peak heap are appended as a line of JSON to\n"+
+				"    gsyncRunReports.json for trending.\n"+
+				"-w Run as a watch daemon reconciling with S3 every X minutes. After one full scan,\n"+
+				"    local changes are tracked with inotify so only changed directories are listed.\n"+
+				"    Defaults to a single run. Raise fs.inotify.max_user_watches for large trees.\n"+
+				"-n Number of files to upload or restore at once, defaults to 4. Each file's placeholder is\n"+
+				"    written as soon as its upload completes. Uploads start at half this and adapt, up\n"+
+				"    while throughput grows, halving when S3 returns SlowDown.\n"+
+				"-p Pipeline, start uploading candidates during the local scan. Each candidate without\n"+
+				"    a placeholder is checked with a HEAD request and uploaded if absent from S3.\n"+
+				"    The regular bucket scan and checks follow. Ignored with -u and in dry runs.\n"+
+				"-m MB of unmatched S3 keys to hold in memory before spilling to a temp file in the\n"+
+				"    -i directory or the system temp directory, defaults to 256.\n"+
+				"-l Archive restore tier, Bulk, Standard, or Expedited, defaults to Standard. Restore\n"+
+				"    requests are placed concurrently, DEEP_ARCHIVE objects fall back to Standard\n"+
+				"    for Expedited. Downloads use the -n number of concurrent transfers.\n"+
+				"-o Days before aborting incomplete multipart uploads under the local directories,\n"+
+				"    defaults to 7. With -i, files over 256MB are uploaded in journaled parts so a\n"+
+				"    killed run resumes from the last completed part.\n"+
+				"-z Bandwidth cap for uploads and restore downloads, comma separated startHour-endHour:Mbps,\n"+
+				"    e.g. 7-19:2000 for 2 Gbps from 7am to 7pm and unlimited otherwise, or a lone Mbps\n"+
+				"    for all day. With -i, a gsyncBandwidth.txt file in the index directory overrides\n"+
+				"    it with the same syntax, checked every 5 seconds, delete it to return to -z.\n"+
+				"-j Execute the plan saved by the last dry run in the -i index directory instead of\n"+
+				"    rescanning, requires -r. Dry runs with -i save the uploads, restores, deletes,\n"+
+				"    key updates, and already uploaded files found. Each is rechecked with a stat and\n"+
+				"    a HEAD request, those changed since are skipped for the next full run.\n"+
+				"-y Number of shards, run one GSync with the same options on each of several nodes\n"+
+				"    to split the uploads, restores, deletes, and key updates by key hash. Each leases\n"+
+				"    a free shard with an object under .gsync/shards/ in the bucket, the last to\n"+
+				"    finish prints the merged report. Shards no node leased within 10 minutes of the\n"+
+				"    last finishing are listed as ERROR, start all the nodes within that window.\n"+
+				"    Every node still scans. Not with -j or -w. Claiming a lease waits out the worst\n"+
+				"    case S3 write time with retries, about 6 minutes, so racing nodes can't both win.\n"+
+				"-U Upload order, largest (default), oldest, or directory for round robin across\n"+
+				"    directories, plus optional budgets to stop handing out files once reached, e.g.\n"+
+				"    largest,2T,6h. Bytes in K, G, or T, time in h or min. The rest are left for the next\n"+
+				"    run, with -x after the wait. Files streamed during the scan with -p aren't ordered.\n"+
 
 				"\nExample: java -Xmx20G -jar pathTo/GSync_X.X.jar -r -u -k -b hcibioinfo_gsync_repo \n"+
 				"     -q -a 90 -g 1 -d -d /Repo/DNA,/Repo/RNA,/Repo/Fastq -e obama@real.gov\n\n"+
@@ -1224,9 +1831,10 @@ public class GSync {
 		dirsToScan = new File[1];
 		dirsToScan[0] = localDir;
 		deleteFromKey = localDir.getParentFile().getCanonicalPath()+"/";
+		keyMapper = new PathKeyMapper(deleteFromKey);
 	}
 
-	public HashMap<String, File> getCandidatesForUpload() {
+	public HashMap<String, LocalFileInfo> getCandidatesForUpload() {
 		return candidatesForUpload;
 	}
 
@@ -1287,7 +1895,7 @@ public class GSync {
 	}
 
 
-	public LinkedHashMap<String, S3ObjectSummary> getS3KeyWithNoLocal() {
+	public S3ObjectStore getS3KeyWithNoLocal() {
 		return s3KeyWithNoLocal;
 	}
 
@@ -1313,4 +1921,77 @@ public class GSync {
 		this.restorePlaceholderFiles = restorePlaceholderFiles;
 	}
 
+	public String[] getFileExtensions() {
+		return fileExtensions;
+	}
+
+	public double getMinGigaBytes() {
+		return minGigaBytes;
+	}
+
+	public int getMinDaysOld() {
+		return minDaysOld;
+	}
+
+	public String getDeleteFromKey() {
+		return deleteFromKey;
+	}
+
+	/**Null if uncapped with no index dir for a control file.*/
+	public BandwidthLimiter getBandwidth() {
+		return bandwidth;
+	}
+
+	public PathKeyMapper getKeyMapper() {
+		return keyMapper;
+	}
+
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public File getStateDir() {
+		return stateDir;
+	}
+
+	public void setStateDir(File stateDir) {
+		this.stateDir = stateDir;
+	}
+
+	public int getMaxTries() {
+		return maxTries;
+	}
+
+	public int getMinToWait() {
+		return minToWait;
+	}
+
+	public void setMinToWait(int minToWait) {
+		this.minToWait = minToWait;
+	}
+
+	public int getNumUploads() {
+		return numUploads;
+	}
+
+	public Tier getRestoreTier() {
+		return restoreTier;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
 }
@@ -0,0 +1,156 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import edu.utah.hci.aws.util.Util;
+
+/**The actions a dry run found: uploads, restores, deletes, key updates, and already uploaded local files, each with the size and modification time
+ * of the file seen, the local file for uploads and the placeholder for the rest. Saved in the GSync index directory so the reviewed plan can be
+ * executed with -j, revalidating each entry with a stat and a HEAD request instead of rescanning the directories and the bucket.*/
+public class GSyncPlan {
+
+	public static final String PLAN_FILE_NAME = "gsyncPlan.bin.gz";
+	private static final int VERSION = 1;
+
+	//entry types
+	public static final byte UPLOAD = 0;
+	public static final byte RESTORE = 1;
+	public static final byte DELETE = 2;
+	public static final byte KEY_UPDATE = 3;
+	public static final byte LOCAL_DELETE = 4;
+	private static final String[] TYPE_NAMES = {"uploads", "restores", "deletes", "key updates", "already uploaded local files"};
+
+	//fields
+	private String bucketName;
+	private String dirs;
+	private long created;
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	public static class Entry {
+		final byte type;
+		final String path;
+		final String key;
+		final long size;
+		final long lastModified;
+
+		Entry(byte type, String path, String key, long size, long lastModified) {
+			this.type = type;
+			this.path = path;
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**True if the file is unchanged since the dry run.*/
+		boolean matches(File f) {
+			return f.exists() && f.length() == size && f.lastModified() == lastModified;
+		}
+
+		public String toString() {
+			return TYPE_NAMES[type]+"\t"+key+"\t"+path;
+		}
+	}
+
+	/**@param dirs the canonical directories scanned, comma delimited, a plan only runs against the same bucket and directories*/
+	public GSyncPlan(String bucketName, String dirs) {
+		this.bucketName = bucketName;
+		this.dirs = dirs;
+		created = System.currentTimeMillis();
+	}
+
+	/**Adds an upload with the size and time seen by the scan.*/
+	public void addUpload(String key, LocalFileInfo f) {
+		entries.add(new Entry(UPLOAD, f.getPath(), key, f.getSize(), f.getLastModified()));
+	}
+
+	/**Adds a placeholder based action, or a LOCAL_DELETE of the file, statting it now.*/
+	public void add(byte type, File f, String key) {
+		entries.add(new Entry(type, f.getPath(), key, f.length(), f.lastModified()));
+	}
+
+	/**Writes to a temp file then moves it into place so a crash never leaves a partial plan.*/
+	public void save(File planFile) throws IOException {
+		File tmp = new File(planFile.getParentFile(), planFile.getName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))){
+			out.writeInt(VERSION);
+			out.writeUTF(bucketName);
+			out.writeUTF(dirs);
+			out.writeLong(created);
+			out.writeInt(entries.size());
+			for (Entry e: entries) {
+				out.writeByte(e.type);
+				out.writeUTF(e.path);
+				out.writeUTF(e.key);
+				out.writeLong(e.size);
+				out.writeLong(e.lastModified);
+			}
+		}
+		Files.move(tmp.toPath(), planFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**@throws IOException if missing or from a different version*/
+	public static GSyncPlan load(File planFile) throws IOException {
+		if (planFile.exists() == false) throw new IOException("No plan file "+planFile+", run GSync without -r and -j to create one.");
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(planFile))))){
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("The plan "+planFile+" is from a different GSync version, "+version+", rerun the dry run.");
+			GSyncPlan plan = new GSyncPlan(in.readUTF(), in.readUTF());
+			plan.created = in.readLong();
+			int num = in.readInt();
+			for (int i=0; i< num; i++) plan.entries.add(new Entry(in.readByte(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+			return plan;
+		}
+	}
+
+	/**Entries of one type, in the order added.*/
+	public ArrayList<Entry> getEntries(byte type) {
+		ArrayList<Entry> al = new ArrayList<Entry>();
+		for (Entry e: entries) if (e.type == type) al.add(e);
+		return al;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public String getBucketName() {
+		return bucketName;
+	}
+
+	public String getDirs() {
+		return dirs;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	/**e.g. '3 uploads (12.1 GB), 1 restores'*/
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (byte t = 0; t< TYPE_NAMES.length; t++) {
+			ArrayList<Entry> al = getEntries(t);
+			if (al.size() == 0) continue;
+			if (sb.length() != 0) sb.append(", ");
+			sb.append(al.size()+" "+TYPE_NAMES[t]);
+			if (t == UPLOAD) {
+				long size = 0;
+				for (Entry e: al) size += e.size;
+				sb.append(" ("+Util.formatSize(size)+")");
+			}
+		}
+		if (sb.length() == 0) return "nothing to do";
+		return sb.toString();
+	}
+}
@@ -0,0 +1,159 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Keeps the GSync scan state current between reconciles using a WatchService (inotify on linux). Every directory in the scan index is registered,
+ * events mark their directory dirty so only dirty directories are listed again on the next scan. Clean watched directories are reused without
+ * a single metadata call. Directories registered during the last reconcile fall back to the mtime check for one cycle since events may have been
+ * missed between their listing and registration. An event overflow forces a full rescan.*/
+public class GSyncWatcher implements Runnable {
+
+	//fields
+	private GSync gsync;
+	private WatchService watchService;
+	private Thread eventThread;
+	private ScanIndex index = null;
+	private ConcurrentHashMap<WatchKey, String> keyDirectory = new ConcurrentHashMap<WatchKey, String>();
+	/**Directory : the reconcile cycle it was registered in*/
+	private ConcurrentHashMap<String, Integer> directoryCycle = new ConcurrentHashMap<String, Integer>();
+	private ConcurrentHashMap<String, WatchKey> directoryKey = new ConcurrentHashMap<String, WatchKey>();
+	private Set<String> dirtyDirectories = ConcurrentHashMap.newKeySet();
+	private volatile boolean overflow = false;
+	private int cycle = 0;
+	private int numFailedRegistrations = 0;
+
+	//metrics
+	private AtomicLong numEvents = new AtomicLong(0);
+	private AtomicLong numEventsThisCycle = new AtomicLong(0);
+	private AtomicLong numOverflows = new AtomicLong(0);
+
+	public GSyncWatcher(GSync gsync) throws IOException {
+		this.gsync = gsync;
+		watchService = FileSystems.getDefault().newWatchService();
+		eventThread = new Thread(this, "GSyncWatcher");
+		eventThread.setDaemon(true);
+		eventThread.start();
+	}
+
+	/**The event loop, marks the directory of each event dirty.*/
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				String dir = keyDirectory.get(key);
+				for (WatchEvent<?> event: key.pollEvents()) {
+					numEvents.incrementAndGet();
+					numEventsThisCycle.incrementAndGet();
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+						numOverflows.incrementAndGet();
+					}
+					else if (dir != null) dirtyDirectories.add(dir);
+				}
+				//no longer valid, e.g. the directory was deleted, its parent will see the delete event
+				if (key.reset() == false && dir != null) {
+					keyDirectory.remove(key);
+					directoryKey.remove(dir);
+					directoryCycle.remove(dir);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//shutting down
+		}
+	}
+
+	/**True if this is the first scan or an overflow lost events, either requires a full scan.*/
+	public synchronized boolean isFullScanRequired() {
+		return index == null || overflow;
+	}
+
+	/**Call at the start of each scan, returns and clears the directories with events since the last call.*/
+	public synchronized Set<String> takeDirtyDirectories() {
+		HashSet<String> dirty = new HashSet<String>();
+		Iterator<String> it = dirtyDirectories.iterator();
+		while (it.hasNext()) {
+			dirty.add(it.next());
+			it.remove();
+		}
+		overflow = false;
+		numEventsThisCycle.set(0);
+		return dirty;
+	}
+
+	/**Watched directories that were registered before the last scan, these can be trusted if not dirty.*/
+	public synchronized Set<String> getTrustedDirectories() {
+		HashSet<String> trusted = new HashSet<String>();
+		for (Map.Entry<String, Integer> e: directoryCycle.entrySet()) {
+			if (e.getValue() < cycle) trusted.add(e.getKey());
+		}
+		return trusted;
+	}
+
+	/**Call after each scan with its index. Registers new directories and cancels the watches on those no longer present.*/
+	public synchronized void update(ScanIndex newIndex) {
+		index = newIndex;
+		//cancel
+		Iterator<Map.Entry<String, WatchKey>> it = directoryKey.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, WatchKey> e = it.next();
+			if (newIndex.get(e.getKey()) == null) {
+				e.getValue().cancel();
+				keyDirectory.remove(e.getValue());
+				directoryCycle.remove(e.getKey());
+				it.remove();
+			}
+		}
+		//register
+		numFailedRegistrations = 0;
+		for (String dir: newIndex.getListings().keySet()) {
+			if (directoryKey.containsKey(dir)) continue;
+			try {
+				Path p = Paths.get(dir);
+				WatchKey key = p.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				keyDirectory.put(key, dir);
+				directoryKey.put(dir, key);
+				directoryCycle.put(dir, cycle);
+			} catch (IOException e) {
+				//likely out of inotify watches, see /proc/sys/fs/inotify/max_user_watches, these use the mtime check
+				numFailedRegistrations++;
+			}
+		}
+		cycle++;
+		if (numFailedRegistrations != 0) gsync.el("\tWARNING: failed to watch "+numFailedRegistrations+" directories, increase fs.inotify.max_user_watches? These will be checked by modification time.");
+	}
+
+	public ScanIndex getIndex() {
+		return index;
+	}
+
+	/**In memory state size and event backlog.*/
+	public synchronized String getStateSummary() {
+		long numFiles = 0;
+		if (index != null) for (DirectoryListing dl: index.getListings().values()) numFiles += dl.getFiles().length;
+		int numDirs = index == null ? 0 : index.size();
+		return "Watch state: "+numDirs+" directories, "+numFiles+" candidate and placeholder files, "+directoryKey.size()+" watched directories, "+
+		numFailedRegistrations+ " unwatched, "+dirtyDirectories.size()+" dirty directories pending, "+numEventsThisCycle.get()+" events since the last scan, "+
+		numEvents.get()+" total events, "+numOverflows.get()+" overflows";
+	}
+
+	public void shutdown() {
+		try {
+			watchService.close();
+		} catch (IOException e) {}
+		eventThread.interrupt();
+	}
+}
@@ -0,0 +1,98 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**Reads a region of a file for an upload request while computing its MD5 and SHA-256, so the bytes sent to S3 are hashed in the same pass.
+ * Tracks the thread CPU time spent hashing. Mark and reset are not supported, a failed request is retried with a new stream.*/
+public class HashingInputStream extends FilterInputStream {
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	//fields
+	private MessageDigest md5;
+	private MessageDigest sha256;
+	private long remaining;
+	private long numBytes = 0;
+	private long cpuNanos = 0;
+	private byte[] single = new byte[1];
+
+	/**@param offset where to start in the file
+	 * @param length the number of bytes to read*/
+	public HashingInputStream(File file, long offset, long length) throws IOException {
+		super(null);
+		FileInputStream fis = new FileInputStream(file);
+		fis.getChannel().position(offset);
+		in = new BufferedInputStream(fis, 1024 * 1024);
+		remaining = length;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			fis.close();
+			throw new IOException(e);
+		}
+	}
+
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		if (n == -1) return -1;
+		return single[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) return -1;
+		int n = in.read(b, off, (int)Math.min(len, remaining));
+		if (n == -1) return -1;
+		long start = threadBean.getCurrentThreadCpuTime();
+		md5.update(b, off, n);
+		sha256.update(b, off, n);
+		cpuNanos += threadBean.getCurrentThreadCpuTime() - start;
+		remaining -= n;
+		numBytes += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		throw new IOException("Skipping would leave bytes out of the checksums");
+	}
+
+	public int available() throws IOException {
+		return (int)Math.min(in.available(), remaining);
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**Reads whatever remains, used to hash a region without uploading it.*/
+	public void readToEnd() throws IOException {
+		byte[] buffer = new byte[1024 * 1024];
+		while (read(buffer, 0, buffer.length) != -1);
+	}
+
+	/**Call once the stream has been fully read.*/
+	public byte[] getMd5() {
+		return md5.digest();
+	}
+
+	/**Call once the stream has been fully read.*/
+	public byte[] getSha256() {
+		return sha256.digest();
+	}
+
+	public long getNumBytes() {
+		return numBytes;
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+}
@@ -0,0 +1,293 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import edu.utah.hci.aws.util.ETagCalculator;
+import edu.utah.hci.aws.util.RangedDownloader;
+import edu.utah.hci.aws.util.Util;
+
+/**Moves S3 objects to the keys of their relocated placeholders, several moves at once. Objects over 256MB are copied server side with multipart
+ * UploadPartCopy, parts in parallel. Parts follow the original upload's part size when known so the ETag, and the placeholder's partSize and sha256,
+ * stay valid. Each placeholder is rewritten as soon as its copy completes, the old keys are left for a batch delete. Stops handing out moves after
+ * the first error, moves already in flight complete.*/
+public class KeyMover {
+
+	/**Smaller objects are copied with a single CopyObject request.*/
+	public static final long MULTIPART_SIZE = 256l * 1024l * 1024l;
+	/**The largest a single CopyObject can be.*/
+	private static final long MAX_SINGLE_COPY = 5l * 1024l * 1024l * 1024l;
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private PathKeyMapper keyMapper;
+	private String bucketName;
+	private int maxTries;
+	private ExecutorService partExecutor;
+	private Iterator<Placeholder> toMove;
+	private int numToMove;
+	private volatile boolean failed = false;
+	private String error = null;
+
+	//moved placeholders keyed by the old key, for the batch delete
+	private HashMap<String, Placeholder> moved = new HashMap<String, Placeholder>();
+
+	//metrics
+	private AtomicInteger numMoved = new AtomicInteger(0);
+	private AtomicInteger numNotReady = new AtomicInteger(0);
+	private AtomicLong bytesCopied = new AtomicLong(0);
+	private AtomicInteger numPartCopies = new AtomicInteger(0);
+
+	public KeyMover(GSync gsync, AmazonS3 s3) {
+		this.gsync = gsync;
+		this.s3 = s3;
+		keyMapper = gsync.getKeyMapper();
+		bucketName = gsync.getBucketName();
+		maxTries = gsync.getMaxTries();
+		partExecutor = Executors.newFixedThreadPool(Math.max(10, gsync.getNumUploads() * 4));
+	}
+
+	/**Moves each placeholder's object to its new key, numUploads moves at a time, blocks till complete.
+	 * @return null if all moved, otherwise the first error*/
+	public String move(Collection<Placeholder> placeholders) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		toMove = placeholders.iterator();
+		numToMove = placeholders.size();
+		int numWorkers = Math.min(gsync.getNumUploads(), numToMove);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numWorkers));
+		for (int i=0; i< numWorkers; i++) executor.execute(() -> {
+			Placeholder p;
+			while ((p = next()) != null) {
+				try {
+					moveOne(p);
+				} catch (Exception e) {
+					fail("ERROR in updating keys for:\n"+minimalInfo(p)+"\n"+e.getMessage());
+				}
+			}
+		});
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		partExecutor.shutdownNow();
+
+		double diffSec = ((double)(System.currentTimeMillis() -startTime))/1000.0;
+		double numGb = (double)bytesCopied.get()/ (double)1073741824;
+		String rate = diffSec > 0 ? ", "+Util.formatNumber((numGb * 8.0)/diffSec, 2)+" Gbps" : "";
+		gsync.pl("\t"+numMoved.get()+" of "+numToMove+" moved, "+Util.formatNumber(numGb, 2)+"GB copied in "+Util.formatNumber(diffSec/60.0, 1)+" min"+rate+", "+
+				numPartCopies.get()+" part copies, "+numNotReady.get()+" awaiting archive restore");
+		return error;
+	}
+
+	private synchronized Placeholder next() {
+		if (failed || toMove.hasNext() == false) return null;
+		return toMove.next();
+	}
+
+	private synchronized void fail(String message) {
+		if (error == null) error = message;
+		failed = true;
+	}
+
+	private static String minimalInfo(Placeholder p) {
+		try {
+			return p.getMinimalInfo();
+		} catch (Exception e) {
+			return p.getPlaceHolderFile().toString();
+		}
+	}
+
+	private void moveOne(Placeholder p) throws IOException {
+		long startTime = System.currentTimeMillis();
+		String newKey = keyMapper.placeholderKey(p.getPlaceHolderFile());
+		String oldKey = p.getAttribute("key");
+
+		//check the old key exists, and its storage class, may need to trigger a pull from glacier to S3
+		if (gsync.tryDoesObjectExist(bucketName, oldKey) == false) throw new IOException ("Failed to update key "+oldKey+" to "+newKey+". Original key doesn't exist.");
+		ObjectMetadata omd = gsync.tryGetObjectMetadata(bucketName, oldKey);
+		if (omd.getStorageClass() != null && gsync.requestArchiveRestore(oldKey) == false) {
+			numNotReady.incrementAndGet();
+			return;
+		}
+
+		//check if new key already exists
+		if (gsync.tryDoesObjectExist(bucketName, newKey)) throw new IOException ("Failed to update key "+oldKey+" to "+newKey+". It already exists.");
+
+		//copy, large objects in parallel parts
+		long size = omd.getContentLength();
+		String etag;
+		long partSize = 0;
+		if (size < MULTIPART_SIZE || (RangedDownloader.parsePartCount(omd.getETag()) == 1 && size <= MAX_SINGLE_COPY)) etag = tryCopyObject(oldKey, newKey);
+		else {
+			partSize = copyPartSize(p, omd);
+			etag = multipartCopy(oldKey, newKey, omd, partSize);
+		}
+
+		//commit, rewrite the placeholder
+		synchronized (p) {
+			p.getAttributes().put("key", newKey);
+			p.getAttributes().put("etag", etag);
+			if (partSize != 0) p.getAttributes().put("partSize", Long.toString(partSize));
+			//a composite sha256 needs its part size, only drop if the layout changed
+			else if (p.getAttributes().remove("partSize") != null) p.getAttributes().remove("sha256");
+			p.writePlaceholder(p.getPlaceHolderFile());
+		}
+		synchronized (moved) {
+			moved.put(oldKey, p);
+		}
+		bytesCopied.addAndGet(size);
+		double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
+		gsync.pl("\t"+numMoved.incrementAndGet()+"/"+numToMove+"\t"+oldKey +" -> "+newKey+"\t"+Util.formatSize(size)+"\t"+Util.formatNumber(diffTime, 1)+" min");
+	}
+
+	/**The original upload's part size when it can be determined so the copy has the same ETag, otherwise GSync's upload part size.*/
+	static long copyPartSize(Placeholder p, ObjectMetadata omd) {
+		long size = omd.getContentLength();
+		String recorded = p.getAttribute("partSize");
+		int numParts = RangedDownloader.parsePartCount(omd.getETag());
+		if (numParts > 1) {
+			List<Long> c = ETagCalculator.candidatePartSizes(size, numParts, recorded == null ? 0 : Long.parseLong(recorded));
+			if (c.size() != 0 && c.get(0) >= 5l * 1024l * 1024l) return c.get(0);
+		}
+		return ResumableUploader.partSize(size);
+	}
+
+	String multipartCopy(String oldKey, String newKey, ObjectMetadata omd, long partSize) throws IOException {
+		//keep the content type and user metadata as a single CopyObject would
+		ObjectMetadata newMeta = new ObjectMetadata();
+		if (omd.getContentType() != null) newMeta.setContentType(omd.getContentType());
+		newMeta.setUserMetadata(omd.getUserMetadata());
+		String uploadId = tryInitiate(newKey, newMeta);
+		long size = omd.getContentLength();
+		ArrayList<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		int partNumber = 1;
+		for (long first = 0; first < size; first += partSize) {
+			long last = Math.min(size, first + partSize) - 1;
+			int pn = partNumber++;
+			long f = first;
+			parts.add(partExecutor.submit(() -> tryCopyPart(oldKey, newKey, uploadId, pn, f, last)));
+		}
+		try {
+			ArrayList<PartETag> partETags = new ArrayList<PartETag>();
+			for (Future<PartETag> f: parts) partETags.add(f.get());
+			return tryComplete(newKey, uploadId, partETags);
+		} catch (ExecutionException | InterruptedException | IOException e) {
+			for (Future<PartETag> f: parts) f.cancel(true);
+			try {
+				s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, newKey, uploadId));
+			} catch (SdkClientException sce) {
+				//left for the orphan cleanup
+			}
+			throw new IOException("ERROR copying "+oldKey+" to "+newKey+"\n"+e.getMessage());
+		}
+	}
+
+	/**Attempts 's3.copyPart()' maxTries before throwing error message*/
+	private PartETag tryCopyPart(String oldKey, String newKey, String uploadId, int partNumber, long first, long last) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				CopyPartRequest request = new CopyPartRequest().withSourceBucketName(bucketName).withSourceKey(oldKey).withDestinationBucketName(bucketName)
+						.withDestinationKey(newKey).withUploadId(uploadId).withPartNumber(partNumber).withFirstByte(first).withLastByte(last);
+				PartETag pe = s3.copyPart(request).getPartETag();
+				numPartCopies.incrementAndGet();
+				return pe;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.copyPart("+oldKey+", "+partNumber+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.copyPart("+bucketName+", "+oldKey+", "+newKey+", "+partNumber+") S3 error message:\n"+error);
+	}
+
+	/**Attempts 's3.copyObject()' maxTries before throwing error message
+	 * @return the new object's etag*/
+	private String tryCopyObject(String oldKey, String newKey) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.copyObject(new CopyObjectRequest(bucketName, oldKey, bucketName, newKey)).getETag();
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.copyObject(bucketName, oldKey, bucketName, newKey)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.copyObject("+bucketName+", "+oldKey+", "+bucketName+", "+newKey+") S3 error message:\n"+error);
+	}
+
+	/**Attempts 's3.completeMultipartUpload()' maxTries before throwing error message. A retry that finds the upload gone after an attempt whose
+	 * response was lost returns the completed object's etag.
+	 * @return the new object's etag*/
+	private String tryComplete(String key, String uploadId, ArrayList<PartETag> partETags) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags)).getETag();
+			} catch (AmazonServiceException ase) {
+				if (attempt > 1 && "NoSuchUpload".equals(ase.getErrorCode())) {
+					try {
+						return s3.getObjectMetadata(bucketName, key).getETag();
+					} catch (SdkClientException sce) {
+						error = Util.getStackTrace(sce);
+					}
+				}
+				else error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.completeMultipartUpload("+key+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.completeMultipartUpload("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	private String tryInitiate(String key, ObjectMetadata meta) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, meta)).getUploadId();
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.initiateMultipartUpload(bucketName, key)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.initiateMultipartUpload("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	/**Placeholders whose objects were copied, keyed by their old key.*/
+	public HashMap<String, Placeholder> getMoved() {
+		return moved;
+	}
+
+	public int getNumMoved() {
+		return numMoved.get();
+	}
+}
@@ -0,0 +1,20 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+
+/**Small named text objects shared by the GSync shards, the leases and reports. In the bucket for real runs, a shared directory for tests.*/
+public interface LeaseStore {
+
+	/**@return the content, null if absent*/
+	public String read(String name) throws IOException;
+
+	/**Replaces any existing content.*/
+	public void write(String name, String content) throws IOException;
+
+	/**Ignored if absent.*/
+	public void delete(String name) throws IOException;
+
+	/**Worst case time from a read returning to a following write landing, retries included. A claim waits at least this long before reading
+	 * itself back so every competing write has landed.*/
+	public long getMaxWriteMillis();
+}
@@ -0,0 +1,92 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**Immutable snapshot of a local file's attributes, read once with a single stat during the directory scan and then reused for the size, age, index,
+ * and placeholder checks. The path is canonical, symbolic links are never resolved. The path is held as the parent directory and the name, all of the
+ * entries in a directory share the same parent String so large listings and scan indexes don't repeat it.*/
+public class LocalFileInfo {
+
+	//fields
+	private final String parent;
+	private final String name;
+	private final long size;
+	private final long lastModified;
+	private final boolean symlink;
+	private final boolean directory;
+
+	/**@param parent directory path ending with a /, pass the same instance for every entry in a directory*/
+	public LocalFileInfo(String parent, String name, long size, long lastModified, boolean symlink, boolean directory) {
+		this.parent = parent;
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.symlink = symlink;
+		this.directory = directory;
+	}
+
+	public LocalFileInfo(String path, long size, long lastModified, boolean symlink, boolean directory) {
+		this(path.substring(0, path.lastIndexOf('/')+1), path.substring(path.lastIndexOf('/')+1), size, lastModified, symlink, directory);
+	}
+
+	/**Builds the info from attributes read with LinkOption.NOFOLLOW_LINKS.*/
+	public LocalFileInfo(String parent, String name, BasicFileAttributes attributes) {
+		this(parent, name, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isSymbolicLink(), attributes.isDirectory());
+	}
+
+	/**Builds the info from attributes read with LinkOption.NOFOLLOW_LINKS.*/
+	public LocalFileInfo(String path, BasicFileAttributes attributes) {
+		this(path, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isSymbolicLink(), attributes.isDirectory());
+	}
+
+	public File getFile() {
+		return new File(getPath());
+	}
+
+	/**Builds the full path, use getName() when only the name is needed.*/
+	public String getPath() {
+		return parent+ name;
+	}
+
+	/**Parent directory path ending with a /*/
+	public String getParent() {
+		return parent;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**Bytes*/
+	public long getSize() {
+		return size;
+	}
+
+	/**Milliseconds since the epoch*/
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public boolean isSymlink() {
+		return symlink;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public String toString() {
+		return getPath();
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof LocalFileInfo == false) return false;
+		LocalFileInfo other = (LocalFileInfo)o;
+		return name.equals(other.name) && parent.equals(other.parent) && size == other.size && lastModified == other.lastModified && symlink == other.symlink && directory == other.directory;
+	}
+
+	public int hashCode() {
+		return 31 * parent.hashCode() + name.hashCode();
+	}
+}
@@ -0,0 +1,65 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Converts between local canonical paths and S3 keys by literal prefix stripping of the deleteFromKey directory. Replaces
+ * path.replaceFirst(deleteFromKey, "") which compiled the prefix as a regex on every call and failed on paths with regex characters, e.g. [ ] + ( ).
+ * Canonical directory lookups for placeholder files are cached so each directory is resolved once. Thread safe.*/
+public class PathKeyMapper {
+
+	//fields
+	private final String prefix;
+	private final int prefixLength;
+	private final ConcurrentHashMap<String, String> canonicalDirectories = new ConcurrentHashMap<String, String>();
+
+	/**@param prefix the deleteFromKey, a canonical directory path ending with a / */
+	public PathKeyMapper(String prefix) {
+		this.prefix = prefix;
+		prefixLength = prefix.length();
+	}
+
+	/**Returns the S3 key for a canonical path, paths outside the prefix are returned unchanged.*/
+	public String toKey(String canonicalPath) {
+		if (canonicalPath.startsWith(prefix)) return canonicalPath.substring(prefixLength);
+		return canonicalPath;
+	}
+
+	/**Returns the S3 key without building the full path first.*/
+	public String toKey(LocalFileInfo info) {
+		String parent = info.getParent();
+		if (parent.startsWith(prefix) == false) return info.getPath();
+		return new StringBuilder(parent.length() - prefixLength + info.getName().length()).append(parent, prefixLength, parent.length()).append(info.getName()).toString();
+	}
+
+	/**Returns the local path for an S3 key.*/
+	public String toPath(String key) {
+		return prefix+ key;
+	}
+
+	/**Returns the S3 key a placeholder file should reference, its canonical path minus the prefix and the placeholder extension.
+	 * The canonical path of the placeholder's directory is cached, placeholders are never symbolic links.*/
+	public String placeholderKey(File placeholder) throws IOException {
+		String key = toKey(canonicalPath(placeholder));
+		int index = key.indexOf(Placeholder.PLACEHOLDER_EXTENSION);
+		if (index != -1) key = key.substring(0, index);
+		return key;
+	}
+
+	private String canonicalPath(File f) throws IOException {
+		String parent = f.getParent();
+		if (parent == null) return f.getCanonicalPath();
+		String canonicalParent = canonicalDirectories.get(parent);
+		if (canonicalParent == null) {
+			canonicalParent = new File(parent).getCanonicalPath();
+			if (canonicalParent.endsWith("/") == false) canonicalParent = canonicalParent+ "/";
+			canonicalDirectories.put(parent, canonicalParent);
+		}
+		return canonicalParent+ f.getName();
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+}
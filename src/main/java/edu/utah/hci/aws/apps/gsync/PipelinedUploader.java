@@ -0,0 +1,134 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import edu.utah.hci.aws.util.Util;
+
+/**Uploads candidate files while the local scan is still running. The DirectoryScanner hands over each candidate without a placeholder in its directory,
+ * a HEAD request confirms the key is absent from S3, then the file is uploaded and its placeholder written. Candidates already in S3 are left for the
+ * normal bucket scan. Once finished, the new placeholders are added to the scan results so the regular checks treat these files as already uploaded.*/
+public class PipelinedUploader {
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private TransferManager tm;
+	private ExecutorService executor;
+	private String bucketName;
+	private int maxTries;
+	private volatile boolean failed = false;
+	private String error = null;
+	private ArrayList<File> placeholderFiles = new ArrayList<File>();
+	private long startTime;
+
+	//metrics
+	private AtomicInteger numSubmitted = new AtomicInteger(0);
+	private AtomicInteger numInS3 = new AtomicInteger(0);
+	private AtomicInteger numUploaded = new AtomicInteger(0);
+	private AtomicLong bytesUploaded = new AtomicLong(0);
+	private AtomicLong firstUploadStart = new AtomicLong(0);
+
+	public PipelinedUploader(GSync gsync, String region) {
+		this.gsync = gsync;
+		bucketName = gsync.getBucketName();
+		maxTries = gsync.getMaxTries();
+		int numUploads = gsync.getNumUploads();
+		s3 = gsync.s3Client(region);
+		int numPartThreads = Math.max(10, numUploads * 4);
+		tm = TransferManagerBuilder.standard().withS3Client(s3).withMultipartUploadThreshold((long) (256 * 1024 * 1024))
+				.withExecutorFactory(() -> Executors.newFixedThreadPool(numPartThreads)).build();
+		executor = Executors.newFixedThreadPool(numUploads);
+		startTime = System.currentTimeMillis();
+	}
+
+	/**Called by the scanner threads, queues the candidate and returns immediately.*/
+	public void submit(String key, LocalFileInfo f) {
+		if (failed || gsync.ownsKey(key) == false) return;
+		numSubmitted.incrementAndGet();
+		executor.execute(() -> upload(key, f));
+	}
+
+	private void upload(String key, LocalFileInfo f) {
+		if (failed) return;
+		try {
+			if (tryDoesObjectExist(key)) {
+				numInS3.incrementAndGet();
+				return;
+			}
+			firstUploadStart.compareAndSet(0, System.currentTimeMillis());
+			long start = System.currentTimeMillis();
+			UploadedChecksums checksums = gsync.tryUpload(bucketName, key, f.getFile(), tm);
+			gsync.writePlaceholder(key, f, checksums);
+			synchronized (placeholderFiles) {
+				placeholderFiles.add(new File(f.getPath()+Placeholder.PLACEHOLDER_EXTENSION));
+			}
+			numUploaded.incrementAndGet();
+			bytesUploaded.addAndGet(f.getSize());
+			double diffTime = ((double)(System.currentTimeMillis() -start))/60000;
+			gsync.pl("\tStreamed\t"+bucketName+"/"+key+"\t"+Util.formatNumber(diffTime, 1)+" min");
+		} catch (Exception e) {
+			synchronized (this) {
+				if (error == null) error = Util.getStackTrace(e);
+			}
+			failed = true;
+		}
+	}
+
+	/**Attempts 's3.doesObjectExist(bucketName, key)' maxTries before throwing error message*/
+	private boolean tryDoesObjectExist(String key) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.doesObjectExist(bucketName, key);
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+				gsync.sleep("\tWARNING: failed 's3.doesObjectExist(bucketName, key)' trying again, "+attempt);
+			}
+			catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+				gsync.sleep("\tWARNING: failed 's3.doesObjectExist(bucketName, key)' trying again, "+attempt);
+			}
+		}
+		throw new IOException("ERROR failed s3.doesObjectExist("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	/**Waits for the queued uploads to complete and shuts down the clients.
+	 * @throws IOException if any upload failed, files that completed keep their placeholders*/
+	public void finish() throws IOException, InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		tm.shutdownNow();
+		if (failed) throw new IOException("ERROR streaming uploads, stopped after "+numUploaded.get()+" files completed:\n"+error);
+	}
+
+	/**Stops after an error elsewhere, in flight uploads are abandoned.*/
+	public void abort() {
+		failed = true;
+		executor.shutdownNow();
+		tm.shutdownNow();
+	}
+
+	/**Placeholders written for the streamed uploads.*/
+	public ArrayList<File> getPlaceholderFiles() {
+		return placeholderFiles;
+	}
+
+	public String getSummary() {
+		double numGb = (double)bytesUploaded.get()/ (double)1073741824;
+		String first = firstUploadStart.get() == 0 ? "none" : Util.formatNumber(((double)(firstUploadStart.get() - startTime))/1000.0, 1)+" sec";
+		return numSubmitted.get()+" candidates checked, "+numInS3.get()+" already in S3, "+numUploaded.get()+" streamed ("+Util.formatNumber(numGb, 2)+
+				"GB), time to first upload "+first;
+	}
+}
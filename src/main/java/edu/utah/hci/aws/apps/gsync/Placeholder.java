@@ -15,6 +15,9 @@ import edu.utah.hci.aws.util.Util;
  * 	bucket - aws bucket name 
  * 	key - aws key, should be the canonical path at the time of upload, this should be the same as the current file canonical path unless it has been moved
  * 	size - file size in bytes
+ * Uploads since checksums were added also record:
+ * 	sha256 - hex SHA-256 of the file, or for multipart uploads the SHA-256 of the part SHA-256s, a dash, and the number of parts
+ * 	partSize - multipart uploads only, bytes per part, needed to recompute the etag and sha256
  */
 public class Placeholder {
 	
@@ -49,14 +52,23 @@ public class Placeholder {
 	public Placeholder() {};
 	
 	public Placeholder(File f, String keyDelete, GSync gsync) throws IOException {
-		attributes = Util.parseKeyValues(f);
+		this(f, new PathKeyMapper(keyDelete), gsync);
+	}
+
+	public Placeholder(File f, PathKeyMapper keyMapper, GSync gsync) throws IOException {
+		this(f, Util.parseKeyValues(f), keyMapper, gsync);
+	}
+
+	/**@param attributes already parsed from the file, e.g. from the PlaceholderCache*/
+	public Placeholder(File f, HashMap<String, String> attributes, PathKeyMapper keyMapper, GSync gsync) throws IOException {
+		this.attributes = attributes;
 		placeHolderFile = f;
 		this.gsync = gsync;
 		//set type
 		if (f.getName().endsWith(PLACEHOLDER_EXTENSION)) type = TYPE_PLACEHOLDER;
 		else if (f.getName().endsWith(RESTORE_PLACEHOLDER_EXTENSION)) type = TYPE_RESTORE;
 		else if (f.getName().endsWith(DELETE_PLACEHOLDER_EXTENSION)) type = TYPE_DELETE;
-		checkKeyMatchesPath(keyDelete);
+		checkKeyMatchesPath(keyMapper);
 	}
 	
 	public void writePlaceholder(File f) {
@@ -105,12 +117,10 @@ public class Placeholder {
 		return sb.toString();
 	}
 	
-	public void checkKeyMatchesPath(String keyDelete) throws IOException {
+	public void checkKeyMatchesPath(PathKeyMapper keyMapper) throws IOException {
 		String key = attributes.get("key");
 		if (key == null) throw new IOException("Failed to find the 'key' attribute in "+placeHolderFile);
-		String cp = placeHolderFile.getCanonicalPath().replaceFirst(keyDelete, "");
-		String tp = PLACEHOLDER_PATTERN.matcher(cp).replaceFirst("");
-		keyMatchesLocalPlaceholderPath = tp.equals(key);
+		keyMatchesLocalPlaceholderPath = keyMapper.placeholderKey(placeHolderFile).equals(key);
 	}
 
 	public HashMap<String, String> getAttributes() {
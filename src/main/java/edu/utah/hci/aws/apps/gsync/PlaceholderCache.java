@@ -0,0 +1,118 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**Consolidated, gzipped binary cache of parsed placeholder attributes keyed by the placeholder's path. A placeholder whose modification time and size
+ * match its cache entry is not read and parsed again. Saved in the GSync index directory, rebuilt each run so removed placeholders drop out.*/
+public class PlaceholderCache {
+
+	public static final String CACHE_FILE_NAME = "gsyncPlaceholderCache.bin.gz";
+	private static final int VERSION = 1;
+
+	//fields
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private LongAdder numHits = new LongAdder();
+	private LongAdder numMisses = new LongAdder();
+
+	private static class Entry {
+		final long lastModified;
+		final long size;
+		final HashMap<String, String> attributes;
+
+		Entry(long lastModified, long size, HashMap<String, String> attributes) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.attributes = attributes;
+		}
+	}
+
+	/**Returns a copy of the cached attributes or null if missing or the placeholder file has changed.*/
+	public HashMap<String, String> get(String path, long lastModified, long size) {
+		Entry e = entries.get(path);
+		if (e == null || e.lastModified != lastModified || e.size != size) {
+			numMisses.increment();
+			return null;
+		}
+		numHits.increment();
+		return copy(e.attributes);
+	}
+
+	public void put(String path, long lastModified, long size, HashMap<String, String> attributes) {
+		entries.put(path, new Entry(lastModified, size, copy(attributes)));
+	}
+
+	/**Copies with a default sized map so the iteration order, and so the order attributes are written back to a placeholder, matches a freshly parsed one.*/
+	private static HashMap<String, String> copy(HashMap<String, String> attributes) {
+		HashMap<String, String> c = new HashMap<String, String>();
+		for (Map.Entry<String, String> a: attributes.entrySet()) c.put(a.getKey(), a.getValue());
+		return c;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getNumHits() {
+		return numHits.sum();
+	}
+
+	public long getNumMisses() {
+		return numMisses.sum();
+	}
+
+	/**@return null if the file doesn't exist or was made with a different version.*/
+	public static PlaceholderCache load(File cacheFile) throws IOException {
+		if (cacheFile.exists() == false) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(cacheFile), 65536)))){
+			if (in.readInt() != VERSION) return null;
+			PlaceholderCache cache = new PlaceholderCache();
+			int num = in.readInt();
+			for (int i=0; i< num; i++) {
+				String path = in.readUTF();
+				long lastModified = in.readLong();
+				long size = in.readLong();
+				int numAtt = in.readInt();
+				HashMap<String, String> att = new HashMap<String, String>();
+				for (int j=0; j< numAtt; j++) att.put(in.readUTF(), in.readUTF());
+				cache.entries.put(path, new Entry(lastModified, size, att));
+			}
+			return cache;
+		}
+	}
+
+	/**Writes the cache to a temp file then moves it into place.*/
+	public void save(File cacheFile) throws IOException {
+		File tmp = new File(cacheFile.getParentFile(), cacheFile.getName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 65536)))){
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> me: entries.entrySet()) {
+				Entry e = me.getValue();
+				out.writeUTF(me.getKey());
+				out.writeLong(e.lastModified);
+				out.writeLong(e.size);
+				out.writeInt(e.attributes.size());
+				for (Map.Entry<String, String> a: e.attributes.entrySet()) {
+					out.writeUTF(a.getKey());
+					out.writeUTF(a.getValue());
+				}
+			}
+		}
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
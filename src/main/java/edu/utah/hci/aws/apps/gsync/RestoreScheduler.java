@@ -0,0 +1,179 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tier;
+import edu.utah.hci.aws.util.RangedDownloader;
+import edu.utah.hci.aws.util.Util;
+
+/**Restores the objects of restore placeholders. Archived objects get their restore requests placed concurrently, objects already in STANDARD and
+ * those whose restore has completed are downloaded in parallel as soon as they are ready. Pending restores are polled in concurrent batches
+ * until all are ready or the wait time runs out, anything still pending is left for the next GSync run. Stops handing out work after the first error.*/
+public class RestoreScheduler {
+
+	//fields
+	private GSync gsync;
+	private RangedDownloader downloader;
+	private ExecutorService requestExecutor;
+	private ExecutorService downloadExecutor;
+	private String bucketName;
+	private long maxWaitMillis;
+	private long pollMillis;
+	private volatile boolean failed = false;
+	private String error = null;
+
+	//metrics
+	private AtomicInteger numRequested = new AtomicInteger(0);
+	private AtomicInteger numRestored = new AtomicInteger(0);
+	private int numPolls = 0;
+
+	/**@param s3 GSync's client, used here for the downloads
+	 * @param maxWaitMinutes how long to keep polling pending restores, 0 to place the requests, download what's ready, and return*/
+	public RestoreScheduler(GSync gsync, AmazonS3 s3, long maxWaitMinutes) {
+		this.gsync = gsync;
+		bucketName = gsync.getBucketName();
+		maxWaitMillis = maxWaitMinutes * 60000l;
+		pollMillis = pollMinutes(gsync.getRestoreTier()) * 60000l;
+		int numTransfers = gsync.getNumUploads();
+		downloader = new RangedDownloader(s3, Math.max(10, numTransfers * 4), gsync.getMaxTries(), gsync.getMinToWait() * 60);
+		downloader.setBandwidth(gsync.getBandwidth());
+		requestExecutor = Executors.newFixedThreadPool(gsync.getNumThreads());
+		downloadExecutor = Executors.newFixedThreadPool(numTransfers);
+	}
+
+	/**Expedited restores take minutes, Standard hours, and Bulk half a day, no need to poll more often.*/
+	static int pollMinutes(Tier tier) {
+		if (tier == Tier.Expedited) return 1;
+		if (tier == Tier.Bulk) return 60;
+		return 15;
+	}
+
+	/**Restores each placeholder's object, blocks until all are downloaded or the wait time runs out.
+	 * @return the number still pending a restore*/
+	public int restore(ArrayList<Placeholder> restorePlaceholders) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		//place the restore requests, or download if already available
+		ArrayList<Placeholder> pending = new ArrayList<Placeholder>();
+		ArrayList<Placeholder> archived = new ArrayList<Placeholder>();
+		for (Placeholder p : restorePlaceholders) {
+			if (p.getStorageClass().equals("STANDARD")) submitDownload(p);
+			else archived.add(p);
+		}
+		for (Placeholder p: checkReady(archived, true)) pending.add(p);
+		if (numRequested.get() != 0) gsync.pl("\t"+numRequested.get()+" "+gsync.getRestoreTier()+" restore requests placed");
+
+		//poll the pending restores in batches
+		while (pending.size() != 0 && failed == false && System.currentTimeMillis() - startTime + pollMillis <= maxWaitMillis) {
+			gsync.pl("\t"+pending.size()+" restores pending, checking again in "+(pollMillis/60000)+" min");
+			try {
+				Thread.sleep(pollMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			numPolls++;
+			pending = checkReady(pending, false);
+		}
+
+		//wait for the downloads
+		downloadExecutor.shutdown();
+		try {
+			downloadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {}
+		requestExecutor.shutdownNow();
+		downloader.shutdown();
+
+		if (failed) throw new IOException(error);
+		double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
+		gsync.pl("\t"+numRestored.get()+" restored in "+Util.formatNumber(diffTime, 1)+" min, "+Util.formatSize(downloader.getNumBytes())+" in "+
+				downloader.getNumRequests()+" ranged GETs, "+numPolls+" polls, "+pending.size()+" pending");
+		if (gsync.getBandwidth() != null && downloader.getNumBytes() != 0) gsync.pl("\t"+gsync.getBandwidth().getSummary());
+		return pending.size();
+	}
+
+	/**Concurrently HEADs each object, submitting a download for those restored.
+	 * @param placeRequests if true, place a restore request for objects without one
+	 * @return those still pending*/
+	private ArrayList<Placeholder> checkReady(ArrayList<Placeholder> toCheck, boolean placeRequests) throws IOException {
+		ArrayList<Future<Boolean>> ready = new ArrayList<Future<Boolean>>();
+		for (Placeholder p: toCheck) ready.add(requestExecutor.submit(() -> isRestored(p, placeRequests)));
+		ArrayList<Placeholder> pending = new ArrayList<Placeholder>();
+		Iterator<Future<Boolean>> it = ready.iterator();
+		for (Placeholder p: toCheck) {
+			try {
+				if (it.next().get()) submitDownload(p);
+				else pending.add(p);
+			} catch (Exception e) {
+				fail(Util.getStackTrace(e));
+				break;
+			}
+		}
+		return pending;
+	}
+
+	private boolean isRestored(Placeholder p, boolean placeRequest) throws IOException {
+		String key = p.getAttribute("key");
+		ObjectMetadata om = gsync.tryGetObjectMetadata(bucketName, key);
+		Boolean restoreFlag = om.getOngoingRestore();
+		//request never received
+		if (restoreFlag == null) {
+			if (placeRequest) {
+				gsync.tryRestoreObjectV2(bucketName, key, om.getStorageClass());
+				numRequested.incrementAndGet();
+			}
+			return false;
+		}
+		//false, ready for download
+		return restoreFlag == false;
+	}
+
+	private void submitDownload(Placeholder p) {
+		if (failed) return;
+		downloadExecutor.submit(() -> download(p));
+	}
+
+	private void download(Placeholder p) {
+		if (failed) return;
+		File localFile = p.getLocalFile();
+		File tempFile = new File(localFile.getParentFile(), "tempRestore_"+localFile.getName());
+		String key = p.getAttribute("key");
+		try {
+			long startTime = System.currentTimeMillis();
+			downloader.download(bucketName, key, tempFile);
+
+			//check the size
+			long placeholderSize = Long.parseLong(p.getAttribute("size"));
+			if (placeholderSize != tempFile.length()) throw new IOException("The restored file's size ("+tempFile.length()+") does not match the placeholder size\n"+p.getMinimalInfo());
+
+			//rename the temp to local
+			tempFile.renameTo(localFile);
+
+			//rename the placeholder file
+			File stdPlaceholder = new File (localFile.getCanonicalPath()+Placeholder.PLACEHOLDER_EXTENSION);
+			p.getPlaceHolderFile().renameTo(stdPlaceholder);
+			numRestored.incrementAndGet();
+
+			double diffTime = ((double)(System.currentTimeMillis() -startTime))/60000;
+			gsync.pl("\t"+key+"\t"+p.getPlaceHolderFile()+"\t"+p.getStorageClass()+"\t"+Util.formatNumber(diffTime, 1)+" min");
+		} catch (Exception e) {
+			//delete the temp and partial local
+			tempFile.delete();
+			if (localFile.exists() && p.getPlaceHolderFile().exists()) localFile.delete();
+			fail("RESTORE ERROR for "+key+": "+e.getMessage()+"\n"+Util.getStackTrace(e));
+		}
+	}
+
+	private synchronized void fail(String message) {
+		if (error == null) error = message;
+		failed = true;
+	}
+}
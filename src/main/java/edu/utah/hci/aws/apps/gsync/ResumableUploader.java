@@ -0,0 +1,359 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import edu.utah.hci.aws.util.ConcurrencyController;
+import edu.utah.hci.aws.util.RangedDownloader;
+import edu.utah.hci.aws.util.ThrottledInputStream;
+import edu.utah.hci.aws.util.Util;
+
+/**Multipart uploads of large files, hashed as they're sent, that survive a killed GSync. Each upload is recorded in the UploadJournal as it starts and as each part completes.
+ * A rerun finds the journal entry, confirms the local file is unchanged, asks S3 which parts it holds with ListParts, and only sends the rest.
+ * Also aborts multipart uploads older than the orphan age limit, GSync's own and those left behind by a failed TransferManager.*/
+public class ResumableUploader {
+
+	/**Smaller files go through the TransferManager.*/
+	public static final long MIN_SIZE = 256l * 1024l * 1024l;
+	private static final long MIN_PART_SIZE = 64l * 1024l * 1024l;
+	private static final int MAX_PARTS = 10000;
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private UploadJournal journal;
+	private ExecutorService partExecutor;
+	private ConcurrencyController partConcurrency;
+	private String bucketName;
+	private int maxTries;
+
+	//metrics
+	private AtomicInteger numResumed = new AtomicInteger(0);
+	private AtomicInteger numPartsSkipped = new AtomicInteger(0);
+
+	/**@param journal an in memory journal when there's no index directory*/
+	public ResumableUploader(GSync gsync, String region, UploadJournal journal) {
+		this.gsync = gsync;
+		this.journal = journal;
+		bucketName = gsync.getBucketName();
+		maxTries = gsync.getMaxTries();
+		s3 = gsync.s3Client(region);
+		int numPartThreads = Math.max(10, gsync.getNumUploads() * 4);
+		partExecutor = Executors.newFixedThreadPool(numPartThreads);
+		partConcurrency = new ConcurrencyController("Parts", numPartThreads);
+	}
+
+	/**Aborts multipart uploads under the prefixes started more than maxDays ago and drops their journal entries.
+	 * @return the number aborted*/
+	public int abortOrphans(List<String> prefixes, int maxDays) throws IOException {
+		long cutoff = System.currentTimeMillis() - maxDays * 24l * 60l * 60l * 1000l;
+		int numAborted = 0;
+		for (String prefix: BucketScanner.collapsePrefixes(prefixes)) {
+			for (MultipartUpload mu: tryListMultipartUploads(prefix)) {
+				Date initiated = mu.getInitiated();
+				if (initiated == null || initiated.getTime() > cutoff) continue;
+				tryAbort(mu.getKey(), mu.getUploadId());
+				UploadJournal.Entry e = journal.get(mu.getKey());
+				if (e != null && e.uploadId.equals(mu.getUploadId())) journal.remove(mu.getKey());
+				gsync.pl("\tAborted orphaned multipart upload, started "+initiated+": "+mu.getKey());
+				numAborted++;
+			}
+		}
+		return numAborted;
+	}
+
+	/**The checksums of one part, hashed as it was sent or, for parts already in S3 from a killed run, reread.*/
+	private static class Part {
+		final String etag;
+		final byte[] md5;
+		final byte[] sha256;
+
+		Part(String etag, byte[] md5, byte[] sha256) {
+			this.etag = etag;
+			this.md5 = md5;
+			this.sha256 = sha256;
+		}
+	}
+
+	/**Uploads the file in parts, resuming a journaled upload if the local file hasn't changed. Each part is hashed as it's sent, the MD5s
+	 * are checked against S3's part ETags and the completed ETag.*/
+	public UploadedChecksums upload(String key, File file) throws IOException {
+		UploadJournal.Entry entry = journal.get(key);
+		TreeMap<Integer, String> inS3 = null;
+		if (entry != null) {
+			if (entry.matches(file)) inS3 = tryListParts(key, entry);
+			if (inS3 == null) {
+				//changed file or upload gone
+				tryAbort(key, entry.uploadId);
+				journal.remove(key);
+			}
+			else {
+				numResumed.incrementAndGet();
+				numPartsSkipped.addAndGet(inS3.size());
+				gsync.pl("\tResuming "+key+", "+inS3.size()+" parts already in S3");
+			}
+		}
+		if (inS3 == null) {
+			String uploadId = tryInitiate(key);
+			entry = new UploadJournal.Entry(key, uploadId, file.length(), file.lastModified(), partSize(file.length()), System.currentTimeMillis());
+			journal.start(entry);
+			inS3 = new TreeMap<Integer, String>();
+		}
+
+		//send the missing parts, parts from a prior run need their sha256
+		final UploadJournal.Entry e = entry;
+		int numParts = (int)((e.size + e.partSize - 1) / e.partSize);
+		if (numParts == 0) numParts = 1;
+		TreeMap<Integer, Future<Part>> parts = new TreeMap<Integer, Future<Part>>();
+		for (int i=1; i<= numParts; i++) {
+			final int partNumber = i;
+			String etag = inS3.get(i);
+			if (etag == null) parts.put(i, partExecutor.submit(() -> tryUploadPart(e, file, partNumber)));
+			else parts.put(i, partExecutor.submit(() -> priorPart(e, file, partNumber, etag)));
+		}
+		ArrayList<PartETag> partETags = new ArrayList<PartETag>();
+		ArrayList<byte[]> md5s = new ArrayList<byte[]>();
+		ArrayList<byte[]> sha256s = new ArrayList<byte[]>();
+		try {
+			for (Map.Entry<Integer, Future<Part>> f: parts.entrySet()) {
+				Part p = f.getValue().get();
+				partETags.add(new PartETag(f.getKey(), p.etag));
+				md5s.add(p.md5);
+				sha256s.add(p.sha256);
+			}
+		} catch (ExecutionException | InterruptedException ex) {
+			for (Future<Part> f: parts.values()) f.cancel(true);
+			//the upload stays in S3 and the journal for the next run
+			throw new IOException("ERROR uploading parts of "+key+", will resume on the next run\n"+ex.getMessage());
+		}
+
+		//complete
+		CompleteMultipartUploadResult result = tryComplete(key, e.uploadId, partETags);
+		journal.remove(key);
+		String etag = result.getETag();
+		if (isKms(result.getSSEAlgorithm()) == false && stripQuotes(etag).equals(RangedDownloader.multipartETag(md5s)) == false) {
+			throw new IOException("ERROR: the completed S3 ETag "+etag+" does not match the local MD5 tree "+RangedDownloader.multipartETag(md5s)+" for "+key);
+		}
+		return new UploadedChecksums(etag, UploadedChecksums.compositeSha256(sha256s), e.partSize);
+	}
+
+	/**At least 64MB, larger for files that would need more than 10000 parts, rounded up to the MB.*/
+	static long partSize(long fileSize) {
+		long mb = 1024l * 1024l;
+		long ps = Math.max(MIN_PART_SIZE, (fileSize + MAX_PARTS - 1) / MAX_PARTS);
+		return ((ps + mb - 1) / mb) * mb;
+	}
+
+	/**@return the parts already in S3 with the expected size, or null if the upload no longer exists*/
+	private TreeMap<Integer, String> tryListParts(String key, UploadJournal.Entry e) throws IOException {
+		TreeMap<Integer, String> parts = new TreeMap<Integer, String>();
+		ListPartsRequest request = new ListPartsRequest(bucketName, key, e.uploadId);
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				PartListing pl;
+				do {
+					pl = s3.listParts(request);
+					for (PartSummary ps: pl.getParts()) {
+						long offset = (ps.getPartNumber() - 1) * e.partSize;
+						long expected = Math.min(e.partSize, e.size - offset);
+						if (ps.getSize() == expected) parts.put(ps.getPartNumber(), ps.getETag());
+					}
+					request.setPartNumberMarker(pl.getNextPartNumberMarker());
+				} while (pl.isTruncated());
+				return parts;
+			} catch (AmazonS3Exception ase) {
+				if ("NoSuchUpload".equals(ase.getErrorCode())) return null;
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			parts.clear();
+			request.setPartNumberMarker(null);
+			gsync.sleep("\tWARNING: failed 's3.listParts(bucketName, key, uploadId)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.listParts("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	private Part tryUploadPart(UploadJournal.Entry e, File file, int partNumber) throws IOException {
+		long offset = (partNumber - 1) * e.partSize;
+		long length = Math.min(e.partSize, e.size - offset);
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				partConcurrency.acquire();
+			} catch (InterruptedException ie) {
+				throw new IOException("ERROR interrupted waiting to upload part "+partNumber+" of "+file);
+			}
+			try (HashingInputStream in = new HashingInputStream(file, offset, length)){
+				long start = System.nanoTime();
+				UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(e.key).withUploadId(e.uploadId)
+						.withPartNumber(partNumber).withInputStream(gsync.getBandwidth() == null ? in : new ThrottledInputStream(in, gsync.getBandwidth())).withPartSize(length);
+				UploadPartResult result = s3.uploadPart(request);
+				partConcurrency.completed(length, System.nanoTime() - start);
+				String etag = result.getPartETag().getETag();
+				if (in.getNumBytes() != length) throw new SdkClientException("Only "+in.getNumBytes()+" of "+length+" bytes read for part "+partNumber+" of "+file);
+				Part p = new Part(etag, in.getMd5(), in.getSha256());
+				if (isKms(result.getSSEAlgorithm()) == false && stripQuotes(etag).equals(RangedDownloader.hex(p.md5)) == false) {
+					throw new SdkClientException("S3 part ETag "+etag+" does not match the local MD5 "+RangedDownloader.hex(p.md5)+" for part "+partNumber+" of "+file);
+				}
+				gsync.addHashStats(in.getNumBytes(), in.getCpuNanos());
+				journal.addPart(e.key, partNumber, etag, RangedDownloader.hex(p.sha256));
+				return p;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+				if (ConcurrencyController.isThrottle(ase)) partConcurrency.throttled();
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			} finally {
+				partConcurrency.release();
+			}
+			gsync.uploadRetried();
+			gsync.sleep("\tWARNING: failed 's3.uploadPart("+e.key+", "+partNumber+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.uploadPart("+bucketName+", "+e.key+", "+partNumber+") S3 error message:\n"+error);
+	}
+
+	/**A part uploaded by a prior run, its sha256 comes from the journal if recorded for the same ETag, otherwise the part is reread.*/
+	private Part priorPart(UploadJournal.Entry e, File file, int partNumber, String etag) throws IOException {
+		String sha256 = e.partSha256s.get(partNumber);
+		if (sha256 != null && stripQuotes(etag).equals(stripQuotes(e.partETags.get(partNumber)))) {
+			return new Part(etag, RangedDownloader.unhex(stripQuotes(etag)), RangedDownloader.unhex(sha256));
+		}
+		long offset = (partNumber - 1) * e.partSize;
+		try (HashingInputStream in = new HashingInputStream(file, offset, Math.min(e.partSize, e.size - offset))){
+			in.readToEnd();
+			return new Part(etag, in.getMd5(), in.getSha256());
+		}
+	}
+
+	private static boolean isKms(String sseAlgorithm) {
+		return sseAlgorithm != null && sseAlgorithm.startsWith("aws:kms");
+	}
+
+	private static String stripQuotes(String etag) {
+		if (etag != null && etag.startsWith("\"")) return etag.substring(1, etag.length()-1);
+		return etag;
+	}
+
+	private String tryInitiate(String key) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.initiateMultipartUpload(bucketName, key)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.initiateMultipartUpload("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	private CompleteMultipartUploadResult tryComplete(String key, String uploadId, List<PartETag> partETags) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				return s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.completeMultipartUpload(bucketName, key)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.completeMultipartUpload("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	private void tryAbort(String key, String uploadId) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+				return;
+			} catch (AmazonS3Exception ase) {
+				//already gone
+				if ("NoSuchUpload".equals(ase.getErrorCode())) return;
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.abortMultipartUpload(bucketName, key)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.abortMultipartUpload("+bucketName+", "+key+") S3 error message:\n"+error);
+	}
+
+	private ArrayList<MultipartUpload> tryListMultipartUploads(String prefix) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			ArrayList<MultipartUpload> uploads = new ArrayList<MultipartUpload>();
+			try {
+				ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucketName).withPrefix(prefix);
+				MultipartUploadListing mul;
+				do {
+					mul = s3.listMultipartUploads(request);
+					uploads.addAll(mul.getMultipartUploads());
+					request.setKeyMarker(mul.getNextKeyMarker());
+					request.setUploadIdMarker(mul.getNextUploadIdMarker());
+				} while (mul.isTruncated());
+				return uploads;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.listMultipartUploads(bucketName, prefix)' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.listMultipartUploads("+bucketName+", "+prefix+") S3 error message:\n"+error);
+	}
+
+	public String getSummary() {
+		return numResumed.get()+" resumed uploads, "+numPartsSkipped.get()+" parts not resent, "+journal.size()+" left in the journal";
+	}
+
+	public ConcurrencyController getPartConcurrency() {
+		return partConcurrency;
+	}
+
+	public int getNumResumed() {
+		return numResumed.get();
+	}
+
+	public void shutdown() {
+		partExecutor.shutdownNow();
+		s3.shutdown();
+	}
+}
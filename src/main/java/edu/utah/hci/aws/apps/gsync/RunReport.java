@@ -0,0 +1,204 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import edu.utah.hci.aws.util.Util;
+
+/**Times each phase of a GSync run, e.g. scanLocalDir, scanBucket, upload, with its item and byte counts, S3 requests by API, SDK and GSync retries,
+ * and peak heap. The S3 clients count their requests through getRequestHandler(). Each run is appended as one line of JSON to
+ * gsyncRunReports.json in the index directory, beside the log, for trending nightly runs. Requests made between phases are counted in the totals only.*/
+public class RunReport {
+
+	public static final String REPORT_FILE_NAME = "gsyncRunReports.json";
+
+	//fields
+	private long startTime = System.currentTimeMillis();
+	private String startDateTime = Util.getDateTime();
+	private ArrayList<Phase> phases = new ArrayList<Phase>();
+	private volatile Phase current = null;
+	private Phase total = new Phase("total");
+	private long peakHeap = 0;
+	private RequestHandler2 requestHandler = new RequestCounter();
+
+	/**Counts for one phase, the requests and retries are added concurrently.*/
+	private static class Phase {
+		private String name;
+		private long start = System.currentTimeMillis();
+		private long millis = 0;
+		private long items = 0;
+		private long bytes = 0;
+		private long peakHeap = 0;
+		private ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+		private LongAdder failedAttempts = new LongAdder();
+		private LongAdder errors = new LongAdder();
+		private LongAdder retries = new LongAdder();
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		void request(String api) {
+			requests.computeIfAbsent(api, k -> new LongAdder()).increment();
+		}
+
+		long numRequests() {
+			long n = 0;
+			for (LongAdder l: requests.values()) n += l.sum();
+			return n;
+		}
+
+		@SuppressWarnings("unchecked")
+		JSONObject toJson() {
+			JSONObject jo = new JSONObject();
+			jo.put("name", name);
+			jo.put("millis", millis);
+			jo.put("items", items);
+			jo.put("bytes", bytes);
+			JSONObject r = new JSONObject();
+			for (Map.Entry<String, LongAdder> e: new TreeMap<String, LongAdder>(requests).entrySet()) r.put(e.getKey(), e.getValue().sum());
+			jo.put("requests", r);
+			//the last failed attempt of a request that errors isn't retried
+			jo.put("sdkRetries", Math.max(0, failedAttempts.sum() - errors.sum()));
+			jo.put("errors", errors.sum());
+			jo.put("retries", retries.sum());
+			jo.put("peakHeapBytes", peakHeap);
+			return jo;
+		}
+	}
+
+	/**Counts each request once by its API, e.g. PutObject, and each failed attempt, these are retried by the SDK unless the request errors.*/
+	private class RequestCounter extends RequestHandler2 {
+		public void beforeRequest(Request<?> request) {
+			String api = request.getOriginalRequest().getClass().getSimpleName();
+			if (api.endsWith("Request")) api = api.substring(0, api.length() - 7);
+			total.request(api);
+			Phase p = current;
+			if (p != null) p.request(api);
+		}
+
+		public void afterAttempt(HandlerAfterAttemptContext context) {
+			if (context.getException() == null) return;
+			total.failedAttempts.increment();
+			Phase p = current;
+			if (p != null) p.failedAttempts.increment();
+		}
+
+		public void afterError(Request<?> request, Response<?> response, Exception e) {
+			total.errors.increment();
+			Phase p = current;
+			if (p != null) p.errors.increment();
+		}
+	}
+
+	public RunReport() {
+		resetHeapPeaks();
+	}
+
+	/**Ends the current phase, if any, with no counts and starts timing the next.*/
+	public synchronized void startPhase(String name) {
+		if (current != null) endPhase(0, 0);
+		resetHeapPeaks();
+		current = new Phase(name);
+	}
+
+	public synchronized void endPhase(long items, long bytes) {
+		Phase p = current;
+		if (p == null) return;
+		current = null;
+		p.millis = System.currentTimeMillis() - p.start;
+		p.items = items;
+		p.bytes = bytes;
+		p.peakHeap = heapPeaks();
+		peakHeap = Math.max(peakHeap, p.peakHeap);
+		phases.add(p);
+	}
+
+	/**A GSync retry, e.g. after a failed call and a sleep.*/
+	public void retried() {
+		total.retries.increment();
+		Phase p = current;
+		if (p != null) p.retries.increment();
+	}
+
+	/**Add to each S3 client with withRequestHandlers().*/
+	public RequestHandler2 getRequestHandler() {
+		return requestHandler;
+	}
+
+	/**Peaks are kept per memory pool, the sum slightly overstates the true peak of the heap.*/
+	private static void resetHeapPeaks() {
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) pool.resetPeakUsage();
+		}
+	}
+
+	private static long heapPeaks() {
+		long sum = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) sum += pool.getPeakUsage().getUsed();
+		}
+		return sum;
+	}
+
+	/**Ends any open phase.
+	 * @param run details of the run, e.g. bucket, dirs, status*/
+	@SuppressWarnings("unchecked")
+	public synchronized JSONObject toJson(TreeMap<String, Object> run) {
+		if (current != null) endPhase(0, 0);
+		JSONObject jo = new JSONObject();
+		jo.put("start", startDateTime);
+		jo.put("startMillis", startTime);
+		jo.putAll(run);
+		JSONArray ja = new JSONArray();
+		for (Phase p: phases) ja.add(p.toJson());
+		jo.put("phases", ja);
+		total.millis = System.currentTimeMillis() - startTime;
+		total.peakHeap = Math.max(peakHeap, heapPeaks());
+		JSONObject t = total.toJson();
+		t.remove("name");
+		t.remove("items");
+		t.remove("bytes");
+		t.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+		jo.put("total", t);
+		return jo;
+	}
+
+	/**Appends the report as one line of JSON.*/
+	public static void append(File reportFile, JSONObject report) throws IOException {
+		try (Writer out = new FileWriter(reportFile, true)) {
+			out.write(report.toJSONString());
+			out.write("\n");
+		}
+	}
+
+	/**e.g. 'scanLocalDir 12.1s, scanBucket 45.0s 210 requests, upload 3201.4s 4530 requests 12 retries'*/
+	public synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder("Phases:");
+		for (int i=0; i< phases.size(); i++) {
+			Phase p = phases.get(i);
+			sb.append(i == 0 ? " " : ", ");
+			sb.append(p.name+" "+Util.formatNumber(p.millis / 1000.0, 1)+"s");
+			long n = p.numRequests();
+			if (n != 0) sb.append(" "+n+" requests");
+			if (p.retries.sum() != 0) sb.append(" "+p.retries.sum()+" retries");
+		}
+		sb.append(", peak heap "+Util.formatSize(peakHeap));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,104 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import edu.utah.hci.aws.util.Util;
+
+/**LeaseStore of small objects under ShardLeaser.PREFIX in the GSync bucket, the bucket scan skips these keys. Each request is cut off after
+ * REQUEST_TIMEOUT_MILLIS so the worst case write time is bounded.*/
+public class S3LeaseStore implements LeaseStore {
+
+	public static final int REQUEST_TIMEOUT_MILLIS = 30000;
+
+	//fields
+	private GSync gsync;
+	private AmazonS3 s3;
+	private String bucketName;
+	private int maxTries;
+	private int minToWait;
+
+	public S3LeaseStore(GSync gsync, AmazonS3 s3) {
+		this.gsync = gsync;
+		this.s3 = s3;
+		bucketName = gsync.getBucketName();
+		maxTries = gsync.getMaxTries();
+		minToWait = gsync.getMinToWait();
+	}
+
+	/**Attempts 's3.getObject()' maxTries before throwing error message*/
+	public String read(String name) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			GetObjectRequest request = new GetObjectRequest(bucketName, ShardLeaser.PREFIX+name);
+			request.setSdkClientExecutionTimeout(REQUEST_TIMEOUT_MILLIS);
+			try (S3Object o = s3.getObject(request)) {
+				return IOUtils.toString(o.getObjectContent());
+			} catch (AmazonServiceException ase) {
+				if (ase.getStatusCode() == 404) return null;
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException | IOException e) {
+				error = Util.getStackTrace(e);
+			}
+			gsync.sleep("\tWARNING: failed 's3.getObject("+name+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.getObject("+bucketName+", "+ShardLeaser.PREFIX+name+") S3 error message:\n"+error);
+	}
+
+	/**Attempts 's3.putObject()' maxTries before throwing error message*/
+	public void write(String name, String content) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			ObjectMetadata meta = new ObjectMetadata();
+			meta.setContentLength(bytes.length);
+			meta.setContentType("text/plain");
+			PutObjectRequest request = new PutObjectRequest(bucketName, ShardLeaser.PREFIX+name, new ByteArrayInputStream(bytes), meta);
+			request.setSdkClientExecutionTimeout(REQUEST_TIMEOUT_MILLIS);
+			try {
+				s3.putObject(request);
+				return;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.putObject("+name+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.putObject("+bucketName+", "+ShardLeaser.PREFIX+name+") S3 error message:\n"+error);
+	}
+
+	/**Attempts 's3.deleteObject()' maxTries before throwing error message*/
+	public void delete(String name) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			try {
+				s3.deleteObject(bucketName, ShardLeaser.PREFIX+name);
+				return;
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			gsync.sleep("\tWARNING: failed 's3.deleteObject("+name+")' trying again, "+attempt);
+		}
+		throw new IOException("ERROR failed s3.deleteObject("+bucketName+", "+ShardLeaser.PREFIX+name+") S3 error message:\n"+error);
+	}
+
+	/**The read's request, then every write attempt and the sleeps between them.*/
+	public long getMaxWriteMillis() {
+		return (maxTries + 1l) * REQUEST_TIMEOUT_MILLIS + (maxTries - 1l) * TimeUnit.MINUTES.toMillis(minToWait);
+	}
+}
@@ -0,0 +1,300 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**Compact, append only store of S3ObjectSummaries for a single bucket, used in place of a map of summaries when the bucket may hold millions of objects.
+ * Keys are front coded against the prior key (S3 lists keys in order so most of each key is shared), sizes and modification times are held in
+ * primitive arrays and storage classes are interned. Once the encoded keys and etags exceed the memory limit they are spilled to a temp file.
+ * Stores filled at once can share one limit, the store whose add passes it spills.
+ * Entries are read back in the order added by iterating, each returned S3ObjectSummary is a new object.*/
+public class S3ObjectStore implements Iterable<S3ObjectSummary> {
+
+	//fields
+	private String bucketName;
+	private long maxMemoryBytes;
+	private File tempDir;
+	private int numEntries = 0;
+	private long[] sizes = new long[64];
+	private long[] lastModified = new long[64];
+	private byte[] storageClasses = new byte[64];
+	private ArrayList<String> storageClassNames = new ArrayList<String>();
+	private HashMap<String, Byte> storageClassIndex = new HashMap<String, Byte>();
+	private byte[] priorKey = new byte[0];
+
+	//encoded keys and etags, in memory till spilled
+	private byte[] data = new byte[4096];
+	private int dataLength = 0;
+	private File spillFile = null;
+	private OutputStream spillOut = null;
+	private AtomicLong sharedMemoryBytes = null;
+	private long countedBytes = 0;
+
+	private static final long NO_DATE = Long.MIN_VALUE;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**@param maxMemoryBytes encoded key and etag bytes to hold in memory before spilling to a temp file in the tempDir
+	 * @param tempDir for the spill file, null for the default temp directory*/
+	public S3ObjectStore(String bucketName, long maxMemoryBytes, File tempDir) {
+		this(bucketName, maxMemoryBytes, tempDir, null);
+	}
+
+	/**@param sharedMemoryBytes counts the in memory key and etag bytes of every store made with it, the limit is then on their total*/
+	public S3ObjectStore(String bucketName, long maxMemoryBytes, File tempDir, AtomicLong sharedMemoryBytes) {
+		this.bucketName = bucketName;
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.tempDir = tempDir;
+		this.sharedMemoryBytes = sharedMemoryBytes;
+	}
+
+	public void add(S3ObjectSummary os) {
+		try {
+			if (numEntries == sizes.length) {
+				int newLength = sizes.length * 2;
+				sizes = Arrays.copyOf(sizes, newLength);
+				lastModified = Arrays.copyOf(lastModified, newLength);
+				storageClasses = Arrays.copyOf(storageClasses, newLength);
+			}
+			sizes[numEntries] = os.getSize();
+			lastModified[numEntries] = os.getLastModified() == null ? NO_DATE : os.getLastModified().getTime();
+			storageClasses[numEntries] = internStorageClass(os.getStorageClass());
+
+			//front code the key: shared byte count, suffix, then the etag
+			byte[] key = os.getKey().getBytes(StandardCharsets.UTF_8);
+			int shared = 0;
+			int max = Math.min(key.length, priorKey.length);
+			while (shared < max && key[shared] == priorKey[shared]) shared++;
+			writeVarInt(shared);
+			writeVarInt(key.length - shared);
+			writeBytes(key, shared, key.length - shared);
+			writeETag(os.getETag());
+			priorKey = key;
+			numEntries++;
+			if (spillOut == null) {
+				long used = dataLength;
+				if (sharedMemoryBytes != null) {
+					used = sharedMemoryBytes.addAndGet(dataLength - countedBytes);
+					countedBytes = dataLength;
+				}
+				if (used > maxMemoryBytes) spill();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**Appends every entry of the other store.*/
+	public void addAll(S3ObjectStore other) {
+		for (S3ObjectSummary os: other) add(os);
+	}
+
+	public int size() {
+		return numEntries;
+	}
+
+	/**Linear search, for testing and small stores.*/
+	public boolean containsKey(String key) {
+		for (S3ObjectSummary os: this) {
+			if (os.getKey().equals(key)) return true;
+		}
+		return false;
+	}
+
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**Approximate heap bytes used by the store.*/
+	public long getMemoryBytes() {
+		return data.length + sizes.length * 17l;
+	}
+
+	/**Deletes the spill file, the store can't be used afterwards.*/
+	public void close() {
+		try {
+			if (spillOut != null) spillOut.close();
+		} catch (IOException e) {}
+		if (spillFile != null) spillFile.delete();
+		spillOut = null;
+		release();
+	}
+
+	/**Returns this store's bytes to the shared limit.*/
+	private void release() {
+		if (sharedMemoryBytes != null) sharedMemoryBytes.addAndGet(-countedBytes);
+		countedBytes = 0;
+	}
+
+	private byte internStorageClass(String storageClass) {
+		if (storageClass == null) storageClass = "";
+		Byte index = storageClassIndex.get(storageClass);
+		if (index == null) {
+			index = (byte)storageClassNames.size();
+			storageClassNames.add(storageClass);
+			storageClassIndex.put(storageClass, index);
+		}
+		return index;
+	}
+
+	private void spill() throws IOException {
+		spillFile = File.createTempFile("GSyncS3Objects", ".bin", tempDir);
+		spillFile.deleteOnExit();
+		spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), 65536);
+		spillOut.write(data, 0, dataLength);
+		data = new byte[0];
+		dataLength = 0;
+		release();
+	}
+
+	private void writeBytes(byte[] b, int offset, int length) throws IOException {
+		if (spillOut != null) {
+			spillOut.write(b, offset, length);
+			return;
+		}
+		if (dataLength + length > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+		System.arraycopy(b, offset, data, dataLength, length);
+		dataLength += length;
+	}
+
+	/**Single part etags are 32 hex characters, these are packed into 16 bytes. Others, e.g. multipart 'hex-n', are saved as is with a length + 1.*/
+	private void writeETag(String etag) throws IOException {
+		if (etag != null && etag.length() == 32 && isLowerHex(etag)) {
+			writeVarInt(0);
+			byte[] packed = new byte[16];
+			for (int i=0; i< 16; i++) packed[i] = (byte)Integer.parseInt(etag.substring(i*2, i*2+2), 16);
+			writeBytes(packed, 0, 16);
+		}
+		else {
+			byte[] b = etag == null ? new byte[0] : etag.getBytes(StandardCharsets.US_ASCII);
+			writeVarInt(b.length + 1);
+			writeBytes(b, 0, b.length);
+		}
+	}
+
+	private static boolean isLowerHex(String s) {
+		for (int i=0; i< s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+		}
+		return true;
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (spillOut != null) {
+			spillOut.write(b);
+			return;
+		}
+		if (dataLength == data.length) data = Arrays.copyOf(data, data.length * 2);
+		data[dataLength++] = (byte)b;
+	}
+
+	/**Entries in the order added. Don't add while iterating.*/
+	public Iterator<S3ObjectSummary> iterator() {
+		try {
+			InputStream in;
+			if (spillOut != null) {
+				spillOut.flush();
+				in = new BufferedInputStream(new FileInputStream(spillFile), 65536);
+			}
+			else in = new ByteArrayInputStream(data, 0, dataLength);
+			return new StoreIterator(new DataInputStream(in));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private class StoreIterator implements Iterator<S3ObjectSummary> {
+		private DataInputStream in;
+		private int index = 0;
+		private byte[] key = new byte[256];
+
+		StoreIterator(DataInputStream in) {
+			this.in = in;
+		}
+
+		public boolean hasNext() {
+			if (index < numEntries) return true;
+			try {
+				in.close();
+			} catch (IOException e) {}
+			return false;
+		}
+
+		public S3ObjectSummary next() {
+			if (index >= numEntries) throw new NoSuchElementException();
+			try {
+				int shared = readVarInt();
+				int suffix = readVarInt();
+				if (shared + suffix > key.length) key = Arrays.copyOf(key, Math.max(key.length * 2, shared + suffix));
+				in.readFully(key, shared, suffix);
+				String etag = readETag();
+
+				S3ObjectSummary os = new S3ObjectSummary();
+				os.setBucketName(bucketName);
+				os.setKey(new String(key, 0, shared + suffix, StandardCharsets.UTF_8));
+				os.setETag(etag);
+				os.setSize(sizes[index]);
+				if (lastModified[index] != NO_DATE) os.setLastModified(new Date(lastModified[index]));
+				String sc = storageClassNames.get(storageClasses[index] & 0xFF);
+				if (sc.length() != 0) os.setStorageClass(sc);
+				index++;
+				return os;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private String readETag() throws IOException {
+			int length = readVarInt();
+			if (length == 0) {
+				StringBuilder sb = new StringBuilder(32);
+				for (int i=0; i< 16; i++) {
+					int b = in.readUnsignedByte();
+					sb.append(HEX[b >> 4]).append(HEX[b & 0xF]);
+				}
+				return sb.toString();
+			}
+			byte[] b = new byte[length - 1];
+			in.readFully(b);
+			return b.length == 0 ? null : new String(b, StandardCharsets.US_ASCII);
+		}
+
+		private int readVarInt() throws IOException {
+			int value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
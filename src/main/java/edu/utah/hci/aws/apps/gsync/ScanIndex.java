@@ -0,0 +1,113 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**Persistent, gzipped binary index of DirectoryListings keyed by the directory's canonical path. On a rerun, directories whose modification time
+ * hasn't changed are not listed again, their cached subdirectories, candidate files, placeholders, and index files are reused.
+ * The index is tied to the file extensions it was built with, a different set invalidates it.*/
+public class ScanIndex {
+
+	public static final String INDEX_FILE_NAME = "gsyncScanIndex.bin.gz";
+	private static final int VERSION = 2;
+
+	//fields
+	private String signature;
+	private ConcurrentHashMap<String, DirectoryListing> listings = new ConcurrentHashMap<String, DirectoryListing>();
+
+	/**@param signature describes the scan settings that affect which files are saved in each listing, e.g. the file extensions*/
+	public ScanIndex(String signature) {
+		this.signature = signature;
+	}
+
+	public DirectoryListing get(String directory) {
+		return listings.get(directory);
+	}
+
+	public void put(DirectoryListing listing) {
+		listings.put(listing.getPath(), listing);
+	}
+
+	public void remove(String directory) {
+		listings.remove(directory);
+	}
+
+	public int size() {
+		return listings.size();
+	}
+
+	public ConcurrentHashMap<String, DirectoryListing> getListings() {
+		return listings;
+	}
+
+	/**Loads a saved index.
+	 * @return null if the file doesn't exist or was made with a different version or signature.*/
+	public static ScanIndex load(File indexFile, String signature) throws IOException {
+		if (indexFile.exists() == false) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile), 65536)))){
+			if (in.readInt() != VERSION) return null;
+			if (in.readUTF().equals(signature) == false) return null;
+			ScanIndex index = new ScanIndex(signature);
+			int numDirs = in.readInt();
+			for (int i=0; i< numDirs; i++) {
+				String path = in.readUTF();
+				String parent = path.endsWith("/") ? path : path+ "/";
+				long lastModified = in.readLong();
+				LocalFileInfo[] subDirs = new LocalFileInfo[in.readInt()];
+				for (int j=0; j< subDirs.length; j++) subDirs[j] = new LocalFileInfo(parent, in.readUTF(), 0, 0, false, true);
+				LocalFileInfo[] files = readFiles(in, parent);
+				LocalFileInfo[] indexes = readFiles(in, parent);
+				index.put(new DirectoryListing(path, lastModified, subDirs, files, indexes));
+			}
+			return index;
+		}
+	}
+
+	/**Writes the index to a temp file then moves it into place so a failed run never leaves a partial index.*/
+	public void save(File indexFile) throws IOException {
+		File tmp = new File(indexFile.getParentFile(), indexFile.getName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 65536)))){
+			out.writeInt(VERSION);
+			out.writeUTF(signature);
+			out.writeInt(listings.size());
+			for (DirectoryListing dl: listings.values()) {
+				out.writeUTF(dl.getPath());
+				out.writeLong(dl.getLastModified());
+				out.writeInt(dl.getSubDirectories().length);
+				for (LocalFileInfo d: dl.getSubDirectories()) out.writeUTF(d.getName());
+				writeFiles(out, dl.getFiles());
+				writeFiles(out, dl.getIndexes());
+			}
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static LocalFileInfo[] readFiles(DataInputStream in, String parent) throws IOException {
+		LocalFileInfo[] files = new LocalFileInfo[in.readInt()];
+		for (int j=0; j< files.length; j++) {
+			files[j] = new LocalFileInfo(parent, in.readUTF(), in.readLong(), in.readLong(), in.readBoolean(), false);
+		}
+		return files;
+	}
+
+	private static void writeFiles(DataOutputStream out, LocalFileInfo[] files) throws IOException {
+		out.writeInt(files.length);
+		for (LocalFileInfo f: files) {
+			out.writeUTF(f.getName());
+			out.writeLong(f.getSize());
+			out.writeLong(f.getLastModified());
+			out.writeBoolean(f.isSymlink());
+		}
+	}
+}
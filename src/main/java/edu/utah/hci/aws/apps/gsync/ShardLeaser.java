@@ -0,0 +1,283 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import edu.utah.hci.aws.util.Util;
+
+/**Divides a GSync run across several processes by key hash. Each process leases one of the shards with a small lease object, renewed in the
+ * background, and only uploads, restores, deletes, and updates the keys it owns. S3 has no conditional put here so a lease is claimed by writing
+ * it when free or expired, waiting longer than the gap between that check and write, then reading it back, the last writer wins and the others
+ * move on. Processes join the current run, recorded in a run object, so reports left by an earlier run are never merged into this one. On
+ * finishing each shard saves a report of its counts and releases its lease, the last to finish claims the merge the same way and merges the
+ * reports. Shards still without a report or a live lease after a bounded wait, e.g. fewer processes than shards or one killed, are merged as
+ * ERROR so the missed keys aren't silently dropped.*/
+public class ShardLeaser {
+
+	/**Key prefix of the lease and report objects in the bucket.*/
+	public static final String PREFIX = ".gsync/shards/";
+	public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(30);
+	public static final long DEFAULT_SETTLE = TimeUnit.SECONDS.toMillis(5);
+	public static final long DEFAULT_WAIT = TimeUnit.MINUTES.toMillis(10);
+
+	//fields
+	private LeaseStore store;
+	private int numShards;
+	private long ttlMillis;
+	private long settleMillis;
+	private long waitMillis;
+	private String holder;
+	private String runId = null;
+	private int shard = -1;
+	private volatile boolean lost = false;
+	private ScheduledExecutorService renewer = null;
+
+	/**@param ttlMillis how long a lease lasts without renewal, renewed every fifth of this
+	 * @param settleMillis minimum wait between writing a lease and reading it back, raised to the store's worst case write time
+	 * @param waitMillis how long the last to finish waits for shards not yet leased, a run this quiet is over and the next process starts another*/
+	public ShardLeaser(LeaseStore store, int numShards, long ttlMillis, long settleMillis, long waitMillis) {
+		this.store = store;
+		this.numShards = numShards;
+		this.ttlMillis = ttlMillis;
+		//a competing write can land this long after its read saw the lease free, read back sooner and two processes could both win
+		this.settleMillis = Math.max(settleMillis, store.getMaxWriteMillis());
+		this.waitMillis = waitMillis;
+		holder = ManagementFactory.getRuntimeMXBean().getName()+":"+UUID.randomUUID().toString().substring(0, 8);
+	}
+
+	/**Joins the current run, leases the first shard without a live lease or a report in the run, and starts renewing it.
+	 * @return the shard, -1 if all are held by live processes or already done*/
+	public int acquire() throws IOException, InterruptedException {
+		joinRun();
+		for (int i=0; i< numShards; i++) {
+			if (store.read(reportName(i)) != null) continue;
+			String name = leaseName(i);
+			if (isLive(parse(store.read(name)))) continue;
+			store.write(name, leaseContent());
+			Thread.sleep(settleMillis);
+			TreeMap<String, String> lease = parse(store.read(name));
+			if (lease == null || holder.equals(lease.get("holder")) == false) continue;
+			shard = i;
+			renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "ShardLeaseRenewer");
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(1, ttlMillis / 5);
+			renewer.scheduleAtFixedRate(() -> renew(), period, period, TimeUnit.MILLISECONDS);
+			return i;
+		}
+		return -1;
+	}
+
+	/**Joins the run in the run object unless it's merged or quiet, no live lease and nothing created or reported within the wait, otherwise
+	 * clears what that run left and starts a new one. Claimed like a lease, racing processes all read back the last written run.*/
+	private void joinRun() throws IOException, InterruptedException {
+		TreeMap<String, String> run = parse(store.read(runName()));
+		if (run != null && isActive(run)) {
+			runId = run.get("run");
+			return;
+		}
+		if (run != null) {
+			for (int i=0; i< numShards; i++) store.delete(reportName(run.get("run"), i));
+			store.delete(mergeName(run.get("run")));
+		}
+		store.write(runName(), "run="+UUID.randomUUID().toString().substring(0, 8)+"\ncreated="+System.currentTimeMillis()+"\n");
+		Thread.sleep(settleMillis);
+		run = parse(store.read(runName()));
+		if (run == null) throw new IOException("ERROR: failed to read back the shard run "+runName());
+		runId = run.get("run");
+	}
+
+	private boolean isActive(TreeMap<String, String> run) throws IOException {
+		if (run.containsKey("merged")) return false;
+		long since = System.currentTimeMillis() - waitMillis;
+		if (Long.parseLong(run.get("created")) > since) return true;
+		for (int i=0; i< numShards; i++) {
+			TreeMap<String, String> lease = parse(store.read(leaseName(i)));
+			if (isLive(lease) && run.get("run").equals(lease.get("run"))) return true;
+			TreeMap<String, String> report = parse(store.read(reportName(run.get("run"), i)));
+			if (report != null && Long.parseLong(report.getOrDefault("finished", "0")) > since) return true;
+		}
+		return false;
+	}
+
+	private static boolean isLive(TreeMap<String, String> lease) {
+		return lease != null && Long.parseLong(lease.get("expires")) > System.currentTimeMillis();
+	}
+
+	/**Extends the lease, flags it lost if another process took it after it expired.*/
+	private synchronized void renew() {
+		if (lost) return;
+		try {
+			TreeMap<String, String> lease = parse(store.read(leaseName(shard)));
+			if (lease == null || holder.equals(lease.get("holder")) == false) lost = true;
+			else store.write(leaseName(shard), leaseContent());
+		} catch (IOException e) {
+			//tried again next period, the ttl covers a few misses
+		}
+	}
+
+	/**True if the key hashes to this process's shard and the lease hasn't been lost, so a lost lease stops new work.*/
+	public boolean owns(String key) {
+		return lost == false && shardOf(key, numShards) == shard;
+	}
+
+	/**String.hashCode is fixed by the language spec so every JVM agrees.*/
+	public static int shardOf(String key, int numShards) {
+		return (key.hashCode() & 0x7fffffff) % numShards;
+	}
+
+	/**Saves this shard's report and releases the lease. If no other shard of the run holds a live lease, waits up to the wait for those without a
+	 * report to be leased, then claims the merge, merges the reports, and removes them. A shard still without a report was never leased or its
+	 * process died, it's merged as ERROR.
+	 * @param counts e.g. uploads=3, numbers are summed when merged, status=ERROR for any marks the merge as failed
+	 * @return the merged report if this process claimed the merge, otherwise null*/
+	public String finish(TreeMap<String, String> counts) throws IOException, InterruptedException {
+		if (renewer != null) renewer.shutdownNow();
+		TreeMap<String, String> report = new TreeMap<String, String>(counts);
+		report.put("holder", holder);
+		report.put("finished", Long.toString(System.currentTimeMillis()));
+		if (lost) report.put("status", "ERROR lease lost");
+		store.write(reportName(shard), format(report));
+		synchronized (this) {
+			//a lost lease now belongs to the process that took it
+			if (lost == false) store.delete(leaseName(shard));
+		}
+
+		//a shard writes its report before releasing its lease so a running one is never mistaken for a missing one, it merges when done
+		long deadline = System.currentTimeMillis() + waitMillis;
+		long poll = Math.max(10, Math.min(30000, waitMillis / 10));
+		while (true) {
+			if (store.read(mergeName(runId)) != null) return null;
+			boolean missing = false;
+			for (int i=0; i< numShards; i++) {
+				if (store.read(reportName(i)) != null) continue;
+				if (isLive(parse(store.read(leaseName(i))))) return null;
+				missing = true;
+			}
+			if (missing == false || System.currentTimeMillis() >= deadline) break;
+			Thread.sleep(poll);
+		}
+
+		//one merger, claimed like a lease, checked just before the write so the gap stays within the settle
+		if (store.read(mergeName(runId)) != null) return null;
+		store.write(mergeName(runId), "holder="+holder+"\n");
+		Thread.sleep(settleMillis);
+		TreeMap<String, String> merger = parse(store.read(mergeName(runId)));
+		if (merger == null || holder.equals(merger.get("holder")) == false) return null;
+
+		ArrayList<TreeMap<String, String>> reports = new ArrayList<TreeMap<String, String>>();
+		for (int i=0; i< numShards; i++) {
+			TreeMap<String, String> r = parse(store.read(reportName(i)));
+			if (r == null) {
+				r = new TreeMap<String, String>();
+				r.put("holder", "none");
+				r.put("status", "ERROR no report, not leased in time or its process died, rerun GSync for its keys");
+			}
+			reports.add(r);
+		}
+		//later processes start a new run, the next run removes the merge object
+		TreeMap<String, String> run = parse(store.read(runName()));
+		if (run != null && runId.equals(run.get("run"))) {
+			run.put("merged", holder);
+			store.write(runName(), format(run));
+		}
+		for (int i=0; i< numShards; i++) store.delete(reportName(i));
+		return merge(reports);
+	}
+
+	/**Sums the numeric values across the shards, then lists each shard's.*/
+	static String merge(ArrayList<TreeMap<String, String>> reports) {
+		TreeMap<String, Long> totals = new TreeMap<String, Long>();
+		boolean ok = true;
+		StringBuilder perShard = new StringBuilder();
+		for (int i=0; i< reports.size(); i++) {
+			TreeMap<String, String> r = reports.get(i);
+			String status = r.getOrDefault("status", "OK");
+			if (status.equals("OK") == false) ok = false;
+			perShard.append("\n\tShard "+i+" "+r.get("holder")+" "+status+" :");
+			for (Map.Entry<String, String> e: r.entrySet()) {
+				if (e.getKey().equals("status") || e.getKey().equals("holder") || e.getKey().equals("finished")) continue;
+				perShard.append(" "+e.getKey()+"="+e.getValue());
+				try {
+					totals.merge(e.getKey(), Long.parseLong(e.getValue()), Long::sum);
+				} catch (NumberFormatException nfe) {
+					//text only listed per shard
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder("Merged report of "+reports.size()+" shards, "+(ok ? "OK" : "ERROR")+" :");
+		for (Map.Entry<String, Long> e: totals.entrySet()) {
+			if (e.getKey().endsWith("Bytes")) sb.append(" "+e.getKey()+"="+Util.formatSize(e.getValue()));
+			else sb.append(" "+e.getKey()+"="+e.getValue());
+		}
+		sb.append(perShard);
+		return sb.toString();
+	}
+
+	private String leaseContent() {
+		return "holder="+holder+"\nexpires="+(System.currentTimeMillis() + ttlMillis)+"\nrun="+runId+"\n";
+	}
+
+	/**Names include the shard count so runs with different counts never collide.*/
+	private String leaseName(int i) {
+		return "lease-"+i+"-of-"+numShards;
+	}
+
+	private String reportName(int i) {
+		return reportName(runId, i);
+	}
+
+	/**Names include the run so an earlier run's reports are never merged.*/
+	private String reportName(String run, int i) {
+		return "report-"+run+"-"+i+"-of-"+numShards;
+	}
+
+	private String mergeName(String run) {
+		return "merge-"+run+"-of-"+numShards;
+	}
+
+	private String runName() {
+		return "run-of-"+numShards;
+	}
+
+	private static String format(TreeMap<String, String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e: values.entrySet()) sb.append(e.getKey()+"="+e.getValue()+"\n");
+		return sb.toString();
+	}
+
+	/**@return null if content is null*/
+	private static TreeMap<String, String> parse(String content) {
+		if (content == null) return null;
+		TreeMap<String, String> values = new TreeMap<String, String>();
+		for (String line: content.split("\n")) {
+			int eq = line.indexOf('=');
+			if (eq > 0) values.put(line.substring(0, eq), line.substring(eq + 1));
+		}
+		return values;
+	}
+
+	public long getSettleMillis() {
+		return settleMillis;
+	}
+
+	public int getShard() {
+		return shard;
+	}
+
+	public int getNumShards() {
+		return numShards;
+	}
+
+	public boolean isLost() {
+		return lost;
+	}
+}
@@ -0,0 +1,68 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.junit.Test;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+
+/**JUnit tests for the BatchDeleter against a fake S3 client, no AWS resources needed.*/
+public class TestBatchDeleter {
+
+	/**Fails keys starting with 'locked' as S3 does for objects under legal hold.*/
+	private static class FakeS3 extends AbstractAmazonS3 {
+		ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+		public synchronized DeleteObjectsResult deleteObjects(DeleteObjectsRequest r) {
+			batchSizes.add(r.getKeys().size());
+			ArrayList<DeleteError> errors = new ArrayList<DeleteError>();
+			ArrayList<DeletedObject> deleted = new ArrayList<DeletedObject>();
+			for (KeyVersion kv: r.getKeys()) {
+				if (kv.getKey().startsWith("locked")) {
+					DeleteError de = new DeleteError();
+					de.setKey(kv.getKey());
+					de.setCode("AccessDenied");
+					de.setMessage("Access Denied");
+					errors.add(de);
+				}
+				else {
+					DeletedObject d = new DeletedObject();
+					d.setKey(kv.getKey());
+					deleted.add(d);
+				}
+			}
+			if (errors.size() != 0) throw new MultiObjectDeleteException(errors, deleted);
+			return new DeleteObjectsResult(deleted);
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		FakeS3 s3 = new FakeS3();
+		BatchDeleter bd = new BatchDeleter(new GSync(), s3);
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i=0; i< 2500; i++) keys.add("DNA/"+i+".bam");
+		keys.add("locked/a.bam");
+		keys.add("locked/b.bam");
+		HashMap<String, String> failed = bd.delete(keys);
+
+		//3 requests of up to 1000 keys
+		assertEquals(3, s3.batchSizes.size());
+		int total = 0;
+		for (Integer i: s3.batchSizes) {
+			assertTrue(i <= BatchDeleter.MAX_KEYS);
+			total += i;
+		}
+		assertEquals(2502, total);
+
+		//per key errors, not retried
+		assertEquals(2, failed.size());
+		assertTrue(failed.get("locked/a.bam").startsWith("AccessDenied"));
+		assertTrue(bd.getSummary().startsWith("2500 objects deleted with 3"));
+	}
+}
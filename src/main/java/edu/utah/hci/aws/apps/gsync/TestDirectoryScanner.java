@@ -0,0 +1,101 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the index lookups of the DirectoryScanner on a temp directory, no AWS resources needed.*/
+public class TestDirectoryScanner {
+
+	@Test
+	public void testIndexNames() {
+		String[][] n = DirectoryScanner.indexNames("x.bam");
+		assertArrayEquals(new String[] {"x.bam.bai", "x.bai"}, n[0]);
+		assertArrayEquals(new String[] {"x.bam.csi"}, n[1]);
+		assertArrayEquals(new String[] {"y.vcf.gz.tbi"}, DirectoryScanner.indexNames("y.vcf.gz")[0]);
+		assertEquals(0, DirectoryScanner.indexNames("z.zip").length);
+	}
+
+	@Test
+	public void testIndexesFromListing() throws Exception {
+		File dir = Files.createTempDirectory("DirectoryScanner").toFile();
+		try {
+			String[] uploads = {"a.bam", "a.bam.bai", "a.bam.csi", "b.bam", "b.bai", "c.cram", "c.crai", "d.vcf.gz", "d.vcf.gz.tbi",
+					"e.bed.gz", "e.bed.gz.csi", "f.bam"};
+			String[] ignored = {"a.bai", "orphan.bai", "g.txt"};
+			for (String s: uploads) makeFile(new File(dir, s));
+			for (String s: ignored) makeFile(new File(dir, s));
+
+			GSync gs = new GSync();
+			gs.setLocalDir(dir);
+			gs.setMinGigaBytes(0);
+			gs.setMinDaysOld(0);
+			DirectoryScanner scanner = new DirectoryScanner(gs);
+			scanner.scan(new File[] {dir});
+
+			ConcurrentHashMap<String, LocalFileInfo> candidates = scanner.getCandidatesForUpload();
+			assertEquals(uploads.length, candidates.size());
+			String names = candidates.keySet().toString();
+			for (String s: uploads) assertTrue(s, names.contains(s));
+			//xxx.bam.bai is preferred over xxx.bai
+			assertFalse(names.contains("a.bai"));
+			assertEquals(0, scanner.getPlaceholderFiles().size());
+
+			//one stat for the root and one per entry, none for index lookups
+			int entries = uploads.length + ignored.length;
+			assertTrue(scanner.getMetadataCallSummary(), scanner.getMetadataCallSummary().contains((entries + 1)+" stats"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testCachedFileGrownInPlace() throws Exception {
+		File dir = Files.createTempDirectory("DirectoryScanner").toFile();
+		File stateDir = Files.createTempDirectory("DirectoryScannerState").toFile();
+		try {
+			File bam = new File(dir, "growing.bam");
+			makeFile(bam);
+			File indexFile = new File(stateDir, ScanIndex.INDEX_FILE_NAME);
+			//old enough that the listing is trusted next time
+			dir.setLastModified(System.currentTimeMillis() - 3600000);
+
+			GSync gs = new GSync();
+			gs.setLocalDir(dir);
+			gs.setMinGigaBytes(2048.0 / 1073741824.0);
+			gs.setMinDaysOld(0);
+			DirectoryScanner first = new DirectoryScanner(gs);
+			first.useIndex(indexFile);
+			first.scan(new File[] {dir});
+			first.saveIndex(indexFile);
+			assertEquals(0, first.getCandidatesForUpload().size());
+
+			//written in place, the directory is unchanged
+			long dirModified = dir.lastModified();
+			try (RandomAccessFile raf = new RandomAccessFile(bam, "rw")) {
+				raf.setLength(4096);
+			}
+			dir.setLastModified(dirModified);
+
+			DirectoryScanner second = new DirectoryScanner(gs);
+			second.useIndex(indexFile);
+			second.scan(new File[] {dir});
+			assertTrue(second.getMetadataCallSummary(), second.getMetadataCallSummary().contains("1 unchanged directories"));
+			assertEquals(1, second.getCandidatesForUpload().size());
+			assertEquals(4096, second.getCandidatesForUpload().values().iterator().next().getSize());
+		} finally {
+			Util.deleteDirectory(dir);
+			Util.deleteDirectory(stateDir);
+		}
+	}
+
+	private static void makeFile(File f) throws Exception {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(1024);
+		}
+	}
+}
@@ -6,6 +6,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.Tier;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
@@ -13,6 +14,7 @@ import edu.utah.hci.aws.util.Util;
 import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -72,7 +74,7 @@ public class TestGSync {
 			gs.setMinGigaBytes(0.0005);
 
 			gs.scanLocalDir();
-			HashMap <String,File> pathFile = gs.getCandidatesForUpload();
+			HashMap <String,LocalFileInfo> pathFile = gs.getCandidatesForUpload();
 			for (String s: pathFile.keySet()) System.out.println("Can\t"+s);
 
 			//check size
@@ -90,6 +92,89 @@ public class TestGSync {
 		}
 	}
 
+	@Test
+	public void testParallelDirectoryScan() {
+		try {
+			setupLocalDir();
+
+			//single thread
+			GSync serial = new GSync();
+			serial.setLocalDir(new File(pathToTestData+"/GSync"));
+			serial.setMinGigaBytes(0.0005);
+			serial.setNumThreads(1);
+			serial.scanLocalDir();
+
+			//many threads
+			GSync parallel = new GSync();
+			parallel.setLocalDir(new File(pathToTestData+"/GSync"));
+			parallel.setMinGigaBytes(0.0005);
+			parallel.setNumThreads(16);
+			parallel.scanLocalDir();
+
+			//must be identical
+			assertTrue(serial.getCandidatesForUpload().equals(parallel.getCandidatesForUpload()));
+			assertTrue(serial.getPlaceholderFiles().equals(parallel.getPlaceholderFiles()));
+			assertTrue(parallel.getCandidatesForUpload().size() == filesForUpload.length);
+
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testIncrementalScan() {
+		try {
+			setupLocalDir();
+			File stateDir = new File(pathToTestData+"GSyncState");
+			Util.deleteDirectory(stateDir);
+			stateDir.mkdirs();
+
+			//first builds the index, second reuses it
+			GSync first = new GSync();
+			first.setLocalDir(new File(pathToTestData+"/GSync"));
+			first.setMinGigaBytes(0.0005);
+			first.setStateDir(stateDir);
+			first.scanLocalDir();
+			assertTrue(new File(stateDir, ScanIndex.INDEX_FILE_NAME).exists());
+
+			GSync second = new GSync();
+			second.setLocalDir(new File(pathToTestData+"/GSync"));
+			second.setMinGigaBytes(0.0005);
+			second.setStateDir(stateDir);
+			second.scanLocalDir();
+
+			assertTrue(first.getCandidatesForUpload().equals(second.getCandidatesForUpload()));
+			assertTrue(first.getPlaceholderFiles().equals(second.getPlaceholderFiles()));
+			assertTrue(second.getCandidatesForUpload().size() == filesForUpload.length);
+			Util.deleteDirectory(stateDir);
+
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testCollapsePrefixes() {
+		List<String> c = BucketScanner.collapsePrefixes(Arrays.asList("GSync/a/b/", "GSync/a/", "GSync/ab/", "Other/"));
+		assertTrue(c.equals(Arrays.asList("GSync/a/", "GSync/ab/", "Other/")));
+		//the whole bucket
+		c = BucketScanner.collapsePrefixes(Arrays.asList("GSync/a/", ""));
+		assertTrue(c.size() == 1 && c.get(0).equals(""));
+	}
+
+	@Test
+	public void testRestoreTier() {
+		assertTrue(GSync.parseTier("bulk") == Tier.Bulk);
+		assertTrue(GSync.parseTier("Expedited") == Tier.Expedited);
+		assertTrue(RestoreScheduler.pollMinutes(Tier.Expedited) < RestoreScheduler.pollMinutes(Tier.Standard));
+		try {
+			GSync.parseTier("Fast");
+			fail("Should have thrown an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {}
+	}
+
 	@Test
 	public void testInitialSync() {
 		try {
@@ -302,7 +387,7 @@ public class TestGSync {
 			assertTrue(notInS3.getAttribute("key").equals(filesForUpload[0]));
 
 			//check for an S3 object with no local placeholder or file
-			assertTrue(gs2.getS3KeyWithNoLocal().keySet().contains(filesForUpload[2]));
+			assertTrue(gs2.getS3KeyWithNoLocal().containsKey(filesForUpload[2]));
 
 			//check for incorrect size in placeholder
 			Placeholder size = gs2.getFailingPlaceholders().get(0);
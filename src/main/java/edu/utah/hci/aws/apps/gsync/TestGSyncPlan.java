@@ -0,0 +1,59 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.Test;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the GSyncPlan file, no AWS resources needed.*/
+public class TestGSyncPlan {
+
+	@Test
+	public void testSaveLoad() throws Exception {
+		File dir = Files.createTempDirectory("GSyncPlan").toFile();
+		try {
+			File bam = new File(dir, "a.bam");
+			Files.write(bam.toPath(), new byte[1000]);
+			File restore = new File(dir, "b.bam"+Placeholder.PLACEHOLDER_EXTENSION+".restore");
+			Files.write(restore.toPath(), "key = b.bam\n".getBytes());
+
+			GSyncPlan plan = new GSyncPlan("bucket", dir.getCanonicalPath());
+			plan.addUpload("a.bam", new LocalFileInfo(bam.getPath(), bam.length(), bam.lastModified(), false, false));
+			plan.add(GSyncPlan.RESTORE, restore, "b.bam");
+			File planFile = new File(dir, GSyncPlan.PLAN_FILE_NAME);
+			plan.save(planFile);
+
+			GSyncPlan loaded = GSyncPlan.load(planFile);
+			assertEquals("bucket", loaded.getBucketName());
+			assertEquals(dir.getCanonicalPath(), loaded.getDirs());
+			assertEquals(plan.getCreated(), loaded.getCreated());
+			assertEquals(2, loaded.size());
+			assertTrue(loaded.getSummary().startsWith("1 uploads ("));
+			assertTrue(loaded.getSummary().endsWith("), 1 restores"));
+			ArrayList<GSyncPlan.Entry> uploads = loaded.getEntries(GSyncPlan.UPLOAD);
+			assertEquals("a.bam", uploads.get(0).key);
+			assertTrue(uploads.get(0).matches(bam));
+
+			//changed since the dry run
+			Files.write(bam.toPath(), new byte[1001]);
+			assertFalse(uploads.get(0).matches(bam));
+			assertTrue(loaded.getEntries(GSyncPlan.RESTORE).get(0).matches(restore));
+			restore.delete();
+			assertFalse(loaded.getEntries(GSyncPlan.RESTORE).get(0).matches(restore));
+
+			//missing
+			planFile.delete();
+			try {
+				GSyncPlan.load(planFile);
+				fail("Should have thrown");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("No plan file"));
+			}
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import edu.utah.hci.aws.util.RangedDownloader;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the upload checksums, no AWS resources needed.*/
+public class TestHashingInputStream {
+
+	@Test
+	public void testRegions() throws Exception {
+		File dir = Files.createTempDirectory("HashingInputStream").toFile();
+		try {
+			byte[] data = new byte[3 * 1024 * 1024 + 777];
+			new Random(3).nextBytes(data);
+			File f = new File(dir, "a.bam");
+			Files.write(f.toPath(), data);
+
+			//hash as 1MB parts
+			int partSize = 1024 * 1024;
+			ArrayList<byte[]> md5s = new ArrayList<byte[]>();
+			ArrayList<byte[]> sha256s = new ArrayList<byte[]>();
+			for (int offset = 0; offset < data.length; offset += partSize) {
+				int length = Math.min(partSize, data.length - offset);
+				try (HashingInputStream in = new HashingInputStream(f, offset, length)){
+					//read like an http client, odd sized chunks
+					byte[] buffer = new byte[12345];
+					while (in.read(buffer, 0, buffer.length) != -1);
+					assertEquals(length, in.getNumBytes());
+					byte[] region = Arrays.copyOfRange(data, offset, offset + length);
+					assertArrayEquals(MessageDigest.getInstance("MD5").digest(region), in.getMd5());
+					sha256s.add(in.getSha256());
+					md5s.add(MessageDigest.getInstance("MD5").digest(region));
+				}
+			}
+			assertEquals(4, sha256s.size());
+			String composite = UploadedChecksums.compositeSha256(sha256s);
+			assertTrue(composite.endsWith("-4"));
+			assertEquals(64 + 2, composite.length());
+			assertTrue(RangedDownloader.multipartETag(md5s).endsWith("-4"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testCpuNanos() throws Exception {
+		File dir = Files.createTempDirectory("HashingInputStream").toFile();
+		try {
+			byte[] data = new byte[4 * 1024 * 1024];
+			new Random(4).nextBytes(data);
+			File f = new File(dir, "b.bam");
+			Files.write(f.toPath(), data);
+			try (HashingInputStream in = new HashingInputStream(f, 0, data.length)){
+				in.readToEnd();
+				assertEquals(data.length, in.getNumBytes());
+				assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), in.getSha256());
+				assertTrue(in.getCpuNanos() > 0);
+			}
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+}
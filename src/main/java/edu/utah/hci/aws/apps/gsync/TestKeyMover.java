@@ -0,0 +1,120 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.junit.Test;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+
+/**JUnit tests for the KeyMover's multipart copy against a fake S3 client, no AWS resources needed.*/
+public class TestKeyMover {
+
+	private static final long MB = 1024l * 1024l;
+
+	/**Records the byte range of each part copy.*/
+	private static class FakeS3 extends AbstractAmazonS3 {
+		HashMap<Integer, long[]> ranges = new HashMap<Integer, long[]>();
+		ObjectMetadata initiated;
+		int numFailedCompletes = 0;
+		int numCompletes = 0;
+		public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest r) {
+			initiated = r.getObjectMetadata();
+			InitiateMultipartUploadResult res = new InitiateMultipartUploadResult();
+			res.setUploadId("u1");
+			return res;
+		}
+		public synchronized CopyPartResult copyPart(CopyPartRequest r) {
+			ranges.put(r.getPartNumber(), new long[] {r.getFirstByte(), r.getLastByte()});
+			CopyPartResult res = new CopyPartResult();
+			res.setPartNumber(r.getPartNumber());
+			res.setETag("p"+r.getPartNumber());
+			return res;
+		}
+		public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest r) {
+			numCompletes++;
+			if (numFailedCompletes > 0) {
+				numFailedCompletes--;
+				AmazonS3Exception e = new AmazonS3Exception("We encountered an internal error. Please try again.");
+				e.setStatusCode(500);
+				e.setErrorCode("InternalError");
+				throw e;
+			}
+			//parts must be in order
+			int n = 1;
+			for (PartETag pe: r.getPartETags()) assertEquals(n++, pe.getPartNumber());
+			CompleteMultipartUploadResult res = new CompleteMultipartUploadResult();
+			res.setETag("abc-"+r.getPartETags().size());
+			return res;
+		}
+	}
+
+	@Test
+	public void testMultipartCopy() throws Exception {
+		FakeS3 s3 = new FakeS3();
+		KeyMover km = new KeyMover(new GSync(), s3);
+		ObjectMetadata omd = new ObjectMetadata();
+		long size = 1000 * MB + 3;
+		omd.setContentLength(size);
+		omd.setContentType("application/octet-stream");
+		omd.addUserMetadata("source", "gsync");
+		String etag = km.multipartCopy("old/a.bam", "new/a.bam", omd, 64 * MB);
+
+		//16 contiguous ranges covering every byte
+		assertEquals("abc-16", etag);
+		assertEquals(16, s3.ranges.size());
+		long next = 0;
+		for (int i=1; i<= 16; i++) {
+			long[] r = s3.ranges.get(i);
+			assertEquals(next, r[0]);
+			next = r[1] + 1;
+		}
+		assertEquals(size, next);
+		assertEquals("gsync", s3.initiated.getUserMetadata().get("source"));
+	}
+
+	@Test
+	public void testCompleteRetried() throws Exception {
+		//a transient error completing keeps the copied parts
+		FakeS3 s3 = new FakeS3();
+		s3.numFailedCompletes = 1;
+		GSync gsync = new GSync();
+		gsync.setMinToWait(0);
+		KeyMover km = new KeyMover(gsync, s3);
+		ObjectMetadata omd = new ObjectMetadata();
+		omd.setContentLength(200 * MB);
+		assertEquals("abc-4", km.multipartCopy("old/a.bam", "new/a.bam", omd, 64 * MB));
+		assertEquals(2, s3.numCompletes);
+		assertEquals(4, s3.ranges.size());
+	}
+
+	@Test
+	public void testCopyPartSize() throws Exception {
+		Placeholder p = new Placeholder();
+		ObjectMetadata omd = new ObjectMetadata();
+		long size = 22 * MB + 17;
+		omd.setContentLength(size);
+
+		//as the TransferManager uploaded it, 5 parts of 5MB keeps the etag
+		omd.setHeader("ETag", "0123456789abcdef0123456789abcdef-5");
+		assertEquals(5 * MB, KeyMover.copyPartSize(p, omd));
+
+		//recorded by GSync
+		p.getAttributes().put("partSize", Long.toString(8 * MB));
+		omd.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+		assertEquals(8 * MB, KeyMover.copyPartSize(p, omd));
+
+		//plain md5 too big for a single copy falls back to the upload part size
+		omd.setHeader("ETag", "0123456789abcdef0123456789abcdef");
+		omd.setContentLength(6000 * MB);
+		assertEquals(ResumableUploader.partSize(6000 * MB), KeyMover.copyPartSize(new Placeholder(), omd));
+	}
+}
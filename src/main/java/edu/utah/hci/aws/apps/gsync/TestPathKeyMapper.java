@@ -0,0 +1,56 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the PathKeyMapper, no AWS resources needed.*/
+public class TestPathKeyMapper {
+
+	@Test
+	public void testKeys() {
+		PathKeyMapper m = new PathKeyMapper("/Repo/");
+		assertEquals("DNA/a.bam", m.toKey("/Repo/DNA/a.bam"));
+		assertEquals("/Other/a.bam", m.toKey("/Other/a.bam"));
+		assertEquals("/Repo/DNA/a.bam", m.toPath("DNA/a.bam"));
+		assertEquals("DNA/a.bam", m.toKey(new LocalFileInfo("/Repo/DNA/", "a.bam", 1, 1, false, false)));
+
+		//regex characters, replaceFirst fails on these
+		m = new PathKeyMapper("/Repo/Run[1]+(x)/");
+		assertEquals("DNA/a.bam", m.toKey("/Repo/Run[1]+(x)/DNA/a.bam"));
+		assertNotEquals("DNA/a.bam", "/Repo/Run[1]+(x)/DNA/a.bam".replaceFirst("/Repo/Run[1]+(x)/", ""));
+	}
+
+	@Test
+	public void testPlaceholderKey() throws IOException {
+		File dir = Files.createTempDirectory("PathKeyMapper").toFile().getCanonicalFile();
+		try {
+			File sub = new File(dir, "E[x]+");
+			sub.mkdir();
+			PathKeyMapper m = new PathKeyMapper(dir.getPath()+"/");
+			assertEquals("E[x]+/a.bam", m.placeholderKey(new File(sub, "a.bam"+Placeholder.PLACEHOLDER_EXTENSION)));
+			assertEquals("E[x]+/a.bam", m.placeholderKey(new File(sub, "a.bam"+Placeholder.RESTORE_PLACEHOLDER_EXTENSION)));
+			assertEquals("E[x]+/a.bam", m.placeholderKey(new File(sub, "a.bam"+Placeholder.DELETE_PLACEHOLDER_EXTENSION)));
+			//non canonical paths resolve to the same key
+			assertEquals("E[x]+/b.bam", m.placeholderKey(new File(dir.getPath()+"/E[x]+/../E[x]+/b.bam"+Placeholder.PLACEHOLDER_EXTENSION)));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testMatchesReplaceFirst() {
+		//same keys as the regex replaceFirst() it replaced for prefixes without regex characters
+		String prefix = "/scratch/general/pe-nfs1/Repository/";
+		PathKeyMapper m = new PathKeyMapper(prefix);
+		for (int i=0; i< 1000; i++) {
+			LocalFileInfo info = new LocalFileInfo(prefix+"PatientAnalysis/Avatar/AJobs/"+(1100000+i)+"/Alignment/Bam/", "sample"+i+"_Hg38.final.bam", 1, 1, false, false);
+			String regex = info.getPath().replaceFirst(prefix, "");
+			assertEquals(regex, m.toKey(info.getPath()));
+			assertEquals(regex, m.toKey(info));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpServer;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the RunReport against a local stand in for S3 that throttles the first request, no AWS resources needed.*/
+public class TestRunReport {
+
+	@Test
+	public void testPhasesAndRequests() throws Exception {
+		AtomicInteger numHits = new AtomicInteger(0);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			//SlowDown once then OK
+			int status = numHits.incrementAndGet() == 1 ? 503 : 200;
+			exchange.getResponseHeaders().add("Connection", "close");
+			exchange.getResponseHeaders().add("Content-Length", "5");
+			exchange.getResponseHeaders().add("ETag", "\"abc\"");
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+		});
+		server.start();
+		File dir = Files.createTempDirectory("RunReport").toFile();
+		try {
+			RunReport report = new RunReport();
+			AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+					.withEndpointConfiguration(new EndpointConfiguration("http://127.0.0.1:"+server.getAddress().getPort(), "us-west-2"))
+					.withPathStyleAccessEnabled(true)
+					.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("a", "b")))
+					.withRequestHandlers(report.getRequestHandler()).build();
+
+			report.startPhase("scanBucket");
+			s3.getObjectMetadata("bucket", "a/b.bam");
+			s3.getObjectMetadata("bucket", "a/c.bam");
+			report.retried();
+			report.endPhase(2, 10);
+			//not in a phase, only in the totals
+			s3.getObjectMetadata("bucket", "a/d.bam");
+			report.startPhase("upload");
+			s3.shutdown();
+
+			TreeMap<String, Object> run = new TreeMap<String, Object>();
+			run.put("status", "OK");
+			JSONObject jo = report.toJson(run);
+			File reportFile = new File(dir, RunReport.REPORT_FILE_NAME);
+			RunReport.append(reportFile, jo);
+			RunReport.append(reportFile, jo);
+			List<String> lines = Files.readAllLines(reportFile.toPath());
+			assertEquals(2, lines.size());
+
+			JSONObject parsed = (JSONObject) new JSONParser().parse(lines.get(1));
+			assertEquals("OK", parsed.get("status"));
+			JSONArray phases = (JSONArray) parsed.get("phases");
+			assertEquals(2, phases.size());
+			JSONObject scan = (JSONObject) phases.get(0);
+			assertEquals("scanBucket", scan.get("name"));
+			assertEquals(2l, scan.get("items"));
+			assertEquals(2l, ((JSONObject)scan.get("requests")).get("GetObjectMetadata"));
+			assertEquals(1l, scan.get("sdkRetries"));
+			assertEquals(1l, scan.get("retries"));
+			assertTrue((Long)scan.get("peakHeapBytes") > 0);
+			JSONObject total = (JSONObject) parsed.get("total");
+			assertEquals(3l, ((JSONObject)total.get("requests")).get("GetObjectMetadata"));
+			assertEquals(4, numHits.get());
+			assertTrue(report.getSummary(), report.getSummary().startsWith("Phases: scanBucket"));
+		} finally {
+			server.stop(0);
+			Util.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**JUnit tests for the S3ObjectStore, no AWS resources needed.*/
+public class TestS3ObjectStore {
+
+	private static final String[] storageClasses = {"STANDARD", "DEEP_ARCHIVE", "GLACIER"};
+
+	private static S3ObjectSummary makeSummary(int i) {
+		S3ObjectSummary os = new S3ObjectSummary();
+		os.setBucketName("hcibioinfo-gsync-test");
+		os.setKey("PatientAnalysis/Avatar/AJobs/"+(1100000 + i/50)+"/Alignment/"+(1100000 + i/50)+"_TumorDNA/Bam/"+(1100000 + i/50)+"_TumorDNA_Hg38.final."+i+".bam");
+		os.setSize(1000000l * i);
+		//mostly single part, some multipart
+		if (i % 10 == 0) os.setETag("c7b3ef5b43e0c2d2b7f5d0d5d2e0"+Integer.toHexString(i)+"-12");
+		else os.setETag(String.format("c7b3ef5b43e0c2d2b7f5d0d5%08x", i));
+		os.setLastModified(new Date(1600000000000l + i));
+		os.setStorageClass(storageClasses[i % storageClasses.length]);
+		return os;
+	}
+
+	private static void assertSame(S3ObjectSummary a, S3ObjectSummary b) {
+		assertEquals(a.getKey(), b.getKey());
+		assertEquals(a.getSize(), b.getSize());
+		assertEquals(a.getETag(), b.getETag());
+		assertEquals(a.getLastModified(), b.getLastModified());
+		assertEquals(a.getStorageClass(), b.getStorageClass());
+		assertEquals(a.getBucketName(), b.getBucketName());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		S3ObjectStore store = new S3ObjectStore("hcibioinfo-gsync-test", 1024 * 1024, null);
+		for (int i=0; i< 5000; i++) store.add(makeSummary(i));
+		assertEquals(5000, store.size());
+		assertFalse(store.isSpilled());
+		int i = 0;
+		for (S3ObjectSummary os: store) assertSame(makeSummary(i++), os);
+		assertEquals(5000, i);
+		assertTrue(store.containsKey(makeSummary(4999).getKey()));
+		assertFalse(store.containsKey("PatientAnalysis/missing.bam"));
+		store.close();
+	}
+
+	@Test
+	public void testSpill() {
+		//tiny limit forces a spill to disk part way through
+		S3ObjectStore store = new S3ObjectStore("hcibioinfo-gsync-test", 10000, null);
+		for (int i=0; i< 5000; i++) store.add(makeSummary(i));
+		assertTrue(store.isSpilled());
+		Iterator<S3ObjectSummary> it = store.iterator();
+		for (int i=0; i< 5000; i++) assertSame(makeSummary(i), it.next());
+		assertFalse(it.hasNext());
+
+		//join preserves order
+		S3ObjectStore joined = new S3ObjectStore("hcibioinfo-gsync-test", 10000, null);
+		joined.addAll(store);
+		joined.add(makeSummary(5000));
+		assertEquals(5001, joined.size());
+		int i = 0;
+		for (S3ObjectSummary os: joined) assertSame(makeSummary(i++), os);
+		store.close();
+		joined.close();
+	}
+
+	@Test
+	public void testSharedLimit() {
+		//stores filled at once stay under one limit, each still returns all its entries
+		AtomicLong shared = new AtomicLong();
+		S3ObjectStore a = new S3ObjectStore("hcibioinfo-gsync-test", 100000, null, shared);
+		S3ObjectStore b = new S3ObjectStore("hcibioinfo-gsync-test", 100000, null, shared);
+		for (int i=0; i< 5000; i++) {
+			a.add(makeSummary(i));
+			b.add(makeSummary(i));
+			assertTrue(shared.get() <= 100000);
+		}
+		assertTrue(a.isSpilled() || b.isSpilled());
+		int i = 0;
+		for (S3ObjectSummary os: b) assertSame(makeSummary(i++), os);
+		assertEquals(5000, i);
+		a.close();
+		b.close();
+		assertEquals(0, shared.get());
+	}
+
+	@Test
+	public void testMemoryBytes() {
+		//front coded keys, binary etags, and primitive arrays, ~64 bytes per object, the LinkedHashMap of S3ObjectSummaries it replaced measured ~347
+		int num = 200000;
+		S3ObjectStore store = new S3ObjectStore("hcibioinfo-gsync-test", 1024l * 1024l * 1024l, null);
+		for (int i=0; i< num; i++) store.add(makeSummary(i));
+		assertEquals(num, store.size());
+		assertFalse(store.isSpilled());
+		assertTrue(store.getMemoryBytes() / num < 200);
+		store.close();
+	}
+}
@@ -0,0 +1,221 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the ShardLeaser against the shared directory stand-in for the bucket, no AWS resources needed.*/
+public class TestShardLeaser {
+
+	private static TreeMap<String, String> counts(String uploads, String status) {
+		TreeMap<String, String> counts = new TreeMap<String, String>();
+		counts.put("uploads", uploads);
+		counts.put("status", status);
+		return counts;
+	}
+
+	@Test
+	public void testConcurrentLeases() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//5 processes racing for 3 shards
+			FileLeaseStore store = new FileLeaseStore(dir);
+			ExecutorService executor = Executors.newFixedThreadPool(5);
+			ArrayList<ShardLeaser> leasers = new ArrayList<ShardLeaser>();
+			ArrayList<Future<Integer>> shards = new ArrayList<Future<Integer>>();
+			for (int i=0; i< 5; i++) {
+				ShardLeaser sl = new ShardLeaser(store, 3, 60000, 200, 1000);
+				leasers.add(sl);
+				shards.add(executor.submit(() -> sl.acquire()));
+			}
+			HashSet<Integer> leased = new HashSet<Integer>();
+			int numWithout = 0;
+			for (Future<Integer> f: shards) {
+				int s = f.get();
+				if (s == -1) numWithout++;
+				else assertTrue(leased.add(s));
+			}
+			executor.shutdown();
+			assertEquals(3, leased.size());
+			assertEquals(2, numWithout);
+
+			//each key is owned by exactly one shard
+			for (int k=0; k< 1000; k++) {
+				int owners = 0;
+				for (ShardLeaser sl: leasers) if (sl.getShard() != -1 && sl.owns("Repo/DNA/"+k+".bam")) owners++;
+				assertEquals(1, owners);
+			}
+
+			//the last to finish merges
+			String merged = null;
+			for (ShardLeaser sl: leasers) {
+				if (sl.getShard() == -1) continue;
+				String m = sl.finish(counts("2", sl.getShard() == 1 ? "ERROR" : "OK"));
+				if (merged != null) fail("Merged twice");
+				merged = m;
+			}
+			assertTrue(merged.startsWith("Merged report of 3 shards, ERROR : uploads=6"));
+			assertEquals(3, merged.split("\n\tShard ").length - 1);
+
+			//leases and reports removed, the merged run and its merge claim remain till a new run starts
+			String[] left = dir.list();
+			Arrays.sort(left);
+			assertEquals(2, left.length);
+			assertTrue(left[0].startsWith("merge-"));
+			assertEquals("run-of-3", left[1]);
+			assertEquals(0, new ShardLeaser(store, 3, 60000, 0, 1000).acquire());
+			assertEquals(2, dir.list().length);
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testExpiredLease() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			FileLeaseStore store = new FileLeaseStore(dir);
+			//a killed process whose lease isn't renewed
+			ShardLeaser dead = new ShardLeaser(store, 1, 100, 0, 100);
+			assertEquals(0, dead.acquire());
+			assertEquals(-1, new ShardLeaser(store, 1, 100, 0, 100).acquire());
+			//stop the renewal as if killed
+			dead.finish(new TreeMap<String, String>());
+			store.write("lease-0-of-1", "holder=dead\nexpires="+(System.currentTimeMillis() - 1)+"\n");
+			assertEquals(0, new ShardLeaser(store, 1, 100, 0, 100).acquire());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testUnleasedShards() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//2 processes for 3 shards, after the wait the last to finish reports the unleased shard
+			FileLeaseStore store = new FileLeaseStore(dir);
+			ShardLeaser a = new ShardLeaser(store, 3, 60000, 0, 300);
+			ShardLeaser b = new ShardLeaser(store, 3, 60000, 0, 300);
+			assertEquals(0, a.acquire());
+			assertEquals(1, b.acquire());
+			assertNull(a.finish(counts("2", "OK")));
+			String merged = b.finish(counts("2", "OK"));
+			assertTrue(merged.startsWith("Merged report of 3 shards, ERROR : uploads=4"));
+			assertTrue(merged.contains("Shard 2 none ERROR no report"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testStaggeredStart() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//the first finishes before the second has leased, it waits and the second merges
+			FileLeaseStore store = new FileLeaseStore(dir);
+			ShardLeaser a = new ShardLeaser(store, 2, 60000, 0, 5000);
+			assertEquals(0, a.acquire());
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			Future<String> first = executor.submit(() -> a.finish(counts("2", "OK")));
+			Thread.sleep(300);
+			ShardLeaser b = new ShardLeaser(store, 2, 60000, 0, 5000);
+			assertEquals(1, b.acquire());
+			assertNull(first.get());
+			executor.shutdown();
+			String merged = b.finish(counts("3", "OK"));
+			assertTrue(merged.startsWith("Merged report of 2 shards, OK : uploads=5"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testConcurrentFinish() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//all finish at once, exactly one merges, none sees a report another removed
+			FileLeaseStore store = new FileLeaseStore(dir);
+			ArrayList<ShardLeaser> leasers = new ArrayList<ShardLeaser>();
+			for (int i=0; i< 3; i++) {
+				ShardLeaser sl = new ShardLeaser(store, 3, 60000, 100, 1000);
+				assertEquals(i, sl.acquire());
+				leasers.add(sl);
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(3);
+			ArrayList<Future<String>> finished = new ArrayList<Future<String>>();
+			for (ShardLeaser sl: leasers) finished.add(executor.submit(() -> sl.finish(counts("1", "OK"))));
+			ArrayList<String> merged = new ArrayList<String>();
+			for (Future<String> f: finished) if (f.get() != null) merged.add(f.get());
+			executor.shutdown();
+			assertEquals(1, merged.size());
+			assertTrue(merged.get(0).startsWith("Merged report of 3 shards, OK : uploads=3"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testStaleReports() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//an earlier run killed before its merge
+			FileLeaseStore store = new FileLeaseStore(dir);
+			store.write("run-of-2", "run=old\ncreated=1\n");
+			store.write("report-old-1-of-2", "holder=gone\nfinished=1\nstatus=OK\nuploads=5\n");
+			ShardLeaser sl = new ShardLeaser(store, 2, 60000, 0, 200);
+			assertEquals(0, sl.acquire());
+			assertFalse(new File(dir, "report-old-1-of-2").exists());
+			String merged = sl.finish(counts("2", "OK"));
+			assertTrue(merged.startsWith("Merged report of 2 shards, ERROR : uploads=2"));
+			assertTrue(merged.contains("Shard 1 none ERROR no report"));
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testLostLease() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			FileLeaseStore store = new FileLeaseStore(dir);
+			ShardLeaser sl = new ShardLeaser(store, 1, 100, 0, 100);
+			assertEquals(0, sl.acquire());
+			assertTrue(sl.owns("Repo/DNA/a.bam"));
+			//another process took it, the next renewal notices and new work stops
+			store.write("lease-0-of-1", "holder=other\nexpires="+(System.currentTimeMillis() + 60000)+"\n");
+			for (int i=0; i< 50 && sl.isLost() == false; i++) Thread.sleep(20);
+			assertTrue(sl.isLost());
+			assertFalse(sl.owns("Repo/DNA/a.bam"));
+			assertTrue(sl.finish(new TreeMap<String, String>()).contains("ERROR lease lost"));
+			assertTrue(new File(dir, "lease-0-of-1").exists());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testSettle() throws Exception {
+		File dir = Files.createTempDirectory("ShardLeaser").toFile();
+		try {
+			//a store with slow retried writes raises the wait before reading a claim back
+			FileLeaseStore slow = new FileLeaseStore(dir) {
+				public long getMaxWriteMillis() {
+					return 250;
+				}
+			};
+			assertEquals(250, new ShardLeaser(slow, 2, 60000, 100, 1000).getSettleMillis());
+			assertEquals(500, new ShardLeaser(slow, 2, 60000, 500, 1000).getSettleMillis());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+}
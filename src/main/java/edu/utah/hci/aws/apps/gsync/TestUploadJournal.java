@@ -0,0 +1,52 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Test;
+import edu.utah.hci.aws.util.Util;
+
+/**JUnit tests for the UploadJournal and part sizing, no AWS resources needed.*/
+public class TestUploadJournal {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File dir = Files.createTempDirectory("UploadJournal").toFile();
+		try {
+			File local = new File(dir, "a.bam");
+			Util.write("some data", local);
+			File jf = new File(dir, UploadJournal.JOURNAL_FILE_NAME);
+			UploadJournal j = new UploadJournal(jf);
+			j.start(new UploadJournal.Entry("DNA/a.bam", "uploadId1", local.length(), local.lastModified(), 64l * 1024l * 1024l, 1000l));
+			j.addPart("DNA/a.bam", 1, "etag1", "sha1");
+			j.addPart("DNA/a.bam", 3, "etag3", "sha3");
+			j.start(new UploadJournal.Entry("DNA/b.bam", "uploadId2", 5, 6, 7, 8));
+			j.remove("DNA/b.bam");
+
+			//reload as a rerun would
+			UploadJournal r = new UploadJournal(jf);
+			assertEquals(1, r.size());
+			UploadJournal.Entry e = r.get("DNA/a.bam");
+			assertEquals("uploadId1", e.uploadId);
+			assertEquals(2, e.partETags.size());
+			assertEquals("etag3", e.partETags.get(3));
+			assertEquals("sha3", e.partSha256s.get(3));
+			assertTrue(e.matches(local));
+			local.setLastModified(local.lastModified() - 10000);
+			assertFalse(e.matches(local));
+			assertFalse(new File(dir, UploadJournal.JOURNAL_FILE_NAME+".tmp").exists());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testPartSize() {
+		long mb = 1024l * 1024l;
+		assertEquals(64 * mb, ResumableUploader.partSize(300 * mb));
+		//300GB needs more than 64MB parts to stay under 10000
+		long ps = ResumableUploader.partSize(300l * 1024l * mb);
+		assertTrue(ps % mb == 0);
+		assertTrue((300l * 1024l * mb + ps - 1) / ps <= 10000);
+	}
+}
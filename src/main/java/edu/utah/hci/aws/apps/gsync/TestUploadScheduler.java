@@ -0,0 +1,74 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.Test;
+
+/**JUnit tests for the UploadScheduler orders and budgets, no AWS resources needed.*/
+public class TestUploadScheduler {
+
+	private static final long GB = 1024l * 1024l * 1024l;
+
+	private static HashMap<String, LocalFileInfo> candidates() {
+		HashMap<String, LocalFileInfo> c = new HashMap<String, LocalFileInfo>();
+		c.put("A/a1.bam", new LocalFileInfo("/Repo/A/", "a1.bam", 5 * GB, 300, false, false));
+		c.put("A/a2.bam", new LocalFileInfo("/Repo/A/", "a2.bam", 4 * GB, 100, false, false));
+		c.put("A/a3.bam", new LocalFileInfo("/Repo/A/", "a3.bam", 3 * GB, 200, false, false));
+		c.put("B/b1.bam", new LocalFileInfo("/Repo/B/", "b1.bam", 1 * GB, 50, false, false));
+		c.put("B/b2.bam", new LocalFileInfo("/Repo/B/", "b2.bam", 2 * GB, 400, false, false));
+		return c;
+	}
+
+	@Test
+	public void testOrders() {
+		HashMap<String, LocalFileInfo> c = candidates();
+		assertEquals(Arrays.asList("A/a1.bam", "A/a2.bam", "A/a3.bam", "B/b2.bam", "B/b1.bam"), UploadScheduler.order(c, UploadScheduler.LARGEST));
+		assertEquals(Arrays.asList("B/b1.bam", "A/a2.bam", "A/a3.bam", "A/a1.bam", "B/b2.bam"), UploadScheduler.order(c, UploadScheduler.OLDEST));
+		assertEquals(Arrays.asList("A/a1.bam", "B/b2.bam", "A/a2.bam", "B/b1.bam", "A/a3.bam"), UploadScheduler.order(c, UploadScheduler.DIRECTORY));
+	}
+
+	@Test
+	public void testBudgets() {
+		//no budget, all handed out
+		UploadScheduler us = new UploadScheduler(null);
+		us.start(candidates());
+		int n = 0;
+		while (us.next() != null) n++;
+		assertEquals(5, n);
+		assertFalse(us.isStopped());
+
+		//stops once 8G is handed out, the file crossing it still goes
+		us = new UploadScheduler("largest, 8G");
+		us.start(candidates());
+		assertEquals("A/a1.bam", us.next());
+		assertEquals("A/a2.bam", us.next());
+		assertNull(us.next());
+		assertTrue(us.isStopped());
+		assertTrue(us.getStopSummary(), us.getStopSummary().contains("3 files (6"));
+
+		//time budget
+		us = new UploadScheduler("oldest,0.0001min");
+		us.start(candidates());
+		try {
+			Thread.sleep(20);
+		} catch (InterruptedException e) {}
+		assertNull(us.next());
+		assertTrue(us.getStopSummary().contains("5 files"));
+
+		//500M could be bytes or minutes
+		try {
+			new UploadScheduler("largest,500M");
+			fail("Should have thrown");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("ambiguous"));
+		}
+
+		try {
+			new UploadScheduler("biggest");
+			fail("Should have thrown");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("biggest"));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**Persistent record of in progress multipart uploads keyed by S3 key: the upload id, the local file's size and modification time, the part size,
+ * and the completed part numbers, ETags, and SHA-256s. Saved in the GSync index directory after every change so a rerun can resume a killed upload.*/
+public class UploadJournal {
+
+	public static final String JOURNAL_FILE_NAME = "gsyncUploadJournal.bin.gz";
+	private static final int VERSION = 2;
+
+	//fields
+	private File journalFile;
+	private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+	public static class Entry {
+		final String key;
+		final String uploadId;
+		final long size;
+		final long lastModified;
+		final long partSize;
+		final long started;
+		final TreeMap<Integer, String> partETags = new TreeMap<Integer, String>();
+		final TreeMap<Integer, String> partSha256s = new TreeMap<Integer, String>();
+
+		Entry(String key, String uploadId, long size, long lastModified, long partSize, long started) {
+			this.key = key;
+			this.uploadId = uploadId;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.partSize = partSize;
+			this.started = started;
+		}
+
+		/**True if the local file is unchanged since the upload started.*/
+		boolean matches(File f) {
+			return f.length() == size && f.lastModified() == lastModified;
+		}
+	}
+
+	/**Loads the journal if present, a different version is discarded.
+	 * @param journalFile null to keep the journal in memory, uploads then can't resume after a restart*/
+	public UploadJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		if (journalFile == null || journalFile.exists() == false) return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(journalFile))))){
+			if (in.readInt() != VERSION) return;
+			int num = in.readInt();
+			for (int i=0; i< num; i++) {
+				Entry e = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+				int numParts = in.readInt();
+				for (int j=0; j< numParts; j++) {
+					int partNumber = in.readInt();
+					e.partETags.put(partNumber, in.readUTF());
+					e.partSha256s.put(partNumber, in.readUTF());
+				}
+				entries.put(e.key, e);
+			}
+		}
+	}
+
+	public synchronized Entry get(String key) {
+		return entries.get(key);
+	}
+
+	public synchronized ArrayList<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public synchronized void start(Entry e) throws IOException {
+		entries.put(e.key, e);
+		save();
+	}
+
+	public synchronized void addPart(String key, int partNumber, String etag, String sha256) throws IOException {
+		Entry e = entries.get(key);
+		if (e == null) return;
+		e.partETags.put(partNumber, etag);
+		e.partSha256s.put(partNumber, sha256);
+		save();
+	}
+
+	public synchronized void remove(String key) throws IOException {
+		if (entries.remove(key) != null) save();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**Writes to a temp file then moves it into place so a crash never leaves a partial journal.*/
+	private void save() throws IOException {
+		if (journalFile == null) return;
+		File tmp = new File(journalFile.getParentFile(), journalFile.getName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))){
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Entry e: entries.values()) {
+				out.writeUTF(e.key);
+				out.writeUTF(e.uploadId);
+				out.writeLong(e.size);
+				out.writeLong(e.lastModified);
+				out.writeLong(e.partSize);
+				out.writeLong(e.started);
+				out.writeInt(e.partETags.size());
+				for (Map.Entry<Integer, String> p: e.partETags.entrySet()) {
+					out.writeInt(p.getKey());
+					out.writeUTF(p.getValue());
+					out.writeUTF(e.partSha256s.get(p.getKey()));
+				}
+			}
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
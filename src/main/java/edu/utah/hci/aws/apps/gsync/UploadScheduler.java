@@ -0,0 +1,156 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import edu.utah.hci.aws.util.Util;
+
+/**Hands the upload candidates to the UploadWorkers in priority order so a run cut short frees the most disk: largest first (the default), oldest
+ * first, or round robin across directories, largest first within each. An optional byte and or time budget stops handing out files once
+ * reached, those in flight finish, the rest are left for the next run. Parsed from e.g. 'largest,2T,6h' or 'oldest,500G,90min'. Thread safe.*/
+public class UploadScheduler {
+
+	public static final String LARGEST = "largest";
+	public static final String OLDEST = "oldest";
+	public static final String DIRECTORY = "directory";
+
+	//fields
+	private String order = LARGEST;
+	private long maxBytes = 0;
+	private long maxMillis = 0;
+
+	//per run, guarded by this
+	private ArrayList<String> keys = new ArrayList<String>();
+	private Map<String, LocalFileInfo> candidates = null;
+	private int index = 0;
+	private long bytesHandedOut = 0;
+	private long startTime = 0;
+	private String stopReason = null;
+
+	/**@param spec comma separated order and budgets, e.g. 'oldest', 'largest,500G', 'directory,2T,6h', 'largest,90min', null for largest first without a budget
+	 * @throws IllegalArgumentException if malformed*/
+	public UploadScheduler(String spec) {
+		if (spec == null) return;
+		for (String s: Util.COMMA.split(spec.trim())) {
+			s = s.trim().toLowerCase();
+			if (s.equals(LARGEST) || s.equals(OLDEST) || s.equals(DIRECTORY)) order = s;
+			else if (s.endsWith("h") || s.endsWith("min")) maxMillis = parseMillis(s);
+			//lowercased, so 500M could be megabytes or minutes
+			else if (s.endsWith("m")) throw new IllegalArgumentException("The upload budget '"+s+"' is ambiguous, use e.g. 500G for bytes or 90min for minutes");
+			else maxBytes = parseBytes(s);
+		}
+	}
+
+	/**e.g. 6h or 90min*/
+	private static long parseMillis(String s) {
+		try {
+			boolean hours = s.endsWith("h");
+			double num = Double.parseDouble(s.substring(0, s.length() - (hours ? 1 : 3)));
+			if (num <= 0) throw new NumberFormatException();
+			TimeUnit unit = hours ? TimeUnit.HOURS : TimeUnit.MINUTES;
+			return (long)(num * unit.toMillis(1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Failed to parse the upload time budget '"+s+"', use e.g. 6h or 90min");
+		}
+	}
+
+	/**e.g. 500G or 2T, binary units*/
+	private static long parseBytes(String s) {
+		try {
+			//no M, too easily read as minutes
+			int power;
+			switch (s.charAt(s.length()-1)) {
+			case 'k': power = 1; break;
+			case 'g': power = 3; break;
+			case 't': power = 4; break;
+			default: throw new NumberFormatException();
+			}
+			double num = Double.parseDouble(s.substring(0, s.length()-1));
+			if (num <= 0) throw new NumberFormatException();
+			return (long)(num * Math.pow(1024, power));
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Failed to parse '"+s+"' in the upload order, use largest, oldest, or directory and optional budgets, e.g. 500G, 2T, 6h, 90min");
+		}
+	}
+
+	/**Orders the candidates and starts the budget clock.*/
+	public synchronized void start(Map<String, LocalFileInfo> candidates) {
+		this.candidates = candidates;
+		keys = order(candidates, order);
+		index = 0;
+		bytesHandedOut = 0;
+		stopReason = null;
+		startTime = System.currentTimeMillis();
+	}
+
+	/**The keys in upload order, ties broken by key so the order is stable.*/
+	static ArrayList<String> order(Map<String, LocalFileInfo> candidates, String order) {
+		Comparator<Map.Entry<String, LocalFileInfo>> largest = (a, b) -> Long.compare(b.getValue().getSize(), a.getValue().getSize());
+		largest = largest.thenComparing(Map.Entry::getKey);
+		ArrayList<Map.Entry<String, LocalFileInfo>> entries = new ArrayList<Map.Entry<String, LocalFileInfo>>(candidates.entrySet());
+		ArrayList<String> keys = new ArrayList<String>(entries.size());
+		if (order.equals(OLDEST)) {
+			Comparator<Map.Entry<String, LocalFileInfo>> oldest = (a, b) -> Long.compare(a.getValue().getLastModified(), b.getValue().getLastModified());
+			entries.sort(oldest.thenComparing(Map.Entry::getKey));
+		}
+		else if (order.equals(DIRECTORY)) {
+			//one from each directory per round so a single deep directory can't starve the others
+			TreeMap<String, ArrayList<Map.Entry<String, LocalFileInfo>>> byDir = new TreeMap<String, ArrayList<Map.Entry<String, LocalFileInfo>>>();
+			for (Map.Entry<String, LocalFileInfo> e: entries) byDir.computeIfAbsent(e.getValue().getParent(), k -> new ArrayList<Map.Entry<String, LocalFileInfo>>()).add(e);
+			for (ArrayList<Map.Entry<String, LocalFileInfo>> al: byDir.values()) al.sort(largest);
+			for (int round = 0; keys.size() < entries.size(); round++) {
+				for (ArrayList<Map.Entry<String, LocalFileInfo>> al: byDir.values()) {
+					if (round < al.size()) keys.add(al.get(round).getKey());
+				}
+			}
+			return keys;
+		}
+		else entries.sort(largest);
+		for (Map.Entry<String, LocalFileInfo> e: entries) keys.add(e.getKey());
+		return keys;
+	}
+
+	/**Called by the UploadWorkers.
+	 * @return the next key, null when all have been handed out or a budget is reached*/
+	public synchronized String next() {
+		if (stopReason != null || index >= keys.size()) return null;
+		if (maxBytes > 0 && bytesHandedOut >= maxBytes) {
+			stopReason = Util.formatSize(maxBytes)+" byte budget";
+			return null;
+		}
+		if (maxMillis > 0 && System.currentTimeMillis() - startTime >= maxMillis) {
+			stopReason = Util.formatNumber(maxMillis / 3600000.0, 1)+" hour time budget";
+			return null;
+		}
+		String key = keys.get(index++);
+		bytesHandedOut += candidates.get(key).getSize();
+		return key;
+	}
+
+	/**True if a budget stopped the run before all were handed out.*/
+	public synchronized boolean isStopped() {
+		return stopReason != null;
+	}
+
+	/**e.g. 'Upload 2.0 TB byte budget reached, 120 files (3.1 TB) left for the next run'*/
+	public synchronized String getStopSummary() {
+		if (stopReason == null) return "";
+		long bytesLeft = 0;
+		for (int i = index; i< keys.size(); i++) bytesLeft += candidates.get(keys.get(i)).getSize();
+		return "Upload "+stopReason+" reached, "+(keys.size() - index)+" files ("+Util.formatSize(bytesLeft)+") left for the next run";
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/**e.g. 'largest first, stop after 2.0 TB, stop after 6.0 h'*/
+	public String getDescription() {
+		String s = order.equals(DIRECTORY) ? "round robin by directory" : order+" first";
+		if (maxBytes > 0) s += ", stop after "+Util.formatSize(maxBytes);
+		if (maxMillis > 0) s += ", stop after "+Util.formatNumber(maxMillis / 3600000.0, 1)+" h";
+		return s;
+	}
+}
@@ -0,0 +1,67 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.util.ArrayList;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import edu.utah.hci.aws.util.Util;
+
+/**Uploads candidate files one after another from the shared GSync queue, writing each placeholder as soon as its own upload completes.
+ * Several of these run at once so multiple files are in flight. Stops at the first failure, GSync stops handing out new files once any worker fails.*/
+public class UploadWorker implements Runnable {
+
+	//fields
+	private GSync gsync;
+	private TransferManager tm;
+	private boolean failed = false;
+	private String error = null;
+	private long bytesUploaded = 0;
+	private ArrayList<Long> fileMilliSec = new ArrayList<Long>();
+	private ArrayList<LocalFileInfo> uploaded = new ArrayList<LocalFileInfo>();
+
+	public UploadWorker(GSync gsync, TransferManager tm) {
+		this.gsync = gsync;
+		this.tm = tm;
+	}
+
+	public void run() {
+		try {
+			String key;
+			while ((key = gsync.fetchNextUpload())!= null) {
+				LocalFileInfo toUpload = gsync.getCandidatesForUpload().get(key);
+				long startTime = System.currentTimeMillis();
+				UploadedChecksums checksums = gsync.tryUpload(gsync.getBucketName(), key, toUpload.getFile(), tm);
+				gsync.writePlaceholder(key, toUpload, checksums);
+				long diff = System.currentTimeMillis() - startTime;
+				fileMilliSec.add(diff);
+				bytesUploaded += toUpload.getSize();
+				uploaded.add(toUpload);
+				gsync.pl("\t"+gsync.incrementUploadCounter()+"\t"+gsync.getBucketName()+"/"+key+"\t"+Util.formatNumber(((double)diff)/60000.0, 1)+" min");
+			}
+		} catch (Exception e) {
+			failed = true;
+			error = Util.getStackTrace(e);
+			gsync.uploadFailed();
+		}
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded;
+	}
+
+	/**Wall time in milliseconds of each completed file, upload plus placeholder.*/
+	public ArrayList<Long> getFileMilliSec() {
+		return fileMilliSec;
+	}
+
+	/**Files whose upload and placeholder both completed.*/
+	public ArrayList<LocalFileInfo> getUploaded() {
+		return uploaded;
+	}
+}
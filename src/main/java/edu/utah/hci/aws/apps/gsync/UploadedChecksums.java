@@ -0,0 +1,54 @@
+package edu.utah.hci.aws.apps.gsync;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import edu.utah.hci.aws.util.RangedDownloader;
+
+/**The S3 ETag of an upload and the checksums computed while sending it. Multipart uploads get a composite SHA-256, the SHA-256 of the
+ * concatenated part SHA-256s, a dash, and the number of parts, with the part size so the file can be rehashed the same way.*/
+public class UploadedChecksums {
+
+	//fields
+	private String etag;
+	private String sha256;
+	private long partSize;
+
+	/**@param partSize 0 for a single part upload*/
+	public UploadedChecksums(String etag, String sha256, long partSize) {
+		this.etag = etag;
+		this.sha256 = sha256;
+		this.partSize = partSize;
+	}
+
+	/**@return hex SHA-256 of the part SHA-256s, a dash, and the number of parts*/
+	public static String compositeSha256(List<byte[]> partSha256s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (byte[] p: partSha256s) md.update(p);
+			return RangedDownloader.hex(md.digest())+ "-"+ partSha256s.size();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**Adds the checksum attributes to a placeholder's.*/
+	public void addAttributes(HashMap<String, String> att) {
+		att.put("etag", etag);
+		if (sha256 != null) att.put("sha256", sha256);
+		if (partSize != 0) att.put("partSize", Long.toString(partSize));
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+}
@@ -0,0 +1,171 @@
+package edu.utah.hci.aws.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Token bucket shared by all the transfer streams so together they stay under a cap that follows an hourly schedule, e.g. '7-19:2000' for
+ * 2000 Mbps from 7am to 7pm and unlimited otherwise. A control file, re-read when it changes, overrides the schedule with the same syntax
+ * so a running daemon can be throttled or freed, delete it to return to the schedule. Streams call acquire(bytes) after each read and go
+ * into debt, sleeping till it's repaid, so a burst is never larger than BURST_SECONDS of the cap. Thread safe.*/
+public class BandwidthLimiter {
+
+	public static final String CONTROL_FILE_NAME = "gsyncBandwidth.txt";
+	/**Tokens that can build up while idle, in seconds of the cap.*/
+	private static final double BURST_SECONDS = 0.25;
+	/**How often the schedule and control file are checked.*/
+	private static final long CHECK_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	//fields
+	private long[] schedule;
+	private String scheduleString;
+	private File controlFile;
+	private long controlModified = -1;
+	private long[] controlSchedule = null;
+	private String controlString = null;
+	private String controlError = null;
+	private volatile long lastCheck = 0;
+	private volatile long bytesPerSec = 0;
+
+	//bucket, guarded by this
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+
+	//metrics
+	private AtomicLong numBytes = new AtomicLong(0);
+	private AtomicLong nanosWaited = new AtomicLong(0);
+
+	/**@param schedule e.g. '7-19:2000,19-7:8000' or '500', null for unlimited unless the control file says otherwise
+	 * @param controlFile may be null*/
+	public BandwidthLimiter(String schedule, File controlFile) {
+		this.schedule = parseSchedule(schedule);
+		scheduleString = schedule == null ? "unlimited" : schedule;
+		this.controlFile = controlFile;
+		check(System.nanoTime());
+	}
+
+	/**Parses comma separated 'startHour-endHour:Mbps' ranges, an end before the start wraps past midnight, a lone number caps all day.
+	 * Hours not covered are unlimited, as is a cap of 0.
+	 * @return the cap in bytes per second for each hour of the day, 0 for unlimited
+	 * @throws IllegalArgumentException if malformed*/
+	public static long[] parseSchedule(String s) {
+		long[] hours = new long[24];
+		if (s == null || s.trim().length() == 0) return hours;
+		for (String range: Util.COMMA.split(s.trim())) {
+			range = range.trim();
+			try {
+				int colon = range.indexOf(':');
+				if (colon == -1) {
+					long bps = mbpsToBytes(Double.parseDouble(range));
+					for (int h = 0; h< 24; h++) hours[h] = bps;
+					continue;
+				}
+				String[] startEnd = range.substring(0, colon).split("-");
+				if (startEnd.length != 2) throw new IllegalArgumentException();
+				int start = Integer.parseInt(startEnd[0].trim());
+				int end = Integer.parseInt(startEnd[1].trim());
+				if (start < 0 || start > 23 || end < 0 || end > 24) throw new IllegalArgumentException();
+				long bps = mbpsToBytes(Double.parseDouble(range.substring(colon + 1)));
+				for (int h = start; h != end % 24; h = (h + 1) % 24) hours[h] = bps;
+				//e.g. 0-24
+				if (start == end % 24 && start != end) for (int h = 0; h< 24; h++) hours[h] = bps;
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Failed to parse the bandwidth range '"+range+"', use startHour-endHour:Mbps, e.g. 7-19:2000");
+			}
+		}
+		return hours;
+	}
+
+	private static long mbpsToBytes(double mbps) {
+		if (mbps < 0) throw new IllegalArgumentException();
+		return (long)(mbps * 1000000.0 / 8.0);
+	}
+
+	/**Blocks till the bytes fit under the cap.*/
+	public void acquire(long bytes) throws InterruptedException {
+		numBytes.addAndGet(bytes);
+		long now = System.nanoTime();
+		if (now - lastCheck > CHECK_NANOS) check(now);
+		long rate = bytesPerSec;
+		if (rate == 0) return;
+		long waitNanos;
+		synchronized (this) {
+			now = System.nanoTime();
+			tokens = Math.min(rate * BURST_SECONDS, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+			tokens -= bytes;
+			if (tokens >= 0) return;
+			waitNanos = (long)(-tokens * 1e9 / rate);
+		}
+		nanosWaited.addAndGet(waitNanos);
+		TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	/**Sets the current cap from the control file if present, otherwise the schedule.*/
+	private synchronized void check(long now) {
+		if (now - lastCheck <= CHECK_NANOS && lastCheck != 0) return;
+		lastCheck = now;
+		readControlFile();
+		int hour = LocalTime.now().getHour();
+		long rate = controlSchedule != null ? controlSchedule[hour] : schedule[hour];
+		if (rate != bytesPerSec) {
+			bytesPerSec = rate;
+			tokens = 0;
+			lastRefill = System.nanoTime();
+		}
+	}
+
+	private void readControlFile() {
+		if (controlFile == null) return;
+		if (controlFile.exists() == false) {
+			controlModified = -1;
+			controlSchedule = null;
+			controlString = null;
+			controlError = null;
+			return;
+		}
+		long modified = controlFile.lastModified();
+		if (modified == controlModified) return;
+		controlModified = modified;
+		try {
+			String s = new String(Files.readAllBytes(controlFile.toPath())).trim();
+			controlSchedule = parseSchedule(s);
+			controlString = s.length() == 0 ? "unlimited" : s;
+			controlError = null;
+		} catch (IOException | IllegalArgumentException e) {
+			//keep what was in effect
+			controlError = controlFile+": "+e.getMessage();
+		}
+	}
+
+	/**Forces the schedule and control file to be checked on the next acquire, for testing.*/
+	void recheck() {
+		lastCheck = 0;
+		check(System.nanoTime());
+	}
+
+	/**The cap now in effect, 0 for unlimited.*/
+	public long getBytesPerSec() {
+		return bytesPerSec;
+	}
+
+	public long getNumBytes() {
+		return numBytes.get();
+	}
+
+	public long getNanosWaited() {
+		return nanosWaited.get();
+	}
+
+	public synchronized String getSummary() {
+		String cap = bytesPerSec == 0 ? "unlimited" : Util.formatNumber(bytesPerSec * 8.0 / 1000000.0, 0)+" Mbps";
+		String source = controlString != null ? "control file '"+controlString+"'" : "schedule '"+scheduleString+"'";
+		String s = "Bandwidth: cap now "+cap+" from "+source+", "+Util.formatSize(numBytes.get())+" transferred, streams waited "+
+				Util.formatNumber(nanosWaited.get() / 60e9, 1)+" min";
+		if (controlError != null) s += ", ignoring unparsable "+controlError;
+		return s;
+	}
+}
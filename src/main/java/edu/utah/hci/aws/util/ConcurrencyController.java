@@ -0,0 +1,192 @@
+package edu.utah.hci.aws.util;
+
+import java.util.ArrayList;
+import com.amazonaws.AmazonServiceException;
+
+/**Adapts the number of concurrent S3 transfers AIMD style, like TCP congestion control. Workers call acquire() before a transfer, then
+ * completed() or throttled(), then release(). The first SlowDown in a window halves the limit. At the end of a window without throttling the
+ * limit is stepped back by one if the last increase didn't raise the aggregate throughput and the time per byte inflated, otherwise raised by one
+ * if the limit was reached. Each adjustment is kept in the history. Thread safe.*/
+public class ConcurrencyController {
+
+	/**Milliseconds between adjustments.*/
+	public static final long DEFAULT_WINDOW = 10000;
+	/**An increase must add this fraction of throughput to be kept.*/
+	private static final double MIN_GAIN = 1.05;
+	/**Time per byte more than this multiple of the best seen means the link is saturated.*/
+	private static final double LATENCY_INFLATION = 2.0;
+
+	//fields
+	private String name;
+	private int min;
+	private int max;
+	private int limit;
+	private long windowMillis;
+	private int inFlight = 0;
+	private long startTime;
+	private long windowStart;
+
+	//window accumulators
+	private long windowBytes = 0;
+	private long windowNanos = 0;
+	private int windowCount = 0;
+	private int windowThrottles = 0;
+	private int windowPeak = 0;
+
+	//state across windows
+	private double lastThroughput = 0;
+	private boolean lastIncreased = false;
+	private double bestNanosPerByte = Double.MAX_VALUE;
+
+	//metrics
+	private long totalBytes = 0;
+	private int totalCount = 0;
+	private int totalThrottles = 0;
+	private int peakLimit;
+	private ArrayList<String> history = new ArrayList<String>();
+
+	/**@param name for the summary, e.g. 'Files' or 'Parts'
+	 * @param initial starting limit, clamped to min and max*/
+	public ConcurrencyController(String name, int min, int max, int initial, long windowMillis) {
+		this.name = name;
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		limit = Math.min(this.max, Math.max(this.min, initial));
+		peakLimit = limit;
+		this.windowMillis = windowMillis;
+		startTime = System.currentTimeMillis();
+		windowStart = startTime;
+	}
+
+	/**Starts at half the max.*/
+	public ConcurrencyController(String name, int max) {
+		this(name, 1, max, (max + 1) / 2, DEFAULT_WINDOW);
+	}
+
+	/**Blocks till there's room under the current limit.*/
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= limit) wait();
+		inFlight++;
+		if (inFlight > windowPeak) windowPeak = inFlight;
+	}
+
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**Records a successful transfer and its wall time.*/
+	public synchronized void completed(long bytes, long nanos) {
+		windowBytes += bytes;
+		windowNanos += nanos;
+		windowCount++;
+		totalBytes += bytes;
+		totalCount++;
+		checkWindow();
+	}
+
+	/**Records an S3 SlowDown or 503, the first in a window halves the limit at once, the rest of the burst is already in flight.*/
+	public synchronized void throttled() {
+		windowThrottles++;
+		totalThrottles++;
+		if (windowThrottles == 1) {
+			int old = limit;
+			limit = Math.max(min, limit / 2);
+			lastIncreased = false;
+			//the window is cut short, report the last full one
+			record(System.currentTimeMillis(), old, "throttled", lastThroughput);
+		}
+		checkWindow();
+	}
+
+	private void record(long now, int old, String reason, double throughput) {
+		history.add(Util.formatNumber((now - startTime)/1000.0, 0)+"s "+old+">"+limit+" "+reason+" "+Util.formatNumber(throughput/1048576.0, 1)+"MB/s");
+	}
+
+	private void checkWindow() {
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= windowMillis) adjust(now);
+	}
+
+	/**Ends the window, adjusting the limit from what was observed in it.*/
+	synchronized void adjust(long now) {
+		double seconds = Math.max(1, now - windowStart) / 1000.0;
+		double throughput = windowBytes / seconds;
+		double nanosPerByte = windowBytes > 0 ? (double)windowNanos / (double)windowBytes : 0;
+		int old = limit;
+		String reason = null;
+		if (windowThrottles != 0 || windowCount == 0) {
+			//already halved, or idle or transfers longer than the window so nothing to judge
+		}
+		else if (lastIncreased && throughput < lastThroughput * MIN_GAIN && nanosPerByte > bestNanosPerByte * LATENCY_INFLATION) {
+			limit = Math.max(min, limit - 1);
+			reason = "no gain";
+			lastIncreased = false;
+		}
+		else if (windowPeak >= limit && limit < max) {
+			limit++;
+			reason = "increase";
+			lastIncreased = true;
+		}
+		else lastIncreased = false;
+		if (windowCount != 0) {
+			lastThroughput = throughput;
+			if (nanosPerByte > 0 && nanosPerByte < bestNanosPerByte) bestNanosPerByte = nanosPerByte;
+		}
+		if (limit > peakLimit) peakLimit = limit;
+		if (reason != null) {
+			record(now, old, reason, throughput);
+			notifyAll();
+		}
+		windowStart = now;
+		windowBytes = 0;
+		windowNanos = 0;
+		windowCount = 0;
+		windowThrottles = 0;
+		windowPeak = inFlight;
+	}
+
+	/**True for the errors S3 returns when a prefix or account is sending too many requests.*/
+	public static boolean isThrottle(AmazonServiceException ase) {
+		if (ase.getStatusCode() == 503) return true;
+		String code = ase.getErrorCode();
+		return "SlowDown".equals(code) || "RequestLimitExceeded".equals(code) || "Throttling".equals(code);
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getPeakLimit() {
+		return peakLimit;
+	}
+
+	public synchronized int getNumThrottled() {
+		return totalThrottles;
+	}
+
+	/**Each adjustment, e.g. '30s 4>5 increase 112.0MB/s'*/
+	public synchronized ArrayList<String> getHistory() {
+		return new ArrayList<String>(history);
+	}
+
+	public synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name+" concurrency: limit "+limit+" ("+min+"-"+max+", peak "+peakLimit+"), "+totalCount+" transfers, "+Util.formatSize(totalBytes)+", "+
+				totalThrottles+" throttled, "+history.size()+" adjustments");
+		if (history.size() != 0) {
+			//the latest, enough to see the trend
+			int first = Math.max(0, history.size() - 10);
+			sb.append(": ");
+			for (int i = first; i< history.size(); i++) {
+				if (i != first) sb.append(", ");
+				sb.append(history.get(i));
+			}
+		}
+		return sb.toString();
+	}
+}
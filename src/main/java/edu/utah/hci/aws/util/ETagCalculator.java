@@ -0,0 +1,101 @@
+package edu.utah.hci.aws.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Computes the S3 ETag of a local file, the plain MD5 or for multipart uploads the MD5 of the part MD5s, a dash, and the number of parts.
+ * Parts are hashed in parallel from memory mapped windows of the file so the work spreads across cores and keeps up with NVMe reads.
+ * Thread safe, the hashing threads are shared by all concurrent calls.*/
+public class ETagCalculator {
+
+	/**Bytes mapped at a time.*/
+	private static final long WINDOW_SIZE = 256l * 1024l * 1024l;
+	private static final long MB = 1024l * 1024l;
+	/**Part sizes commonly used by the TransferManager, the CLI, and GSync, tried when the upload's part size wasn't recorded.*/
+	private static final long[] COMMON_PART_SIZES = {5*MB, 8*MB, 16*MB, 32*MB, 64*MB, 100*MB, 128*MB, 256*MB, 512*MB};
+
+	//fields
+	private ExecutorService executor;
+	private AtomicLong numBytes = new AtomicLong(0);
+
+	public ETagCalculator(int numThreads) {
+		executor = Executors.newFixedThreadPool(numThreads);
+	}
+
+	/**@param partSize the upload's part size, ignored if numParts is 1 for a plain MD5 etag
+	 * @param numParts from the etag, 1 for a plain MD5 etag, e.g. 3 for xxx-3
+	 * @return the hex etag, without quotes*/
+	public String calculate(File file, long partSize, int numParts) throws IOException {
+		long size = file.length();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			if (numParts == 1) return RangedDownloader.hex(md5(channel, 0, size));
+			ArrayList<Future<byte[]>> parts = new ArrayList<Future<byte[]>>();
+			for (long offset = 0; offset < size; offset += partSize) {
+				long o = offset;
+				long length = Math.min(partSize, size - offset);
+				parts.add(executor.submit(() -> md5(channel, o, length)));
+			}
+			ArrayList<byte[]> md5s = new ArrayList<byte[]>();
+			for (Future<byte[]> f: parts) md5s.add(f.get());
+			return RangedDownloader.multipartETag(md5s);
+		} catch (ExecutionException | InterruptedException e) {
+			throw new IOException("ERROR hashing "+file+"\n"+e.getMessage());
+		}
+	}
+
+	private byte[] md5(FileChannel channel, long offset, long length) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		long end = offset + length;
+		for (long p = offset; p < end; p += WINDOW_SIZE) {
+			MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, p, Math.min(WINDOW_SIZE, end - p));
+			md.update(mbb);
+		}
+		numBytes.addAndGet(length);
+		return md.digest();
+	}
+
+	/**Part sizes consistent with the number of parts in an etag, the recorded part size if known, otherwise the TransferManager's default
+	 * of the size/10000 with a 5MB minimum, size/numParts rounded up to the MB, then common sizes.
+	 * @param recordedPartSize from the placeholder, 0 if not recorded*/
+	public static ArrayList<Long> candidatePartSizes(long size, int numParts, long recordedPartSize) {
+		ArrayList<Long> c = new ArrayList<Long>();
+		if (recordedPartSize > 0) {
+			c.add(recordedPartSize);
+			return c;
+		}
+		long tm = Math.max(5*MB, (size + 9999) / 10000);
+		long perPart = ((size + numParts - 1) / numParts + MB - 1) / MB * MB;
+		ArrayList<Long> all = new ArrayList<Long>();
+		all.add(tm);
+		all.add(perPart);
+		for (long ps: COMMON_PART_SIZES) all.add(ps);
+		for (Long ps: all) {
+			if ((size + ps - 1) / ps == numParts && c.contains(ps) == false) c.add(ps);
+		}
+		return c;
+	}
+
+	public long getNumBytes() {
+		return numBytes.get();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -20,6 +20,13 @@ public class Gzipper {
 		out = new GZIPOutputStream(new FileOutputStream(this.gzipFile));
 	}
 	
+	/**@param syncFlush if true flush() writes out all the compressed data so far, e.g. for a log read while still being written*/
+	public Gzipper (File gzipFile, boolean syncFlush) throws FileNotFoundException, IOException{
+		if (gzipFile.getName().endsWith(".gz") == false) this.gzipFile = new File (gzipFile+".gz");
+		else this.gzipFile = gzipFile;
+		out = new GZIPOutputStream(new FileOutputStream(this.gzipFile), syncFlush);
+	}
+	
 	public Gzipper(OutputStream gzipFile) throws IOException {
 		out = new GZIPOutputStream(gzipFile);
 	}
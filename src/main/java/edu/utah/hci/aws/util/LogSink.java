@@ -0,0 +1,192 @@
+package edu.utah.hci.aws.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**Bounded replacement for an ever growing StringBuilder log. Everything appended is streamed to a log file, gzipped if it ends in .gz, that is
+ * rotated once it passes maxFileChars, keeping maxFiles, e.g. gsyncLog.txt.gz then gsyncLog.1.txt.gz, gsyncLog.2.txt.gz. Only the first
+ * headChars and the last tailChars are held in memory for the email summary. Without a file it is just the bounded head and tail. Thread safe.*/
+public class LogSink {
+
+	public static final int DEFAULT_HEAD_CHARS = 256 * 1024;
+	public static final int DEFAULT_TAIL_CHARS = 768 * 1024;
+	public static final long DEFAULT_MAX_FILE_CHARS = 100l * 1024l * 1024l;
+	public static final int DEFAULT_MAX_FILES = 5;
+	private static final long FLUSH_MILLIS = 2000;
+
+	//in memory
+	private int headChars;
+	private int tailChars;
+	private StringBuilder head = new StringBuilder();
+	private StringBuilder tail = new StringBuilder();
+	private long numCharsDropped = 0;
+
+	//file, null if not streaming
+	private File logFile = null;
+	private long maxFileChars;
+	private int maxFiles;
+	private Gzipper gzipper = null;
+	private Writer writer = null;
+	private long fileChars = 0;
+	private long lastFlush = 0;
+	private String fileError = null;
+	private boolean closed = false;
+
+	public LogSink() {
+		this(DEFAULT_HEAD_CHARS, DEFAULT_TAIL_CHARS);
+	}
+
+	public LogSink(int headChars, int tailChars) {
+		this.headChars = headChars;
+		this.tailChars = tailChars;
+	}
+
+	/**Starts streaming to the file, rotating any from a prior run, and writes what's held so far. Closed by a shutdown hook if not closed.
+	 * @param maxFileChars rotate once this much is written, 0 to never rotate
+	 * @param maxFiles the current plus the rotated files kept, at least 1*/
+	public synchronized void setFile(File logFile, long maxFileChars, int maxFiles) throws IOException {
+		this.logFile = logFile;
+		this.maxFileChars = maxFileChars;
+		this.maxFiles = Math.max(1, maxFiles);
+		open();
+		write(getSummary());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> close()));
+	}
+
+	/**Adds the text as is, add the line return for lines.*/
+	public synchronized void append(String s) {
+		if (s.length() == 0) return;
+		if (logFile != null && fileError == null && closed == false) {
+			try {
+				if (maxFileChars > 0 && fileChars >= maxFileChars) {
+					closeFile();
+					open();
+				}
+				write(s);
+				long now = System.currentTimeMillis();
+				if (now - lastFlush > FLUSH_MILLIS) {
+					flush();
+					lastFlush = now;
+				}
+			} catch (IOException e) {
+				//keep logging to memory, the summary says why the file stopped
+				fileError = e.getMessage();
+				closeFile();
+			}
+		}
+		int room = headChars - head.length();
+		if (room > 0 && numCharsDropped == 0 && tail.length() == 0) {
+			if (s.length() <= room) {
+				head.append(s);
+				return;
+			}
+			head.append(s, 0, room);
+			s = s.substring(room);
+		}
+		tail.append(s);
+		//trim in chunks so each append stays cheap
+		if (tail.length() > tailChars * 2l) {
+			int cut = tail.length() - tailChars;
+			//start the tail on a line
+			int rtn = tail.indexOf("\n", cut);
+			if (rtn != -1 && rtn - cut < 1024) cut = rtn + 1;
+			tail.delete(0, cut);
+			numCharsDropped += cut;
+		}
+	}
+
+	/**Starts a new summary, e.g. for each reconcile of a daemon, the file continues.*/
+	public synchronized void reset() {
+		head.setLength(0);
+		tail.setLength(0);
+		numCharsDropped = 0;
+		try {
+			flush();
+		} catch (IOException e) {}
+	}
+
+	/**The head and tail, with a note of what was left out and where to find it.*/
+	public synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder(head);
+		long dropped = numCharsDropped;
+		int start = 0;
+		//the tail holds up to twice its size between trims
+		if (tail.length() > tailChars) {
+			start = tail.length() - tailChars;
+			dropped += start;
+		}
+		if (dropped != 0) {
+			sb.append("\n\n... "+Util.formatSize(dropped)+" of log omitted");
+			if (logFile != null) sb.append(", see "+logFile);
+			sb.append(" ...\n\n");
+		}
+		sb.append(tail, start, tail.length());
+		if (fileError != null) sb.append("\nWARNING: stopped writing the log file "+logFile+", "+fileError+"\n");
+		return sb.toString();
+	}
+
+	private void open() throws IOException {
+		rotate();
+		if (logFile.getName().endsWith(".gz")) gzipper = new Gzipper(logFile, true);
+		else writer = new BufferedWriter(new FileWriter(logFile));
+		fileChars = 0;
+	}
+
+	/**Shifts xxx.txt.gz to xxx.1.txt.gz and so on, the oldest is deleted.*/
+	private void rotate() {
+		if (logFile.exists() == false) return;
+		if (maxFiles == 1) {
+			logFile.delete();
+			return;
+		}
+		rotatedFile(maxFiles - 1).delete();
+		for (int i = maxFiles - 2; i > 0; i--) {
+			File f = rotatedFile(i);
+			if (f.exists()) f.renameTo(rotatedFile(i + 1));
+		}
+		logFile.renameTo(rotatedFile(1));
+	}
+
+	/**e.g. gsyncLog.2.txt.gz for gsyncLog.txt.gz*/
+	File rotatedFile(int i) {
+		String name = logFile.getName();
+		int dot = name.indexOf('.');
+		String rotated = dot == -1 ? name+"."+i : name.substring(0, dot)+"."+i+name.substring(dot);
+		return new File(logFile.getParentFile(), rotated);
+	}
+
+	private void write(String s) throws IOException {
+		if (gzipper != null) gzipper.print(s);
+		else if (writer != null) writer.write(s);
+		fileChars += s.length();
+	}
+
+	private void flush() throws IOException {
+		if (gzipper != null) gzipper.flush();
+		else if (writer != null) writer.flush();
+	}
+
+	private void closeFile() {
+		if (gzipper != null) gzipper.closeNoException();
+		gzipper = null;
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {}
+		}
+		writer = null;
+	}
+
+	/**Closes the file, later appends are only held in memory.*/
+	public synchronized void close() {
+		closeFile();
+		closed = true;
+	}
+
+	public File getLogFile() {
+		return logFile;
+	}
+}
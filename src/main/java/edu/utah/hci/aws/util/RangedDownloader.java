@@ -0,0 +1,277 @@
+package edu.utah.hci.aws.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**Downloads an S3 object as concurrent byte range GETs written with positional FileChannel writes into a preallocated file. For multipart
+ * objects the ranges follow the original upload parts so each part's MD5 is computed in flight and the part-aware ETag, md5(part md5s)-N, is
+ * checked at the end. Single part objects are checked against the plain MD5. Objects encrypted with KMS or customer keys have non MD5 ETags
+ * and are not checked. Every range GET requires the HEAD's ETag so a changed object fails instead of mixing versions.
+ * Thread safe, the range threads are shared by all concurrent downloads.*/
+public class RangedDownloader {
+
+	/**Range size for single part objects.*/
+	public static final long RANGE_SIZE = 64l * 1024l * 1024l;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	//fields
+	private AmazonS3 s3;
+	private ExecutorService executor;
+	private int maxTries;
+	private int secToWait;
+	private BandwidthLimiter bandwidth = null;
+
+	//metrics
+	private AtomicLong numBytes = new AtomicLong(0);
+	private AtomicLong numRequests = new AtomicLong(0);
+
+	/**@param numThreads the number of range GETs in flight across all downloads
+	 * @param maxTries attempts per range before failing the download
+	 * @param secToWait sleep between attempts*/
+	public RangedDownloader(AmazonS3 s3, int numThreads, int maxTries, int secToWait) {
+		this.s3 = s3;
+		this.maxTries = maxTries;
+		this.secToWait = secToWait;
+		executor = Executors.newFixedThreadPool(numThreads);
+	}
+
+	/**Downloads the object into the destination, replacing it. The destination is deleted on failure.*/
+	public void download(String bucketName, String key, File destination) throws IOException {
+		try {
+			//HEAD for the size, etag, and part layout
+			ObjectMetadata om = tryGetObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+			long size = om.getContentLength();
+			String etag = om.getETag();
+			int numParts = parsePartCount(etag);
+			long rangeSize = RANGE_SIZE;
+			if (numParts > 1) {
+				ObjectMetadata first = tryGetObjectMetadata(new GetObjectMetadataRequest(bucketName, key).withPartNumber(1));
+				if (first.getPartCount() != null && first.getPartCount() == numParts) rangeSize = first.getContentLength();
+				else numParts = -1;
+			}
+			boolean verify = numParts != -1 && om.getSSEAwsKmsKeyId() == null && om.getSSECustomerAlgorithm() == null;
+
+			//preallocate
+			try (RandomAccessFile raf = new RandomAccessFile(destination, "rw")){
+				raf.setLength(size);
+			}
+
+			//fetch the ranges
+			ArrayList<Future<byte[]>> ranges = new ArrayList<Future<byte[]>>();
+			try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+				for (long start = 0; start < size; start += rangeSize) {
+					long end = Math.min(size, start + rangeSize) - 1;
+					long s = start;
+					ranges.add(executor.submit(() -> fetchRange(bucketName, key, etag, s, end, channel)));
+				}
+				ArrayList<byte[]> digests = new ArrayList<byte[]>();
+				for (Future<byte[]> f: ranges) digests.add(f.get());
+				channel.force(false);
+
+				//verify
+				if (verify) {
+					String local;
+					if (numParts > 1) local = multipartETag(digests);
+					else if (digests.size() == 1) local = hex(digests.get(0));
+					else local = hex(md5(channel, size));
+					if (local.equals(stripQuotes(etag)) == false) throw new IOException("ERROR: the downloaded ETag "+local+" does not match S3's "+etag+" for "+key);
+				}
+			}
+		} catch (IOException e) {
+			destination.delete();
+			throw e;
+		} catch (ExecutionException e) {
+			destination.delete();
+			throw new IOException("ERROR downloading "+key+" from "+bucketName+"\n"+Util.getStackTrace(e.getCause()));
+		} catch (InterruptedException e) {
+			destination.delete();
+			throw new IOException("ERROR interrupted downloading "+key+" from "+bucketName);
+		}
+	}
+
+	/**Not worth retrying, e.g. the object changed.*/
+	private static class FatalRangeException extends IOException {
+		private static final long serialVersionUID = 1L;
+		FatalRangeException(String message) {
+			super(message);
+		}
+	}
+
+	/**Fetches one range, retrying maxTries, writing it at its position in the file. Failures reading the body, e.g. a reset connection, are
+	 * retried as well as the S3 errors.
+	 * @return the md5 of the range*/
+	private byte[] fetchRange(String bucketName, String key, String etag, long start, long end, FileChannel channel) throws IOException {
+		int attempt = 0;
+		String error = null;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (attempt++ < maxTries) {
+			long position = start;
+			MessageDigest md = newMd5();
+			numRequests.incrementAndGet();
+			try {
+				GetObjectRequest gor = new GetObjectRequest(bucketName, key).withRange(start, end).withMatchingETagConstraint(etag);
+				S3Object o = s3.getObject(gor);
+				//null when the etag constraint fails
+				if (o == null) throw new FatalRangeException("ERROR: "+key+" changed during the download, ETag no longer "+etag);
+				try (InputStream in = o.getObjectContent()){
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						if (bandwidth != null) throttle(n);
+						md.update(buffer, 0, n);
+						ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+						while (bb.hasRemaining()) position += channel.write(bb, position);
+					}
+				}
+				if (position != end + 1) throw new SdkClientException("Short range read for "+key+", "+(position - start)+" of "+(end - start + 1)+" bytes");
+				numBytes.addAndGet(end - start + 1);
+				return md.digest();
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			} catch (FatalRangeException fre) {
+				throw fre;
+			} catch (IOException ioe) {
+				error = Util.getStackTrace(ioe);
+			}
+			sleep();
+		}
+		//only hits this if all the attempts failed
+		throw new IOException("ERROR failed range "+start+"-"+end+" of "+key+" in "+bucketName+" S3 error message:\n"+error);
+	}
+
+	private void throttle(int n) throws IOException {
+		try {
+			bandwidth.acquire(n);
+		} catch (InterruptedException e) {
+			throw new FatalRangeException("ERROR interrupted waiting for bandwidth");
+		}
+	}
+
+	/**Caps the range GETs of all downloads together, null for none.*/
+	public void setBandwidth(BandwidthLimiter bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	private ObjectMetadata tryGetObjectMetadata(GetObjectMetadataRequest request) throws IOException {
+		int attempt = 0;
+		String error = null;
+		while (attempt++ < maxTries) {
+			numRequests.incrementAndGet();
+			try {
+				return s3.getObjectMetadata(request);
+			} catch (AmazonServiceException ase) {
+				error = Util.getStackTrace(ase);
+			} catch (SdkClientException sce) {
+				error = Util.getStackTrace(sce);
+			}
+			sleep();
+		}
+		throw new IOException("ERROR failed to fetch ObjectMedaData for "+request.getKey()+" in "+request.getBucketName()+" S3 error message:\n"+error);
+	}
+
+	private void sleep() {
+		try {
+			TimeUnit.SECONDS.sleep(secToWait);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**@return the number of parts in a multipart ETag, 1 for a plain MD5, -1 if neither*/
+	public static int parsePartCount(String etag) {
+		String e = stripQuotes(etag);
+		int dash = e.indexOf('-');
+		if (dash == -1) return e.length() == 32 ? 1 : -1;
+		if (dash != 32) return -1;
+		try {
+			return Integer.parseInt(e.substring(dash + 1));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**@return md5 of the concatenated part md5s, a dash, and the number of parts*/
+	public static String multipartETag(ArrayList<byte[]> partMd5s) {
+		MessageDigest md = newMd5();
+		for (byte[] p: partMd5s) md.update(p);
+		return hex(md.digest())+ "-"+ partMd5s.size();
+	}
+
+	private static byte[] md5(FileChannel channel, long size) throws IOException {
+		MessageDigest md = newMd5();
+		ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long position = 0;
+		while (position < size) {
+			bb.clear();
+			int n = channel.read(bb, position);
+			if (n == -1) break;
+			position += n;
+			bb.flip();
+			md.update(bb);
+		}
+		return md.digest();
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String hex(byte[] bytes) {
+		char[] c = new char[bytes.length * 2];
+		for (int i=0; i< bytes.length; i++) {
+			c[i*2] = HEX[(bytes[i] >> 4) & 0xF];
+			c[i*2+1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(c);
+	}
+
+	public static byte[] unhex(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+		for (int i=0; i< b.length; i++) b[i] = (byte)Integer.parseInt(hex.substring(i*2, i*2+2), 16);
+		return b;
+	}
+
+	private static String stripQuotes(String etag) {
+		if (etag.startsWith("\"")) return etag.substring(1, etag.length()-1);
+		return etag;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public long getNumBytes() {
+		return numBytes.get();
+	}
+
+	public long getNumRequests() {
+		return numRequests.get();
+	}
+}
@@ -0,0 +1,102 @@
+package edu.utah.hci.aws.util;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**JUnit tests for the BandwidthLimiter, no AWS resources needed.*/
+public class TestBandwidthLimiter {
+
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void testSchedule() throws Exception {
+		long[] h = BandwidthLimiter.parseSchedule("7-19:2000");
+		assertEquals(250000000l, h[7]);
+		assertEquals(250000000l, h[18]);
+		assertEquals(0, h[19]);
+		assertEquals(0, h[6]);
+
+		//wraps past midnight, later ranges override
+		h = BandwidthLimiter.parseSchedule("800, 22-6:100");
+		assertEquals(12500000l, h[23]);
+		assertEquals(12500000l, h[0]);
+		assertEquals(12500000l, h[5]);
+		assertEquals(100000000l, h[6]);
+
+		assertEquals(0, BandwidthLimiter.parseSchedule(null)[12]);
+		try {
+			BandwidthLimiter.parseSchedule("7-19");
+			fail("Should have thrown");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("7-19"));
+		}
+	}
+
+	@Test
+	public void testControlFile() throws Exception {
+		File dir = Files.createTempDirectory("BandwidthLimiter").toFile();
+		try {
+			File control = new File(dir, BandwidthLimiter.CONTROL_FILE_NAME);
+			BandwidthLimiter bl = new BandwidthLimiter(null, control);
+			assertEquals(0, bl.getBytesPerSec());
+
+			Files.write(control.toPath(), "80\n".getBytes());
+			bl.recheck();
+			assertEquals(10000000l, bl.getBytesPerSec());
+			assertTrue(bl.getSummary().contains("80 Mbps from control file"));
+
+			//unparsable keeps the cap in effect
+			Files.write(control.toPath(), "fast".getBytes());
+			control.setLastModified(control.lastModified() + 2000);
+			bl.recheck();
+			assertEquals(10000000l, bl.getBytesPerSec());
+			assertTrue(bl.getSummary().contains("ignoring unparsable"));
+
+			//back to the schedule
+			control.delete();
+			bl.recheck();
+			assertEquals(0, bl.getBytesPerSec());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testCap() throws Exception {
+		//4 streams sharing a 400 Mbps cap, a loaded machine only slows them so just the cap is checked
+		BandwidthLimiter bl = new BandwidthLimiter("400", null);
+		byte[] data = new byte[8 * MB];
+		int numStreams = 4;
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(numStreams);
+		for (int i=0; i< numStreams; i++) executor.execute(() -> readAll(new ThrottledInputStream(new ByteArrayInputStream(data), bl)));
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double mbps = numStreams * data.length * 8.0 / seconds / 1000000.0;
+		assertEquals(numStreams * data.length, bl.getNumBytes());
+		assertTrue(mbps < 400 * 1.1);
+
+		//uncapped passes everything through
+		BandwidthLimiter unlimited = new BandwidthLimiter(null, null);
+		readAll(new ThrottledInputStream(new ByteArrayInputStream(data), unlimited));
+		assertEquals(data.length, unlimited.getNumBytes());
+	}
+
+	private static void readAll(InputStream in) {
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			while (in.read(buffer) != -1) {}
+			in.close();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
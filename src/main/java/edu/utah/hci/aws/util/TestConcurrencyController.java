@@ -0,0 +1,143 @@
+package edu.utah.hci.aws.util;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+/**JUnit tests for the ConcurrencyController, the fault injecting S3 stand-in needs no AWS resources.*/
+public class TestConcurrencyController {
+
+	private static final int MB = 1024 * 1024;
+
+	/**Returns 503 SlowDown above a number of concurrent requests, below that requests slow down once the simulated link saturates.*/
+	private static class FaultyS3 extends AbstractAmazonS3 {
+		int capacity;
+		int linkStreams;
+		AtomicInteger active = new AtomicInteger(0);
+		AtomicInteger numSlowDowns = new AtomicInteger(0);
+		AtomicInteger numPuts = new AtomicInteger(0);
+		FaultyS3(int capacity, int linkStreams) {
+			this.capacity = capacity;
+			this.linkStreams = linkStreams;
+		}
+		public PutObjectResult putObject(PutObjectRequest r) {
+			int a = active.incrementAndGet();
+			try {
+				if (a > capacity) {
+					numSlowDowns.incrementAndGet();
+					AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+					e.setStatusCode(503);
+					e.setErrorCode("SlowDown");
+					throw e;
+				}
+				TimeUnit.MILLISECONDS.sleep((long)(10 * Math.max(1.0, (double)a / linkStreams)));
+				numPuts.incrementAndGet();
+				return new PutObjectResult();
+			} catch (InterruptedException e) {
+				throw new AmazonS3Exception("interrupted");
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void testAdjustments() throws Exception {
+		//windows only end when adjust is called
+		ConcurrencyController cc = new ConcurrencyController("Test", 1, 10, 4, Long.MAX_VALUE);
+		for (int i=0; i< 4; i++) cc.acquire();
+		for (int i=0; i< 4; i++) {
+			cc.completed(MB, 1000000);
+			cc.release();
+		}
+		long now = System.currentTimeMillis();
+		cc.adjust(now + 1000);
+		assertEquals(5, cc.getLimit());
+
+		//more in flight but no more throughput and each byte takes 3x longer, steps back
+		for (int i=0; i< 5; i++) cc.acquire();
+		for (int i=0; i< 4; i++) {
+			cc.completed(MB, 3000000);
+			cc.release();
+		}
+		cc.release();
+		cc.adjust(now + 2000);
+		assertEquals(4, cc.getLimit());
+
+		//throttled halves
+		cc.throttled();
+		assertEquals(2, cc.getLimit());
+		cc.throttled();
+		cc.adjust(now + 3000);
+		assertEquals(2, cc.getLimit());
+		assertEquals(3, cc.getHistory().size());
+		assertTrue(cc.getHistory().get(2).contains("4>2 throttled"));
+
+		//never below the min
+		cc.throttled();
+		cc.adjust(now + 4000);
+		cc.throttled();
+		cc.adjust(now + 5000);
+		assertEquals(1, cc.getLimit());
+	}
+
+	@Test
+	public void testFaultInjection() throws Exception {
+		//S3 throttles above 6 in flight, the link saturates at 4
+		FaultyS3 s3 = new FaultyS3(6, 4);
+		ConcurrencyController cc = new ConcurrencyController("Test", 1, 16, 8, 100);
+		int numWorkers = 16;
+		long stop = System.currentTimeMillis() + 3000;
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+		for (int i=0; i< numWorkers; i++) executor.execute(() -> {
+			while (System.currentTimeMillis() < stop) {
+				try {
+					cc.acquire();
+				} catch (InterruptedException e) {
+					return;
+				}
+				boolean throttled = false;
+				try {
+					long start = System.nanoTime();
+					s3.putObject(new PutObjectRequest("bucket", "key", new ByteArrayInputStream(new byte[0]), new ObjectMetadata()));
+					cc.completed(MB, System.nanoTime() - start);
+				} catch (AmazonServiceException ase) {
+					throttled = ConcurrencyController.isThrottle(ase);
+					if (throttled) cc.throttled();
+				} finally {
+					cc.release();
+				}
+				//back off before retrying as the transfer retry loops do
+				if (throttled) {
+					try {
+						TimeUnit.MILLISECONDS.sleep(50);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+		//backed off below the throttling point and kept most requests out of SlowDown
+		assertTrue(s3.numSlowDowns.get() > 0);
+		assertTrue(cc.getLimit() <= 7);
+		assertTrue(s3.numSlowDowns.get() * 10 < s3.numPuts.get());
+		assertEquals(s3.numSlowDowns.get(), cc.getNumThrottled());
+		boolean sawThrottle = false;
+		for (String h: cc.getHistory()) if (h.contains("throttled")) sawThrottle = true;
+		assertTrue(sawThrottle);
+		assertEquals(0, cc.getInFlight());
+	}
+}
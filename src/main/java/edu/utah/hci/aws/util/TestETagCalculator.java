@@ -0,0 +1,68 @@
+package edu.utah.hci.aws.util;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**JUnit tests for the ETagCalculator, no AWS resources needed.*/
+public class TestETagCalculator {
+
+	private static final long MB = 1024l * 1024l;
+
+	@Test
+	public void testETags() throws Exception {
+		File dir = Files.createTempDirectory("ETagCalculator").toFile();
+		ETagCalculator calc = new ETagCalculator(4);
+		try {
+			byte[] data = new byte[(int)(22 * MB + 17)];
+			new Random(5).nextBytes(data);
+			File f = new File(dir, "a.bam");
+			Files.write(f.toPath(), data);
+
+			//plain md5
+			assertEquals(RangedDownloader.hex(MessageDigest.getInstance("MD5").digest(data)), calc.calculate(f, 0, 1));
+
+			//as a TransferManager would upload it, 5MB parts
+			ArrayList<byte[]> md5s = new ArrayList<byte[]>();
+			for (int o = 0; o < data.length; o += 5 * MB) md5s.add(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(data, o, (int)Math.min(data.length, o + 5 * MB))));
+			String etag = RangedDownloader.multipartETag(md5s);
+			assertTrue(etag.endsWith("-5"));
+			assertEquals(etag, calc.calculate(f, 5 * MB, 5));
+
+			//part size inference
+			ArrayList<Long> c = ETagCalculator.candidatePartSizes(data.length, 5, 0);
+			assertEquals(5 * MB, c.get(0).longValue());
+			assertEquals(64 * MB, ETagCalculator.candidatePartSizes(data.length, 5, 64 * MB).get(0).longValue());
+			assertTrue(ETagCalculator.candidatePartSizes(data.length, 5000, 0).isEmpty());
+		} finally {
+			calc.shutdown();
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		//parts hashed concurrently give the same etag as a single thread
+		File dir = Files.createTempDirectory("ETagCalculator").toFile();
+		ETagCalculator single = new ETagCalculator(1);
+		ETagCalculator multi = new ETagCalculator(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		try {
+			byte[] data = new byte[(int)(16 * MB + 3)];
+			new Random(6).nextBytes(data);
+			File f = new File(dir, "b.bam");
+			Files.write(f.toPath(), data);
+			String etag = multi.calculate(f, MB, 17);
+			assertTrue(etag.endsWith("-17"));
+			assertEquals(single.calculate(f, MB, 17), etag);
+		} finally {
+			single.shutdown();
+			multi.shutdown();
+			Util.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package edu.utah.hci.aws.util;
+
+import static org.junit.Assert.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+/**JUnit tests for the LogSink, no AWS resources needed.*/
+public class TestLogSink {
+
+	@Test
+	public void testHeadAndTail() {
+		LogSink log = new LogSink(100, 200);
+		log.append("first\n");
+		assertEquals("first\n", log.getSummary());
+		for (int i=0; i< 10000; i++) log.append("line "+i+"\n");
+		String sum = log.getSummary();
+		assertTrue(sum.startsWith("first\nline 0\n"));
+		assertTrue(sum.endsWith("line 9999\n"));
+		assertTrue(sum.contains("of log omitted"));
+		assertTrue(sum.length() < 100 + 200 + 100);
+
+		//a new summary
+		log.reset();
+		log.append("next\n");
+		assertEquals("next\n", log.getSummary());
+	}
+
+	@Test
+	public void testConcurrentFileAndRotation() throws Exception {
+		File dir = Files.createTempDirectory("LogSink").toFile();
+		try {
+			File logFile = new File(dir, "gsyncLog.txt.gz");
+			//a prior run's log is rotated
+			Files.write(logFile.toPath(), new byte[10]);
+			LogSink log = new LogSink(1000, 1000);
+			log.setFile(logFile, 0, 3);
+			LogSink shared = log;
+			assertTrue(new File(dir, "gsyncLog.1.txt.gz").exists());
+
+			int numThreads = 8;
+			int numLines = 5000;
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			for (int t=0; t< numThreads; t++) {
+				int thread = t;
+				executor.execute(() -> {
+					for (int i=0; i< numLines; i++) shared.append("thread "+thread+" line "+i+"\n");
+				});
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+			log.close();
+
+			//every line intact in the file
+			HashSet<String> lines = new HashSet<String>();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(logFile))))) {
+				String line;
+				while ((line = in.readLine()) != null) assertTrue(line, lines.add(line));
+			}
+			assertEquals(numThreads * numLines, lines.size());
+			assertTrue(log.getSummary().contains("see "+logFile));
+
+			//rotation keeps 3 files
+			log = new LogSink(1000, 1000);
+			log.setFile(logFile, 1000, 3);
+			for (int i=0; i< 1000; i++) log.append("rotating "+i+"\n");
+			log.close();
+			assertEquals(3, dir.list().length);
+			assertFalse(new File(dir, "gsyncLog.3.txt.gz").exists());
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+}
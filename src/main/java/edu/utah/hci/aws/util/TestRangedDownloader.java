@@ -0,0 +1,149 @@
+package edu.utah.hci.aws.util;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**JUnit tests for the RangedDownloader against an in memory S3 object, no AWS resources needed.*/
+public class TestRangedDownloader {
+
+	/**Serves one object as if uploaded in parts of partSize.*/
+	private static class MemoryS3 extends AbstractAmazonS3 {
+		byte[] data;
+		int partSize;
+		String etag;
+		int numGets = 0;
+		int numFailedReads = 0;
+
+		MemoryS3(byte[] data, int partSize) throws Exception {
+			this.data = data;
+			this.partSize = partSize;
+			ArrayList<byte[]> md5s = new ArrayList<byte[]>();
+			for (int i=0; i< data.length; i+= partSize) {
+				MessageDigest md = MessageDigest.getInstance("MD5");
+				md.update(data, i, Math.min(partSize, data.length - i));
+				md5s.add(md.digest());
+			}
+			if (md5s.size() == 1) etag = RangedDownloader.hex(md5s.get(0));
+			else etag = RangedDownloader.multipartETag(md5s);
+		}
+
+		public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest r) {
+			ObjectMetadata om = new ObjectMetadata();
+			om.setHeader(Headers.ETAG, "\""+etag+"\"");
+			if (r.getPartNumber() == null) om.setContentLength(data.length);
+			else {
+				om.setContentLength(Math.min(partSize, data.length));
+				om.setHeader(Headers.S3_PARTS_COUNT, (data.length + partSize - 1) / partSize);
+			}
+			return om;
+		}
+
+		public synchronized S3Object getObject(GetObjectRequest r) {
+			numGets++;
+			if (r.getMatchingETagConstraints().get(0).contains(etag) == false) return null;
+			long[] range = r.getRange();
+			S3Object o = new S3Object();
+			InputStream in = new ByteArrayInputStream(data, (int)range[0], (int)(range[1] - range[0] + 1));
+			if (numFailedReads > 0) {
+				numFailedReads--;
+				//connection reset part way through the body
+				in = new InputStream() {
+					int n = 0;
+					public int read() throws IOException {
+						if (n++ >= 1000) throw new SocketException("Connection reset");
+						return 0;
+					}
+				};
+			}
+			o.setObjectContent(in);
+			return o;
+		}
+	}
+
+	@Test
+	public void testETags() {
+		assertEquals(1, RangedDownloader.parsePartCount("\"d41d8cd98f00b204e9800998ecf8427e\""));
+		assertEquals(12, RangedDownloader.parsePartCount("c7b3ef5b43e0c2d2b7f5d0d5d2e0aaaa-12"));
+		assertEquals(-1, RangedDownloader.parsePartCount("kms-encrypted"));
+	}
+
+	@Test
+	public void testMultipart() throws Exception {
+		byte[] data = new byte[5 * 1024 * 1024 + 12345];
+		new Random(1).nextBytes(data);
+		MemoryS3 s3 = new MemoryS3(data, 1024 * 1024);
+		File dir = Files.createTempDirectory("RangedDownloader").toFile();
+		RangedDownloader rd = new RangedDownloader(s3, 4, 2, 0);
+		try {
+			File f = new File(dir, "test.bam");
+			rd.download("bucket", "test.bam", f);
+			assertTrue(Arrays.equals(data, Files.readAllBytes(f.toPath())));
+			//one GET per part
+			assertEquals(6, s3.numGets);
+
+			//a corrupt etag fails and removes the file
+			s3.etag = "00000000000000000000000000000000-6";
+			try {
+				rd.download("bucket", "test.bam", f);
+				fail("Should have thrown an IOException");
+			} catch (IOException e) {}
+			assertFalse(f.exists());
+		} finally {
+			rd.shutdown();
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testMidStreamFailure() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024];
+		new Random(3).nextBytes(data);
+		MemoryS3 s3 = new MemoryS3(data, 1024 * 1024);
+		s3.numFailedReads = 2;
+		File dir = Files.createTempDirectory("RangedDownloader").toFile();
+		RangedDownloader rd = new RangedDownloader(s3, 1, 3, 0);
+		try {
+			File f = new File(dir, "test.bam");
+			rd.download("bucket", "test.bam", f);
+			assertTrue(Arrays.equals(data, Files.readAllBytes(f.toPath())));
+			//each reset range fetched again
+			assertEquals(5, s3.numGets);
+		} finally {
+			rd.shutdown();
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testSinglePart() throws Exception {
+		byte[] data = new byte[100000];
+		new Random(2).nextBytes(data);
+		MemoryS3 s3 = new MemoryS3(data, data.length);
+		File dir = Files.createTempDirectory("RangedDownloader").toFile();
+		RangedDownloader rd = new RangedDownloader(s3, 2, 2, 0);
+		try {
+			File f = new File(dir, "test.vcf.gz");
+			rd.download("bucket", "test.vcf.gz", f);
+			assertTrue(Arrays.equals(data, Files.readAllBytes(f.toPath())));
+		} finally {
+			rd.shutdown();
+			Util.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package edu.utah.hci.aws.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**Passes reads through a BandwidthLimiter. Mark and reset are passed through too, bytes reread after a reset count again as they go over the wire again.*/
+public class ThrottledInputStream extends FilterInputStream {
+
+	private BandwidthLimiter limiter;
+
+	public ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+		super(in);
+		this.limiter = limiter;
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) throttle(1);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0) throttle(n);
+		return n;
+	}
+
+	private void throttle(int n) throws IOException {
+		try {
+			limiter.acquire(n);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for bandwidth");
+		}
+	}
+}
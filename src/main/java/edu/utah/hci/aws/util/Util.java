@@ -78,7 +78,11 @@ public class Util {
 	
 	public static int ageOfFileInDays (File f) throws IOException {
 		FileTime t = Files.getLastModifiedTime(f.toPath());
-		long ft = t.toMillis();
+		return ageOfFileInDays(t.toMillis());
+	}
+	
+	/**@param ft last modified time in milliseconds since the epoch*/
+	public static int ageOfFileInDays (long ft) {
 		long now = System.currentTimeMillis();
 		long diff = now - ft;
 		return (int) millisecToDays(diff);